@@ -0,0 +1,221 @@
+package jetbrains.buildServer.webhook;
+
+import com.sun.net.httpserver.HttpServer;
+import jetbrains.buildServer.serverSide.BuildAgentManager;
+import jetbrains.buildServer.serverSide.BuildPromotionManager;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ParametersProvider;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.agentPools.AgentPoolManager;
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider;
+import jetbrains.buildServer.web.impl.RestApiFacade;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Server model fakes shared by benchmarks.
+ * Interfaces are faked with {@link Proxy} returning fixed values, classes are mocked as stub-only mocks
+ * which don't record invocations, so neither of them accumulates garbage between iterations
+ */
+final class BenchmarkFixtures {
+
+    static final String PROJECT_ID = "project1";
+
+    static final String BUILD_JSON = "{\"id\":100,\"buildTypeId\":\"Project1_Build\",\"number\":\"42\",\"status\":\"SUCCESS\",\"state\":\"finished\"," +
+            "\"branchName\":\"master\",\"defaultBranch\":true,\"href\":\"/app/rest/builds/id:100\"," +
+            "\"agent\":{\"id\":1,\"name\":\"agent-1\"},\"buildType\":{\"id\":\"Project1_Build\",\"projectId\":\"Project1\"}}";
+
+    static final String BUILD_FIELDS = "fields=id,buildTypeId,number,status,state,branchName,defaultBranch,href,agent(id,name),buildType(id,projectId)";
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * @return fake with the given values of no-arg methods, other methods return default values
+     */
+    @NotNull
+    static <T> T fake(@NotNull Class<T> type, @NotNull Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(), new Class[]{type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class)
+                return method.getName().equals("equals") ? proxy == args[0] : method.getName().equals("hashCode") ? System.identityHashCode(proxy) : type.getName();
+            Object value = values.get(method.getName());
+            return value != null ? value : defaultValue(method.getReturnType());
+        }));
+    }
+
+    @NotNull
+    static <T> T fake(@NotNull Class<T> type) {
+        return fake(type, Collections.emptyMap());
+    }
+
+    /**
+     * @return project with the given internal parameters
+     */
+    @NotNull
+    static ProjectEx project(@NotNull String projectId, @NotNull Map<String, String> parameters) {
+        ParametersProvider parametersProvider = (ParametersProvider) Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(), new Class[]{ParametersProvider.class},
+                (proxy, method, args) -> method.getName().equals("get") ? parameters.get((String) args[0]) : defaultValue(method.getReturnType()));
+        return (ProjectEx) Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(), new Class[]{ProjectEx.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getInternalParameterValue":
+                    return parameters.getOrDefault((String) args[0], (String) args[1]);
+                case "getBooleanInternalParameter":
+                    return Boolean.parseBoolean(parameters.get((String) args[0]));
+                case "getParametersProvider":
+                    return parametersProvider;
+                case "getProjectId":
+                case "getExternalId":
+                case "getName":
+                    return projectId;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    /**
+     * @return parameters enabling webhooks for build events sent to {@param url}
+     */
+    @NotNull
+    static Map<String, String> webhookParameters(@NotNull String url) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(WebhookConfig.ENABLE_PARAMETER, "true");
+        parameters.put(WebhookConfig.EVENTS_PARAMETER, "BUILD_STARTED;BUILD_FINISHED");
+        parameters.put(WebhookConfig.URL_PARAMETER, url);
+        parameters.put(WebhookConfig.PARAMETER_PREFIX + "BUILD_STARTED.fields", BUILD_FIELDS);
+        parameters.put(WebhookConfig.PARAMETER_PREFIX + "BUILD_FINISHED.fields", BUILD_FIELDS);
+        return parameters;
+    }
+
+    @NotNull
+    static WebhookConfigCache configCache(@NotNull ProjectEx project) {
+        return configCache(project, Collections.emptyMap());
+    }
+
+    /**
+     * @return config cache of {@param rootProject} and {@param projects} by their ids, unknown projects are resolved to the root project
+     */
+    @NotNull
+    static WebhookConfigCache configCache(@NotNull ProjectEx rootProject, @NotNull Map<String, ProjectEx> projects) {
+        ProjectManager projectManager = (ProjectManager) Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(), new Class[]{ProjectManager.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getRootProject":
+                            return rootProject;
+                        case "findProjectById":
+                            return projects.getOrDefault((String) args[0], rootProject);
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+        SBuildServer server = fake(SBuildServer.class, Collections.singletonMap("getProjectManager", projectManager));
+        @SuppressWarnings("unchecked")
+        EventDispatcher<BuildServerListener> serverEvents = mock(EventDispatcher.class, withSettings().stubOnly());
+        return new WebhookConfigCache(server, serverEvents);
+    }
+
+    /**
+     * @return REST API facade responding with the fixed {@param json} without rendering it
+     */
+    @NotNull
+    static RestApiFacade restApiFacade(@NotNull String json) {
+        RestApiFacade facade = mock(RestApiFacade.class, withSettings().stubOnly());
+        try {
+            when(facade.getJson(anyString(), anyString())).thenReturn(json);
+        } catch (RestApiFacade.InternalRestApiCallException e) {
+            throw new IllegalStateException(e);
+        }
+        return facade;
+    }
+
+    /**
+     * @return event subjects which find no objects, so the payload cache isn't used
+     */
+    @NotNull
+    static EventSubjects eventSubjects() {
+        return new EventSubjects(fake(BuildPromotionManager.class), fake(BuildAgentManager.class), fake(AgentPoolManager.class));
+    }
+
+    /**
+     * @return disabled outbox, unless enabled by the internal property
+     */
+    @NotNull
+    static WebhookOutbox outbox() {
+        return new WebhookOutbox(mock(ServerPaths.class, withSettings().stubOnly()));
+    }
+
+    /**
+     * @return disabled cluster sharding, unless enabled by the internal property
+     */
+    @NotNull
+    static ClusterSharding sharding() {
+        return new ClusterSharding(mock(ServerPaths.class, withSettings().stubOnly()));
+    }
+
+    @NotNull
+    static SSLTrustStoreProvider trustStoreProvider() {
+        return fake(SSLTrustStoreProvider.class);
+    }
+
+    /**
+     * @return started in-process webhooks receiver reading request bodies and responding with 200
+     */
+    @NotNull
+    static HttpServer receiver() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] buffer = new byte[8192];
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read(buffer) >= 0) {
+                    // drain
+                }
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    @NotNull
+    static String url(@NotNull HttpServer receiver) {
+        return "http://" + receiver.getAddress().getHostString() + ":" + receiver.getAddress().getPort() + "/";
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class)
+            return null;
+        if (type == boolean.class)
+            return false;
+        if (type == char.class)
+            return '\0';
+        if (type == long.class)
+            return 0L;
+        if (type == int.class)
+            return 0;
+        if (type == short.class)
+            return (short) 0;
+        if (type == byte.class)
+            return (byte) 0;
+        if (type == double.class)
+            return 0d;
+        return 0f;
+    }
+}
@@ -0,0 +1,164 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.BUILD_FINISHED;
+
+/**
+ * Runs several {@link ClusterSharding} nodes in one JVM sharing a temporary directory, sends events of many projects
+ * to random nodes while a node joins and another one leaves, and checks that every event is delivered exactly once
+ * and events of a project sent to the same node are delivered in order.
+ * <p>
+ * Run with {@code java -cp benchmarks.jar jetbrains.buildServer.webhook.ClusterSimulation [nodes] [events] [projects]}
+ */
+public class ClusterSimulation {
+
+    private final List<Delivery> deliveries = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int eventCount = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+        int projectCount = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        System.setProperty(ClusterSharding.HEARTBEAT_INTERVAL_PROPERTY, "100");
+        System.setProperty(ClusterSharding.NODE_TIMEOUT_PROPERTY, "1000");
+        System.setProperty(ClusterSharding.POLL_INTERVAL_PROPERTY, "10");
+        System.setProperty(ClusterSharding.HANDOVER_TIMEOUT_PROPERTY, "10000");
+        int failures = new ClusterSimulation().run(Files.createTempDirectory("webhooks-cluster"), nodeCount, eventCount, projectCount);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return count of lost, duplicated and reordered events
+     */
+    private int run(@NotNull Path directory, int nodeCount, int eventCount, int projectCount) throws InterruptedException {
+        Random random = new Random(42);
+        List<SimulatedNode> nodes = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.add(new SimulatedNode(directory, "node" + i));
+        }
+        String[] origins = new String[eventCount];
+        for (int i = 0; i < eventCount; i++) {
+            if (i == eventCount / 3) {
+                nodes.add(new SimulatedNode(directory, "node" + nodeCount));
+                System.out.println("node" + nodeCount + " joined");
+            } else if (i == 2 * eventCount / 3) {
+                SimulatedNode leaving = nodes.remove(0);
+                leaving.stop();
+                System.out.println(leaving.id + " left");
+            }
+            SimulatedNode origin = nodes.get(random.nextInt(nodes.size()));
+            origins[i] = origin.id;
+            origin.sharding.route(Collections.singletonList(new AsyncEvent(BUILD_FINISHED, (long) i, "project" + random.nextInt(projectCount))));
+            if (i % 10 == 0)
+                Thread.sleep(1);
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (getDeliveryCount() < eventCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        nodes.forEach(SimulatedNode::stop);
+        return verify(origins);
+    }
+
+    private int verify(@NotNull String[] origins) {
+        int[] delivered = new int[origins.length];
+        Map<String, Long> lastByOrigin = new HashMap<>();
+        Map<String, Integer> perNode = new HashMap<>();
+        int reordered = 0;
+        synchronized (deliveries) {
+            for (Delivery delivery : deliveries) {
+                int id = delivery.event.getObjectId().intValue();
+                delivered[id]++;
+                perNode.merge(delivery.nodeId, 1, Integer::sum);
+                String key = delivery.event.getProjectId() + "/" + origins[id];
+                Long last = lastByOrigin.put(key, delivery.event.getObjectId());
+                if (last != null && last > id)
+                    reordered++;
+            }
+        }
+        int lost = 0;
+        int duplicated = 0;
+        for (int count : delivered) {
+            if (count == 0)
+                lost++;
+            else if (count > 1)
+                duplicated += count - 1;
+        }
+        System.out.println("Deliveries per node: " + perNode);
+        System.out.println(format("Events: %d, lost: %d, duplicated: %d, reordered: %d", origins.length, lost, duplicated, reordered));
+        return lost + duplicated + reordered;
+    }
+
+    private int getDeliveryCount() {
+        synchronized (deliveries) {
+            return deliveries.size();
+        }
+    }
+
+    /**
+     * Cluster node with delivery lanes replaced by a single thread recording delivered events
+     */
+    private class SimulatedNode implements ClusterSharding.LocalNode {
+        private final String id;
+        private final ClusterSharding sharding;
+        private final ExecutorService lane = Executors.newSingleThreadExecutor();
+
+        private SimulatedNode(@NotNull Path directory, @NotNull String id) {
+            this.id = id;
+            this.sharding = new ClusterSharding(new ClusterNodes(directory, id));
+            sharding.start(this);
+        }
+
+        @Override
+        public void deliver(@NotNull List<AsyncEvent> events) {
+            List<AsyncEvent> accepted = new ArrayList<>(events);
+            lane.execute(() -> {
+                synchronized (deliveries) {
+                    for (AsyncEvent event : accepted) {
+                        deliveries.add(new Delivery(id, event));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void drain(@NotNull Runnable onDrained) {
+            lane.execute(onDrained);
+        }
+
+        private void stop() {
+            sharding.stop();
+            lane.shutdown();
+            try {
+                lane.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sharding.leave();
+        }
+    }
+
+    private static class Delivery {
+        private final String nodeId;
+        private final AsyncEvent event;
+
+        private Delivery(@NotNull String nodeId, @NotNull AsyncEvent event) {
+            this.nodeId = nodeId;
+            this.event = event;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package jetbrains.buildServer.webhook;
+
+import com.sun.net.httpserver.HttpServer;
+import jetbrains.buildServer.serverSide.BuildAgentManager;
+import jetbrains.buildServer.serverSide.BuildPromotionManager;
+import jetbrains.buildServer.serverSide.WebLinks;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.BUILD_FINISHED;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * {@link WebhooksEventListener#handle(List)} end to end: config lookup, payload rendering with a stub REST API
+ * and HTTP delivery to an in-process receiver, in the events dispatcher thread
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventListenerBenchmark {
+
+    @Param({"1", "16"})
+    public int eventsPerCall;
+
+    private HttpServer receiver;
+    private WebhookMetrics metrics;
+    private WebhooksEventListener listener;
+    private List<AsyncEvent> events;
+
+    @Setup
+    public void setUp() throws Exception {
+        receiver = BenchmarkFixtures.receiver();
+        WebhookConfigCache configCache = BenchmarkFixtures.configCache(
+                BenchmarkFixtures.project(BenchmarkFixtures.PROJECT_ID, BenchmarkFixtures.webhookParameters(BenchmarkFixtures.url(receiver))));
+        metrics = new WebhookMetrics();
+        listener = new WebhooksEventListener(new RestApiProducer(BenchmarkFixtures.restApiFacade(BenchmarkFixtures.BUILD_JSON), BenchmarkFixtures.eventSubjects()),
+                new ModelDataProducer(BenchmarkFixtures.fake(BuildPromotionManager.class), BenchmarkFixtures.fake(BuildAgentManager.class), mock(WebLinks.class, withSettings().stubOnly())),
+                configCache,
+                BenchmarkFixtures.outbox(),
+                metrics,
+                BenchmarkFixtures.eventSubjects(),
+                BenchmarkFixtures.sharding(),
+                BenchmarkFixtures.trustStoreProvider());
+        events = new ArrayList<>();
+        for (int i = 0; i < eventsPerCall; i++) {
+            events.add(new AsyncEvent(BUILD_FINISHED, 100L + i, BenchmarkFixtures.PROJECT_ID));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        listener.shutdown();
+        metrics.dispose();
+        receiver.stop(0);
+    }
+
+    @Benchmark
+    public void handle() {
+        listener.handle(events);
+    }
+}
@@ -0,0 +1,346 @@
+package jetbrains.buildServer.webhook;
+
+import com.sun.net.httpserver.HttpServer;
+import jetbrains.buildServer.serverSide.BuildAgentManager;
+import jetbrains.buildServer.serverSide.BuildPromotionManager;
+import jetbrains.buildServer.serverSide.WebLinks;
+import jetbrains.buildServer.serverSide.impl.events.async.AsyncEvent;
+import jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener;
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import jetbrains.buildServer.webhook.async.AsyncEventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Feeds a synthetic stream of core events with the given mix of agent, queue and build events across projects
+ * through the {@link AsyncEventDispatcher} bridge into {@link WebhooksEventListener}, which delivers them to an in-process receiver
+ * with programmable latency, error rate and timeouts. Reports throughput, end-to-end latency, retries and heap use every second
+ * and in total, so the sustainable event rate of a delivery configuration can be found by increasing the rate until the latency grows.
+ * <p>
+ * Run with {@code java -cp benchmarks.jar jetbrains.buildServer.webhook.LoadTest [name=value...]}, see {@link Options} for the names.
+ * Internal properties, e.g. {@code -Dteamcity.webhooks.delivery.partitioning=url}, are passed as system properties
+ */
+public class LoadTest {
+
+    private static final List<String> AGENT_EVENTS = Arrays.asList(AGENT_REGISTRED, AGENT_UNREGISTERED, AGENT_REMOVED);
+    private static final List<String> QUEUE_EVENTS = Arrays.asList(BUILD_TYPE_ADDED_TO_QUEUE, BUILD_REMOVED_FROM_QUEUE);
+    private static final List<String> BUILD_EVENTS = Arrays.asList(BUILD_STARTED, CHANGES_LOADED, BUILD_PROBLEMS_CHANGED, BUILD_FINISHED, BUILD_INTERRUPTED,
+            FAILURE_DETECTED, MARKED_AS_SUCCESSFUL);
+    /** generator ticks per second, events of a tick are passed to the listener as one list */
+    private static final int TICKS_PER_SECOND = 100;
+
+    /**
+     * Load parameters passed as {@code name=value} arguments
+     */
+    static class Options {
+        /** events per second */
+        int rate = 500;
+        /** seconds of generating events */
+        int duration = 30;
+        /** seconds to wait for webhooks of generated events to be delivered */
+        int drainTimeout = 60;
+        int projects = 20;
+        /** relative weights of agent, queue and build events, e.g. 1:2:7 */
+        String mix = "1:2:7";
+        /** receiver response delay in milliseconds */
+        long latency = 5;
+        /** share of requests the receiver responds to with 500 */
+        double errorRate = 0.01;
+        /** share of requests the receiver doesn't respond to in time */
+        double timeoutRate = 0.001;
+        /** receiver response delay of timed out requests in milliseconds, should exceed the read timeout */
+        long timeout = 3000;
+        int retryCount = 3;
+        long retryDelay = 100;
+
+        @NotNull
+        static Options parse(@NotNull String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq < 0)
+                    throw new IllegalArgumentException("Argument should be in the form name=value: " + arg);
+                String value = arg.substring(eq + 1).trim();
+                switch (arg.substring(0, eq).trim()) {
+                    case "rate": options.rate = Integer.parseInt(value); break;
+                    case "duration": options.duration = Integer.parseInt(value); break;
+                    case "drainTimeout": options.drainTimeout = Integer.parseInt(value); break;
+                    case "projects": options.projects = Integer.parseInt(value); break;
+                    case "mix": options.mix = value; break;
+                    case "latency": options.latency = Long.parseLong(value); break;
+                    case "errorRate": options.errorRate = Double.parseDouble(value); break;
+                    case "timeoutRate": options.timeoutRate = Double.parseDouble(value); break;
+                    case "timeout": options.timeout = Long.parseLong(value); break;
+                    case "retryCount": options.retryCount = Integer.parseInt(value); break;
+                    case "retryDelay": options.retryDelay = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            }
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return format("rate=%d/s duration=%ds projects=%d mix=%s latency=%dms errorRate=%s timeoutRate=%s timeout=%dms retryCount=%d retryDelay=%dms",
+                    rate, duration, projects, mix, latency, errorRate, timeoutRate, timeout, retryCount, retryDelay);
+        }
+    }
+
+    private final Options options;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private long maxHeapUsed;
+
+    private LoadTest(@NotNull Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty(EndpointClients.READ_TIMEOUT_PROPERTY, System.getProperty(EndpointClients.READ_TIMEOUT_PROPERTY, "1000"));
+        Options options = Options.parse(args);
+        System.out.println("Load: " + options);
+        new LoadTest(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        ExecutorService receiverExecutor = Executors.newCachedThreadPool();
+        HttpServer receiver = receiver(receiverExecutor);
+        String url = BenchmarkFixtures.url(receiver);
+        Map<String, ProjectEx> projects = new HashMap<>();
+        for (int i = 0; i < options.projects; i++) {
+            String projectId = "project" + i;
+            projects.put(projectId, BenchmarkFixtures.project(projectId, parameters(url)));
+        }
+        WebhookMetrics metrics = new WebhookMetrics();
+        WebhooksEventListener listener = new WebhooksEventListener(new RestApiProducer(BenchmarkFixtures.restApiFacade(BenchmarkFixtures.BUILD_JSON), BenchmarkFixtures.eventSubjects()),
+                new ModelDataProducer(BenchmarkFixtures.fake(BuildPromotionManager.class), BenchmarkFixtures.fake(BuildAgentManager.class), mock(WebLinks.class, withSettings().stubOnly())),
+                BenchmarkFixtures.configCache(BenchmarkFixtures.project(WebhookConfigCache.ROOT_PROJECT_KEY, parameters(url)), projects),
+                BenchmarkFixtures.outbox(),
+                metrics,
+                BenchmarkFixtures.eventSubjects(),
+                BenchmarkFixtures.sharding(),
+                BenchmarkFixtures.trustStoreProvider());
+        AsyncEventListener coreListener = subscribe(listener);
+        try {
+            long generated = generate(coreListener, metrics);
+            drain(metrics, generated);
+            report(metrics, generated);
+        } finally {
+            listener.shutdown();
+            metrics.dispose();
+            receiver.stop(0);
+            receiverExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return core listener the bridge subscribed on behalf of {@param listener}
+     */
+    @NotNull
+    private static AsyncEventListener subscribe(@NotNull WebhooksEventListener listener) {
+        jetbrains.buildServer.serverSide.impl.events.async.AsyncEventDispatcher delegate =
+                mock(jetbrains.buildServer.serverSide.impl.events.async.AsyncEventDispatcher.class);
+        List<String> events = new ArrayList<>(AGENT_EVENTS);
+        events.addAll(QUEUE_EVENTS);
+        events.addAll(BUILD_EVENTS);
+        new AsyncEventDispatcher(delegate).subscribe(events, listener);
+        ArgumentCaptor<AsyncEventListener> captor = ArgumentCaptor.forClass(AsyncEventListener.class);
+        verify(delegate).subscribe(anyList(), captor.capture());
+        return captor.getValue();
+    }
+
+    /**
+     * Generates events at the configured rate for the configured duration, printing progress every second
+     * @return count of generated events
+     */
+    private long generate(@NotNull AsyncEventListener coreListener, @NotNull WebhookMetrics metrics) throws InterruptedException {
+        int[] weights = Arrays.stream(options.mix.split(":")).mapToInt(weight -> Integer.parseInt(weight.trim())).toArray();
+        if (weights.length != 3)
+            throw new IllegalArgumentException("Mix should have 3 weights: " + options.mix);
+        Random random = new Random(42);
+        long generated = 0;
+        long objectId = 0;
+        long start = System.nanoTime();
+        long totalTicks = (long) options.duration * TICKS_PER_SECOND;
+        long previousDelivered = 0;
+        for (long tick = 0; tick < totalTicks; tick++) {
+            long due = (tick + 1) * options.rate / TICKS_PER_SECOND - tick * options.rate / TICKS_PER_SECOND;
+            List<AsyncEvent> events = new ArrayList<>((int) due);
+            for (int i = 0; i < due; i++) {
+                events.add(nextEvent(random, weights, objectId++));
+            }
+            if (!events.isEmpty()) {
+                coreListener.handle(events);
+                generated += events.size();
+            }
+            if ((tick + 1) % TICKS_PER_SECOND == 0) {
+                long delivered = metrics.getDeliveredCount();
+                printProgress((tick + 1) / TICKS_PER_SECOND, generated, delivered - previousDelivered, metrics);
+                previousDelivered = delivered;
+            }
+            long sleepNanos = start + (tick + 1) * TimeUnit.SECONDS.toNanos(1) / TICKS_PER_SECOND - System.nanoTime();
+            if (sleepNanos > 0)
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(format("Generated %d events in %.1fs (%.0f/s)", generated, seconds, generated / seconds));
+        return generated;
+    }
+
+    @NotNull
+    private AsyncEvent nextEvent(@NotNull Random random, @NotNull int[] weights, long objectId) {
+        int pick = random.nextInt(weights[0] + weights[1] + weights[2]);
+        if (pick < weights[0])
+            return new AsyncEvent(AGENT_EVENTS.get(random.nextInt(AGENT_EVENTS.size())), objectId, null);
+        String projectId = "project" + random.nextInt(options.projects);
+        if (pick < weights[0] + weights[1])
+            return new AsyncEvent(QUEUE_EVENTS.get(random.nextInt(QUEUE_EVENTS.size())), objectId, projectId);
+        return new AsyncEvent(BUILD_EVENTS.get(random.nextInt(BUILD_EVENTS.size())), objectId, projectId);
+    }
+
+    /**
+     * Waits for webhooks of all generated events to be delivered or failed
+     */
+    private void drain(@NotNull WebhookMetrics metrics, long generated) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(options.drainTimeout);
+        while (metrics.getDeliveredCount() + metrics.getFailedCount() < generated && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+            sampleHeap();
+        }
+        System.out.println(format("Drained in %.1fs", (System.nanoTime() - start) / 1e9));
+    }
+
+    private void printProgress(long second, long generated, long delivered, @NotNull WebhookMetrics metrics) {
+        sampleHeap();
+        System.out.println(format("%4ds generated=%d delivered/s=%d inFlight=%d retries=%d failed=%d heapUsed=%dMB",
+                second, generated, delivered, metrics.getInFlightCount(), metrics.getRetryCount(), metrics.getFailedCount(), heapUsed() >> 20));
+    }
+
+    private void report(@NotNull WebhookMetrics metrics, long generated) {
+        long delivered = metrics.getDeliveredCount();
+        System.out.println();
+        System.out.println(format("Events: %d, delivered: %d, failed: %d, undelivered: %d", generated, delivered, metrics.getFailedCount(),
+                Math.max(0, generated - delivered - metrics.getFailedCount())));
+        System.out.println(format("Throughput: %.0f webhooks/s", delivered / (double) options.duration));
+        for (Map.Entry<String, LatencyHistogram> entry : metrics.getEndToEndHistograms().entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            System.out.println(format("End-to-end latency: p50=%.1fms p99=%.1fms max=%.1fms", histogram.getPercentileMillis(0.5),
+                    histogram.getPercentileMillis(0.99), histogram.getMaxMillis()));
+        }
+        for (Map.Entry<DeliveryPriority, WebhookMetrics.PriorityStatus> entry : metrics.getPriorities().entrySet()) {
+            LatencyHistogram histogram = entry.getValue().latency;
+            System.out.println(format("%s latency: p50=%.1fms p99=%.1fms max=%.1fms, target %dms missed by %d webhooks", entry.getKey(),
+                    histogram.getPercentileMillis(0.5), histogram.getPercentileMillis(0.99), histogram.getMaxMillis(),
+                    entry.getKey().getLatencyTargetMillis(), entry.getValue().missedTarget.sum()));
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : metrics.getPayloadHistograms().entrySet()) {
+            System.out.println(format("Payload %s: %s", entry.getKey(), entry.getValue()));
+        }
+        System.out.println(format("Receiver: requests=%d errors=%d timeouts=%d, retries: %d, coalesced: %d",
+                requests.get(), errors.get(), timeouts.get(), metrics.getRetryCount(), metrics.getCoalescedCount()));
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        System.out.println(format("Heap: max used %dMB, GC: %d collections, %dms", maxHeapUsed >> 20, gcCount, gcMillis));
+    }
+
+    private void sampleHeap() {
+        maxHeapUsed = Math.max(maxHeapUsed, heapUsed());
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return webhooks of all events sent to {@param url}, with retries
+     */
+    @NotNull
+    private Map<String, String> parameters(@NotNull String url) {
+        Map<String, String> parameters = new HashMap<>();
+        List<String> events = new ArrayList<>(AGENT_EVENTS);
+        events.addAll(QUEUE_EVENTS);
+        events.addAll(BUILD_EVENTS);
+        parameters.put(WebhookConfig.ENABLE_PARAMETER, "true");
+        parameters.put(WebhookConfig.EVENTS_PARAMETER, String.join(";", events));
+        parameters.put(WebhookConfig.URL_PARAMETER, url);
+        parameters.put(WebhookConfig.PARAMETER_PREFIX + WebhookEndpoint.RETRY_COUNT, String.valueOf(options.retryCount));
+        parameters.put(WebhookConfig.PARAMETER_PREFIX + WebhookEndpoint.RETRY_DELAY, String.valueOf(options.retryDelay));
+        for (String event : events) {
+            parameters.put(WebhookConfig.PARAMETER_PREFIX + event + WebhookEndpoint.FIELDS_SUFFIX, BenchmarkFixtures.BUILD_FIELDS);
+        }
+        return parameters;
+    }
+
+    /**
+     * @return started receiver delaying responses by the configured latency, failing and timing out the configured share of requests
+     */
+    @NotNull
+    private HttpServer receiver(@NotNull ExecutorService executor) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            byte[] buffer = new byte[8192];
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read(buffer) >= 0) {
+                    // drain
+                }
+            }
+            double outcome = ThreadLocalRandom.current().nextDouble();
+            int status = 200;
+            long delay = options.latency;
+            if (outcome < options.timeoutRate) {
+                timeouts.incrementAndGet();
+                delay = options.timeout;
+            } else if (outcome < options.timeoutRate + options.errorRate) {
+                errors.incrementAndGet();
+                status = 500;
+            }
+            try {
+                if (delay > 0)
+                    Thread.sleep(delay);
+                exchange.sendResponseHeaders(status, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ignored) {
+                // the client has given up waiting
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,124 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.BuildAgentManager;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildPromotionManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.WebLinks;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.BUILD_FINISHED;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Payload rendering by {@link RestApiProducer} with a stub REST API, which returns an already rendered object,
+ * compared to {@link ModelDataProducer} serializing the same fields from the server model.
+ * The REST API rendering itself is not included, so the gain of the native producer in the server is bigger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadProducerBenchmark {
+
+    private static final String UNSUPPORTED_EVENT = "PROJECT_ARCHIVED";
+
+    private RestApiProducer restApiProducer;
+    private ModelDataProducer modelDataProducer;
+    private AsyncEvent event;
+    private AsyncEvent unsupportedEvent;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+
+    @Setup
+    public void setUp() {
+        restApiProducer = new RestApiProducer(BenchmarkFixtures.restApiFacade(BenchmarkFixtures.BUILD_JSON), BenchmarkFixtures.eventSubjects());
+        modelDataProducer = new ModelDataProducer(promotionManager(), BenchmarkFixtures.fake(BuildAgentManager.class),
+                mock(WebLinks.class, withSettings().stubOnly()));
+        event = new AsyncEvent(BUILD_FINISHED, 100L, BenchmarkFixtures.PROJECT_ID);
+        unsupportedEvent = new AsyncEvent(UNSUPPORTED_EVENT, 100L, BenchmarkFixtures.PROJECT_ID);
+    }
+
+    @Benchmark
+    public String restGetJson() {
+        return restApiProducer.getJson(event, BenchmarkFixtures.BUILD_FIELDS);
+    }
+
+    @Benchmark
+    public int restWritePayload() throws IOException {
+        out.reset();
+        restApiProducer.getPayload(event, BenchmarkFixtures.BUILD_FIELDS).writeTo(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public byte[] nativeSerialize() {
+        return modelDataProducer.serialize(event, BenchmarkFixtures.BUILD_FIELDS);
+    }
+
+    @Benchmark
+    public Object eventTypeLookup() {
+        return RestApiProducer.EventType.getEventType(BUILD_FINISHED);
+    }
+
+    @Benchmark
+    public boolean supportUnsupportedEvent() {
+        return restApiProducer.support(unsupportedEvent);
+    }
+
+    private static BuildPromotionManager promotionManager() {
+        Map<String, Object> agent = new HashMap<>();
+        agent.put("getId", 1);
+        agent.put("getName", "agent-1");
+
+        Map<String, Object> buildType = new HashMap<>();
+        buildType.put("getExternalId", "Project1_Build");
+        buildType.put("getProjectExternalId", "Project1");
+
+        Map<String, Object> branch = new HashMap<>();
+        branch.put("getDisplayName", "master");
+        branch.put("isDefaultBranch", true);
+
+        Map<String, Object> build = new HashMap<>();
+        build.put("getBuildId", 100L);
+        build.put("getBuildNumber", "42");
+        build.put("getBuildStatus", Status.NORMAL);
+        build.put("isFinished", true);
+        build.put("getStartDate", new Date());
+        build.put("getAgent", BenchmarkFixtures.fake(SBuildAgent.class, agent));
+
+        Map<String, Object> promotion = new HashMap<>();
+        promotion.put("getId", 100L);
+        promotion.put("getBuildTypeExternalId", "Project1_Build");
+        promotion.put("getBranch", BenchmarkFixtures.fake(Branch.class, branch));
+        promotion.put("getAssociatedBuild", BenchmarkFixtures.fake(SBuild.class, build));
+        promotion.put("getBuildType", BenchmarkFixtures.fake(SBuildType.class, buildType));
+
+        BuildPromotion buildPromotion = BenchmarkFixtures.fake(BuildPromotion.class, promotion);
+        return BenchmarkFixtures.fake(BuildPromotionManager.class, Collections.singletonMap("findPromotionById", buildPromotion));
+    }
+}
@@ -0,0 +1,51 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.BUILD_FINISHED;
+
+/**
+ * Parsing of the project webhooks parameters, compared to the cached config lookup done for every event
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebhookConfigBenchmark {
+
+    private ProjectEx project;
+    private WebhookConfigCache configCache;
+    private AsyncEvent event;
+
+    @Setup
+    public void setUp() {
+        project = BenchmarkFixtures.project(BenchmarkFixtures.PROJECT_ID, BenchmarkFixtures.webhookParameters("http://localhost/"));
+        configCache = BenchmarkFixtures.configCache(project);
+        event = new AsyncEvent(BUILD_FINISHED, 100L, BenchmarkFixtures.PROJECT_ID);
+    }
+
+    @Benchmark
+    public WebhookConfig compile() {
+        return WebhookConfig.compile(BenchmarkFixtures.PROJECT_ID, project);
+    }
+
+    @Benchmark
+    public WebhookConfig cachedLookup() {
+        return configCache.get(event);
+    }
+}
@@ -0,0 +1,79 @@
+package jetbrains.buildServer.webhook.async;
+
+import jetbrains.buildServer.serverSide.impl.events.async.AsyncEvent;
+import jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener;
+import org.mockito.ArgumentCaptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Events passing through the {@link AsyncEventDispatcher} bridge to the plugin listener
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncEventDispatcherBenchmark {
+
+    private static final int EVENTS_COUNT = 16;
+
+    private AsyncEventDispatcher dispatcher;
+    private jetbrains.buildServer.webhook.async.AsyncEventListener listener;
+    private AsyncEventListener coreListener;
+    private AsyncEvent event;
+    private List<AsyncEvent> events;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        jetbrains.buildServer.serverSide.impl.events.async.AsyncEventDispatcher delegate =
+                mock(jetbrains.buildServer.serverSide.impl.events.async.AsyncEventDispatcher.class);
+        dispatcher = new AsyncEventDispatcher(delegate);
+        listener = blackhole::consume;
+        dispatcher.subscribe(Collections.singletonList("BUILD_FINISHED"), listener);
+
+        ArgumentCaptor<AsyncEventListener> captor = ArgumentCaptor.forClass(AsyncEventListener.class);
+        verify(delegate).subscribe(anyList(), captor.capture());
+        coreListener = captor.getValue();
+
+        event = new AsyncEvent("BUILD_FINISHED", 100L, "project1");
+        events = new ArrayList<>();
+        for (int i = 0; i < EVENTS_COUNT; i++) {
+            events.add(new AsyncEvent("BUILD_FINISHED", 100L + i, "project1"));
+        }
+    }
+
+    @Benchmark
+    public void handleEvent() {
+        coreListener.handle(event);
+    }
+
+    @Benchmark
+    public void handleEvents() {
+        coreListener.handle(events);
+    }
+
+    @Benchmark
+    public boolean wrapperEquals() {
+        return coreListener.equals(coreListener);
+    }
+}
@@ -0,0 +1,204 @@
+package jetbrains.buildServer.webhook;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+
+/**
+ * Files of the webhooks cluster in the data directory shared by TeamCity nodes: a heartbeat file per node
+ * with the time and the membership views the node acts upon, and an inbox directory per node with events forwarded to it.
+ * Files are written to a temporary file and moved in place, so they are never read partially written
+ */
+class ClusterNodes {
+
+    private static final Logger LOG = Logger.getInstance(ClusterNodes.class.getName());
+
+    private static final String NODES = "nodes";
+    private static final String INBOX = "inbox";
+    private static final String EVENT_SUFFIX = ".event";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CLAIMED_SUFFIX = ".claimed";
+
+    private final Path nodesDirectory;
+    private final Path inboxDirectory;
+    private final String nodeId;
+    private final AtomicLong sequence = new AtomicLong();
+
+    ClusterNodes(@NotNull Path directory, @NotNull String nodeId) {
+        this.nodesDirectory = directory.resolve(NODES);
+        this.inboxDirectory = directory.resolve(INBOX);
+        this.nodeId = sanitize(nodeId);
+    }
+
+    @NotNull
+    String getNodeId() {
+        return nodeId;
+    }
+
+    void heartbeat(@NotNull Heartbeat heartbeat) throws IOException {
+        write(nodesDirectory.resolve(nodeId), heartbeat.time + "\n" + heartbeat.view + "\n" + heartbeat.drainedView + "\n" + heartbeat.leaving + "\n");
+    }
+
+    /**
+     * @return last heartbeats of all nodes which didn't leave the cluster, including stale ones
+     */
+    @NotNull
+    Map<String, Heartbeat> readHeartbeats() throws IOException {
+        Map<String, Heartbeat> heartbeats = new HashMap<>();
+        for (Path file : list(nodesDirectory)) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(TEMP_SUFFIX))
+                continue;
+            try {
+                List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                heartbeats.put(name, new Heartbeat(Long.parseLong(lines.get(0)), line(lines, 1), line(lines, 2), Boolean.parseBoolean(line(lines, 3))));
+            } catch (NoSuchFileException ignored) {
+                // the node left
+            } catch (IOException | RuntimeException e) {
+                LOG.debug(format("Failed to read webhooks cluster heartbeat %s: %s", file, e.getMessage()));
+            }
+        }
+        return heartbeats;
+    }
+
+    /**
+     * Removes the heartbeat of the node, so other nodes stop forwarding events to it and take over its inbox
+     */
+    void leave() {
+        try {
+            Files.deleteIfExists(nodesDirectory.resolve(nodeId));
+        } catch (IOException e) {
+            LOG.warnAndDebugDetails("Failed to remove webhooks cluster heartbeat of node " + nodeId, e);
+        }
+    }
+
+    void send(@NotNull String targetNodeId, @NotNull Forwarded forwarded) throws IOException {
+        AsyncEvent event = forwarded.event;
+        String name = format("%013d-%s-%010d%s", System.currentTimeMillis(), nodeId, sequence.getAndIncrement(), EVENT_SUFFIX);
+        write(inboxDirectory.resolve(targetNodeId).resolve(name), event.getEventType() + "\n" + event.getObjectId() + "\n"
+                + (event.getProjectId() == null ? "" : event.getProjectId()) + "\n" + forwarded.view + "\n" + forwarded.hops + "\n");
+    }
+
+    /**
+     * Removes events forwarded to this node from its inbox
+     * @return removed events in the order they were sent
+     */
+    @NotNull
+    List<Forwarded> receive() throws IOException {
+        List<Forwarded> received = new ArrayList<>();
+        for (Path event : listEvents(inboxDirectory.resolve(nodeId))) {
+            // an event is claimed by moving, so it's not received by a node adopting the inbox at the same time
+            Path file = event.resolveSibling(event.getFileName() + CLAIMED_SUFFIX);
+            try {
+                Files.move(event, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            try {
+                List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                String projectId = line(lines, 2);
+                received.add(new Forwarded(new AsyncEvent(lines.get(0), Long.valueOf(lines.get(1)), projectId.isEmpty() ? null : projectId),
+                        line(lines, 3), Integer.parseInt(line(lines, 4))));
+            } catch (IOException | RuntimeException e) {
+                LOG.warn(format("Webhooks cluster event %s is malformed and is skipped: %s", file, e.getMessage()));
+            }
+            Files.deleteIfExists(file);
+        }
+        return received;
+    }
+
+    /**
+     * Moves events forwarded to nodes which are not {@param presentNodes} anymore to the inbox of this node
+     */
+    void adoptOrphans(@NotNull Collection<String> presentNodes) throws IOException {
+        Path inbox = inboxDirectory.resolve(nodeId);
+        for (Path orphan : list(inboxDirectory)) {
+            String orphanId = orphan.getFileName().toString();
+            if (orphanId.equals(nodeId) || presentNodes.contains(orphanId) || !Files.isDirectory(orphan))
+                continue;
+            for (Path file : listEvents(orphan)) {
+                try {
+                    Files.createDirectories(inbox);
+                    Files.move(file, inbox.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException | FileAlreadyExistsException ignored) {
+                    // adopted by another node
+                }
+            }
+        }
+    }
+
+    @NotNull
+    static String sanitize(@NotNull String nodeId) {
+        return nodeId.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static void write(@NotNull Path file, @NotNull String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @NotNull
+    private static List<Path> listEvents(@NotNull Path directory) throws IOException {
+        return list(directory).stream()
+                .filter(file -> file.getFileName().toString().endsWith(EVENT_SUFFIX))
+                .sorted(Comparator.comparing(file -> file.getFileName().toString()))
+                .collect(Collectors.toList());
+    }
+
+    @NotNull
+    private static List<Path> list(@NotNull Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return Collections.emptyList();
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    @NotNull
+    private static String line(@NotNull List<String> lines, int index) {
+        return index < lines.size() ? lines.get(index) : "";
+    }
+
+    static class Heartbeat {
+        final long time;
+        /** live nodes the node routes events by */
+        final String view;
+        /** view the node handed over projects it doesn't own anymore for */
+        final String drainedView;
+        /** the node hands over its projects to other nodes before leaving the cluster */
+        final boolean leaving;
+
+        Heartbeat(long time, @NotNull String view, @NotNull String drainedView, boolean leaving) {
+            this.time = time;
+            this.view = view;
+            this.drainedView = drainedView;
+            this.leaving = leaving;
+        }
+    }
+
+    static class Forwarded {
+        final AsyncEvent event;
+        /** view the event was routed by, empty for events of the local dispatcher */
+        final String view;
+        final int hops;
+
+        Forwarded(@NotNull AsyncEvent event, @Nullable String view, int hops) {
+            this.event = event;
+            this.view = view == null ? "" : view;
+            this.hops = hops;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package jetbrains.buildServer.webhook;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import static java.lang.String.format;
+
+/**
+ * Spreads webhooks delivery over TeamCity nodes sharing the data directory. Every project is owned by one live node
+ * chosen by rendezvous hashing of the project over live nodes, so only projects of a joining or leaving node change their owner.
+ * Events a node receives for projects it doesn't own are forwarded to the owner, see {@link ClusterNodes}.
+ * <p>
+ * Nodes announce live nodes they route events by in their heartbeats. When a project changes its owner, the new owner holds
+ * its events until the previous owner reports that all nodes route by the new view and webhooks it accepted before
+ * are handed to the sender, or the previous owner leaves, or {@link #HANDOVER_TIMEOUT_PROPERTY} passes,
+ * so webhooks of a project are sent in the order of events while it's handed over.
+ * A stopping node announces it's leaving and hands over its projects the same way before it removes its heartbeat.
+ * <p>
+ * Events are handed to the local node by a dedicated thread in the order of routing, so slow receivers delay neither
+ * the event dispatcher nor heartbeats of the node.
+ * <p>
+ * Enabled by {@link #ENABLED_PROPERTY} internal property, requires a node id stable across restarts, see {@link #NODE_ID_PROPERTY}
+ */
+@Component
+public class ClusterSharding {
+
+    private static final Logger LOG = Logger.getInstance(ClusterSharding.class.getName());
+
+    static final String ENABLED_PROPERTY = "teamcity.webhooks.cluster.sharding";
+    static final String NODE_ID_PROPERTY = "teamcity.webhooks.cluster.nodeId";
+    static final String HEARTBEAT_INTERVAL_PROPERTY = "teamcity.webhooks.cluster.heartbeatIntervalMs";
+    static final String NODE_TIMEOUT_PROPERTY = "teamcity.webhooks.cluster.nodeTimeoutMs";
+    static final String POLL_INTERVAL_PROPERTY = "teamcity.webhooks.cluster.pollIntervalMs";
+    static final String HANDOVER_TIMEOUT_PROPERTY = "teamcity.webhooks.cluster.handoverTimeoutMs";
+    static final String SERVER_NODE_ID_PROPERTY = "teamcity.server.nodeId";
+
+    /** forwarding limit for events routed by nodes with different views */
+    private static final int MAX_HOPS = 3;
+
+    /**
+     * Webhooks delivery of this node
+     */
+    interface LocalNode {
+        void deliver(@NotNull List<AsyncEvent> events);
+
+        /**
+         * Calls {@param onDrained} once webhooks of events delivered before are handed to the sender
+         */
+        void drain(@NotNull Runnable onDrained);
+    }
+
+    private final ClusterNodes nodes;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /** events of projects waiting for the previous owner to hand them over, guarded by itself */
+    private final Map<String, List<AsyncEvent>> held = new LinkedHashMap<>();
+    private ScheduledExecutorService executor;
+    /** hands events and drain requests to the local node in the order they are routed */
+    private ExecutorService deliveryExecutor;
+    private LocalNode local;
+
+    // guarded by lock
+    private volatile List<String> liveNodes = Collections.emptyList();
+    private volatile String view = "";
+    private List<String> previousNodes = Collections.emptyList();
+    private String previousView = "";
+    private final Set<String> handedOver = new HashSet<>();
+    private long handoverDeadline;
+
+    // accessed by the cluster thread only
+    private Map<String, ClusterNodes.Heartbeat> heartbeats = Collections.emptyMap();
+    /** nodes with recent heartbeats including leaving ones */
+    private Set<String> presentNodes = Collections.emptySet();
+    private String drainingView;
+    private volatile String drainedView = "";
+    private volatile boolean leaving;
+
+    public ClusterSharding(ServerPaths serverPaths) {
+        this(createNodes(serverPaths));
+    }
+
+    ClusterSharding(@Nullable ClusterNodes nodes) {
+        this.nodes = nodes;
+    }
+
+    boolean isEnabled() {
+        return nodes != null;
+    }
+
+    /**
+     * Joins the cluster and starts delivering events owned by this node to {@param localNode}
+     */
+    synchronized void start(@NotNull LocalNode localNode) {
+        if (nodes == null || executor != null)
+            return;
+        local = localNode;
+        executor = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("WebhooksCluster"));
+        deliveryExecutor = Executors.newSingleThreadExecutor(new NamedDaemonThreadFactory("WebhooksClusterDelivery"));
+        List<String> others = new ArrayList<>();
+        try {
+            others.addAll(readLiveNodes());
+            others.remove(nodes.getNodeId());
+        } catch (IOException e) {
+            LOG.warnAndDebugDetails("Failed to read webhooks cluster nodes", e);
+        }
+        // projects of a joining node were owned by the other nodes
+        lock.writeLock().lock();
+        try {
+            liveNodes = previousNodes = others;
+            view = previousView = String.join(",", others);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        refresh();
+        long heartbeatInterval = TeamCityProperties.getLong(HEARTBEAT_INTERVAL_PROPERTY, 5 * 1000);
+        long pollInterval = TeamCityProperties.getLong(POLL_INTERVAL_PROPERTY, 200);
+        executor.scheduleWithFixedDelay(this::refresh, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::poll, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands over projects of this node to other nodes and stops receiving forwarded events.
+     * Events held for handover which other nodes didn't take in time are delivered by this node
+     */
+    void stop() {
+        synchronized (this) {
+            if (executor == null || leaving)
+                return;
+            leaving = true;
+        }
+        try {
+            executor.execute(this::refresh);
+            long deadline = System.currentTimeMillis() + TeamCityProperties.getLong(HANDOVER_TIMEOUT_PROPERTY, 30 * 1000);
+            while (liveNodes.contains(nodes.getNodeId()) || !drainedView.equals(view)) {
+                if (System.currentTimeMillis() >= deadline) {
+                    LOG.warn(format("Webhooks cluster node %s didn't hand over its projects in time, their webhooks may be sent out of order", nodes.getNodeId()));
+                    break;
+                }
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            deliverLocally(takeHeld(project -> true));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        deliveryExecutor.shutdown();
+        try {
+            if (!deliveryExecutor.awaitTermination(TeamCityProperties.getLong(HANDOVER_TIMEOUT_PROPERTY, 30 * 1000), TimeUnit.MILLISECONDS))
+                LOG.warn(format("Webhooks cluster node %s didn't send accepted webhooks in time", nodes.getNodeId()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Leaves the cluster, events forwarded to this node but not received yet are taken over by other nodes
+     */
+    void leave() {
+        if (nodes != null)
+            nodes.leave();
+    }
+
+    /**
+     * Delivers events of projects owned by this node and forwards the others to their owners
+     */
+    void route(@NotNull List<AsyncEvent> events) {
+        List<ClusterNodes.Forwarded> forwarded = new ArrayList<>(events.size());
+        for (AsyncEvent event : events) {
+            forwarded.add(new ClusterNodes.Forwarded(event, null, 0));
+        }
+        routeForwarded(forwarded);
+    }
+
+    /**
+     * @return node owning {@param key} among {@param nodes} or null if there are no nodes
+     */
+    @Nullable
+    static String getOwner(@NotNull List<String> nodes, @NotNull String key) {
+        String owner = null;
+        long ownerScore = 0;
+        for (String node : nodes) {
+            long score = mix(node.hashCode() * 0x9E3779B97F4A7C15L + key.hashCode());
+            if (owner == null || score > ownerScore || (score == ownerScore && node.compareTo(owner) < 0)) {
+                owner = node;
+                ownerScore = score;
+            }
+        }
+        return owner;
+    }
+
+    private void routeForwarded(@NotNull List<ClusterNodes.Forwarded> events) {
+        final String nodeId = nodes.getNodeId();
+        List<AsyncEvent> deliveries = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (ClusterNodes.Forwarded forwarded : events) {
+                AsyncEvent event = forwarded.event;
+                String projectKey = WebhookConfigCache.getProjectKey(event);
+                // routed to this node before other nodes noticed the change, it's sent before the project is handed over
+                if (!forwarded.view.isEmpty() && forwarded.view.equals(previousView) && nodeId.equals(getOwner(previousNodes, projectKey))) {
+                    deliveries.add(event);
+                    continue;
+                }
+                String owner = getOwner(liveNodes, projectKey);
+                if (owner != null && !owner.equals(nodeId) && forwarded.hops < MAX_HOPS) {
+                    try {
+                        nodes.send(owner, new ClusterNodes.Forwarded(event, view, forwarded.hops + 1));
+                        continue;
+                    } catch (IOException e) {
+                        LOG.warnAndDebugDetails(format("Failed to forward webhooks event %s to node %s, it will be sent by this node", event, owner), e);
+                    }
+                }
+                String previousOwner = getOwner(previousNodes, projectKey);
+                if (previousOwner != null && !previousOwner.equals(nodeId) && !handedOver.contains(previousOwner)) {
+                    synchronized (held) {
+                        held.computeIfAbsent(projectKey, key -> new ArrayList<>()).add(event);
+                    }
+                    continue;
+                }
+                deliveries.add(event);
+            }
+            deliverLocally(deliveries);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Queues {@param events} for the local node. Called under the lock, so events are queued in the order of routing decisions
+     * and before drain requests of views adopted later, while the delivery itself happens outside of the lock
+     */
+    private void deliverLocally(@NotNull List<AsyncEvent> events) {
+        if (events.isEmpty())
+            return;
+        try {
+            deliveryExecutor.execute(() -> local.deliver(events));
+        } catch (RejectedExecutionException e) {
+            // the node is stopped
+            local.deliver(events);
+        }
+    }
+
+    /**
+     * Publishes the heartbeat, adopts the view of currently live nodes and completes handovers
+     */
+    private void refresh() {
+        try {
+            updateMembership();
+            nodes.adoptOrphans(presentNodes);
+            if (drainingView != null && drainingView.equals(view) && isAdoptedByAll(drainingView)) {
+                poll();
+                drain(drainingView);
+                drainingView = null;
+            }
+            completeHandovers();
+        } catch (Throwable e) {
+            LOG.warnAndDebugDetails("Failed to update webhooks cluster membership", e);
+        }
+    }
+
+    private void poll() {
+        try {
+            List<ClusterNodes.Forwarded> received = nodes.receive();
+            if (received.isEmpty())
+                return;
+            for (ClusterNodes.Forwarded forwarded : received) {
+                if (!forwarded.view.equals(view) && !forwarded.view.equals(previousView)) {
+                    // sent by a node which has already noticed a membership change
+                    updateMembership();
+                    break;
+                }
+            }
+            routeForwarded(received);
+        } catch (Throwable e) {
+            LOG.warnAndDebugDetails("Failed to receive webhooks cluster events", e);
+        }
+    }
+
+    /**
+     * Adopts the view of currently live nodes and publishes the heartbeat
+     */
+    private void updateMembership() throws IOException {
+        List<String> live = readLiveNodes();
+        if (!String.join(",", live).equals(view))
+            adopt(live);
+        publish();
+    }
+
+    @NotNull
+    private List<String> readLiveNodes() throws IOException {
+        heartbeats = nodes.readHeartbeats();
+        long now = System.currentTimeMillis();
+        long timeout = TeamCityProperties.getLong(NODE_TIMEOUT_PROPERTY, 30 * 1000);
+        Set<String> present = new HashSet<>();
+        Set<String> live = new TreeSet<>();
+        heartbeats.forEach((node, heartbeat) -> {
+            if (now - heartbeat.time < timeout) {
+                present.add(node);
+                if (!heartbeat.leaving)
+                    live.add(node);
+            }
+        });
+        present.add(nodes.getNodeId());
+        live.remove(nodes.getNodeId());
+        if (!leaving)
+            live.add(nodes.getNodeId());
+        presentNodes = present;
+        return new ArrayList<>(live);
+    }
+
+    private void adopt(@NotNull List<String> live) {
+        List<AsyncEvent> requeued;
+        lock.writeLock().lock();
+        try {
+            previousNodes = liveNodes;
+            previousView = view;
+            liveNodes = Collections.unmodifiableList(live);
+            view = String.join(",", live);
+            handedOver.clear();
+            handoverDeadline = System.currentTimeMillis() + TeamCityProperties.getLong(HANDOVER_TIMEOUT_PROPERTY, 30 * 1000);
+            requeued = takeHeld(project -> true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        drainingView = view;
+        LOG.info(format("Webhooks cluster node %s routes events by live nodes: %s", nodes.getNodeId(), view));
+        if (!requeued.isEmpty())
+            route(requeued);
+    }
+
+    private boolean isAdoptedByAll(@NotNull String adoptedView) {
+        for (String node : liveNodes) {
+            ClusterNodes.Heartbeat heartbeat = heartbeats.get(node);
+            if (!node.equals(nodes.getNodeId()) && (heartbeat == null || !adoptedView.equals(heartbeat.view)))
+                return false;
+        }
+        return true;
+    }
+
+    private void drain(@NotNull String drainedView) {
+        try {
+            deliveryExecutor.execute(() -> local.drain(() -> {
+                this.drainedView = drainedView;
+                try {
+                    executor.execute(this::publish);
+                } catch (RejectedExecutionException ignored) {
+                    // the node is stopped
+                }
+            }));
+        } catch (RejectedExecutionException ignored) {
+            // the node is stopped
+        }
+    }
+
+    private void publish() {
+        try {
+            nodes.heartbeat(new ClusterNodes.Heartbeat(System.currentTimeMillis(), view, drainedView, leaving));
+        } catch (IOException e) {
+            LOG.warnAndDebugDetails("Failed to write webhooks cluster heartbeat of node " + nodes.getNodeId(), e);
+        }
+    }
+
+    /**
+     * Delivers held events of projects which previous owners have left, handed them over or didn't manage to do it in time
+     */
+    private void completeHandovers() {
+        boolean expired = System.currentTimeMillis() >= handoverDeadline;
+        lock.writeLock().lock();
+        try {
+            for (String node : previousNodes) {
+                if (node.equals(nodes.getNodeId()) || handedOver.contains(node))
+                    continue;
+                ClusterNodes.Heartbeat heartbeat = heartbeats.get(node);
+                if (expired || !presentNodes.contains(node) || view.equals(heartbeat.drainedView)) {
+                    if (expired && presentNodes.contains(node))
+                        LOG.warn(format("Webhooks cluster node %s didn't hand over its projects in time, their webhooks may be sent out of order", node));
+                    handedOver.add(node);
+                }
+            }
+            deliverLocally(takeHeld(project -> handedOver.contains(getOwner(previousNodes, project))));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @NotNull
+    private List<AsyncEvent> takeHeld(@NotNull Predicate<String> projects) {
+        List<AsyncEvent> events = new ArrayList<>();
+        synchronized (held) {
+            Iterator<Map.Entry<String, List<AsyncEvent>>> it = held.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, List<AsyncEvent>> entry = it.next();
+                if (projects.test(entry.getKey())) {
+                    events.addAll(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * @return cluster files of this node or null if sharding is disabled or the node id is not configured,
+     * an id generated at startup would make every restart look like a new node joining and the old one leaving,
+     * so the node handles all its events itself
+     */
+    @Nullable
+    static ClusterNodes createNodes(@NotNull ServerPaths serverPaths) {
+        if (!TeamCityProperties.getBoolean(ENABLED_PROPERTY))
+            return null;
+        String nodeId = TeamCityProperties.getProperty(NODE_ID_PROPERTY, "");
+        if (nodeId.trim().isEmpty())
+            nodeId = TeamCityProperties.getProperty(SERVER_NODE_ID_PROPERTY, "");
+        if (nodeId.trim().isEmpty()) {
+            LOG.error(format("Webhooks cluster sharding is enabled by %s, but neither %s nor %s is set, webhooks of all events received by this node are sent by it",
+                    ENABLED_PROPERTY, NODE_ID_PROPERTY, SERVER_NODE_ID_PROPERTY));
+            return null;
+        }
+        return new ClusterNodes(new File(serverPaths.getPluginDataDirectory(), "webhooks/cluster").toPath(), nodeId.trim());
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
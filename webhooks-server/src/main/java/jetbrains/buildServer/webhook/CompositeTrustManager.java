@@ -0,0 +1,66 @@
+package jetbrains.buildServer.webhook;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trusts certificates trusted by JVM or by TeamCity trust store
+ */
+class CompositeTrustManager implements X509TrustManager {
+
+    private final List<X509TrustManager> trustManagers = new ArrayList<>();
+
+    CompositeTrustManager(@Nullable KeyStore trustStore) throws GeneralSecurityException {
+        trustManagers.add(getTrustManager(null));
+        if (trustStore != null)
+            trustManagers.add(getTrustManager(trustStore));
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        throw new CertificateException("Client certificates are not trusted");
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        CertificateException failure = null;
+        for (X509TrustManager trustManager : trustManagers) {
+            try {
+                trustManager.checkServerTrusted(chain, authType);
+                return;
+            } catch (CertificateException e) {
+                failure = e;
+            }
+        }
+        throw failure != null ? failure : new CertificateException("No trust managers available");
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return trustManagers.stream()
+                .flatMap(trustManager -> Arrays.stream(trustManager.getAcceptedIssuers()))
+                .toArray(X509Certificate[]::new);
+    }
+
+    @NotNull
+    private static X509TrustManager getTrustManager(@Nullable KeyStore trustStore) throws GeneralSecurityException {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(trustStore);
+        for (TrustManager trustManager : factory.getTrustManagers()) {
+            if (trustManager instanceof X509TrustManager)
+                return (X509TrustManager) trustManager;
+        }
+        throw new GeneralSecurityException("No X509 trust manager available");
+    }
+}
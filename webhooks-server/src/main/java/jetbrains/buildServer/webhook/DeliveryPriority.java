@@ -0,0 +1,71 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.*;
+
+/**
+ * Priority class of webhooks by their event type, in the descending order. When priority lanes are enabled by {@link #LANES_PROPERTY},
+ * a delivery lane with a backlog sends webhooks of a higher class first, see {@link PartitionedExecutor}.
+ * Every class has a target of the latency from the event to the delivery, which {@link WebhookMetrics} checks deliveries against
+ */
+enum DeliveryPriority {
+    /** outcome of builds */
+    URGENT(5000, BUILD_FINISHED, BUILD_INTERRUPTED, FAILURE_DETECTED, MARKED_AS_SUCCESSFUL),
+    /** progress of running builds and events not listed in other classes */
+    NORMAL(30000, BUILD_STARTED, CHANGES_LOADED, BUILD_PROBLEMS_CHANGED),
+    /** queue and agents churn */
+    BULK(60000, BUILD_TYPE_ADDED_TO_QUEUE, BUILD_REMOVED_FROM_QUEUE, AGENT_REGISTRED, AGENT_UNREGISTERED, AGENT_REMOVED);
+
+    static final String LANES_PROPERTY = "teamcity.webhooks.delivery.priorityLanes";
+    private static final String LATENCY_TARGET_PROPERTY_FORMAT = "teamcity.webhooks.priority.%s.latencyTargetMs";
+
+    private static final Map<String, DeliveryPriority> BY_EVENT = new HashMap<>();
+
+    static {
+        for (DeliveryPriority priority : values()) {
+            for (String event : priority.events) {
+                BY_EVENT.put(event, priority);
+            }
+        }
+    }
+
+    private final long defaultLatencyTargetMillis;
+    private final List<String> events;
+    private final String latencyTargetProperty;
+
+    DeliveryPriority(long defaultLatencyTargetMillis, String... events) {
+        this.defaultLatencyTargetMillis = defaultLatencyTargetMillis;
+        this.events = Collections.unmodifiableList(Arrays.asList(events));
+        this.latencyTargetProperty = String.format(LATENCY_TARGET_PROPERTY_FORMAT, name().toLowerCase());
+    }
+
+    @NotNull
+    static DeliveryPriority of(@NotNull String eventType) {
+        return BY_EVENT.getOrDefault(eventType, NORMAL);
+    }
+
+    /**
+     * @return priority of the delivery lane task with the given priority, the same for all tasks unless priority lanes are enabled
+     */
+    @NotNull
+    DeliveryPriority getLanePriority() {
+        return TeamCityProperties.getBoolean(LANES_PROPERTY) ? this : NORMAL;
+    }
+
+    @NotNull
+    DeliveryPriority max(@NotNull DeliveryPriority other) {
+        return compareTo(other) <= 0 ? this : other;
+    }
+
+    long getLatencyTargetMillis() {
+        return TeamCityProperties.getLong(latencyTargetProperty, defaultLatencyTargetMillis);
+    }
+}
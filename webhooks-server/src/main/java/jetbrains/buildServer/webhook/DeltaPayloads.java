@@ -0,0 +1,153 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.lang.String.format;
+
+/**
+ * Last object state sent to endpoints with delta payloads enabled, see {@link WebhookEndpoint#isDelta()}.
+ * The first webhook of an object is a snapshot with the whole object in {@code payload}, the following ones carry
+ * a JSON merge patch against the previous state in {@code patch}, see {@link JsonMergePatch}. Every webhook has a {@code sequence}
+ * number growing by one per object, a receiver which missed a webhook responds with 409 Conflict and gets the snapshot instead.
+ * A state becomes the base of the following patches only once the receiver accepts the webhook carrying it, see {@link #delivered},
+ * so webhooks which failed or were dropped don't force a resync. Webhooks produced while the previous one is still in flight
+ * are patches against the same base with the same sequence, and the receiver which already applied the previous one asks for a resync.
+ * States are kept for the limited number of recently delivered objects, the least recently used are evicted and start with a snapshot again
+ */
+class DeltaPayloads {
+
+    static final String MAX_OBJECTS_PROPERTY = "teamcity.webhooks.delta.maxObjects";
+
+    private static final String PAYLOAD_MEMBER = "\"payload\"";
+
+    private final int maxSize;
+    private final Map<Key, State> states;
+
+    DeltaPayloads(int maxSize) {
+        this.maxSize = maxSize;
+        this.states = new LinkedHashMap<Key, State>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, State> eldest) {
+                return size() > DeltaPayloads.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param json payload of the event, whole JSON document is used as the object state if it has no {@code payload} member
+     * @return patch of the event object against its last state delivered to the endpoint
+     */
+    @NotNull
+    Delta next(@NotNull WebhookEndpoint endpoint, @NotNull String webhooksUrl, @NotNull AsyncEvent event, @NotNull String json) {
+        final Key key = new Key(endpoint.getProjectKey(), endpoint.getName(), webhooksUrl, RestApiProducer.EventType.find(event.getEventType()), event.getObjectId());
+        Object object = JsonMergePatch.parse(json);
+        if (object instanceof Map && ((Map<?, ?>) object).containsKey(PAYLOAD_MEMBER))
+            object = ((Map<?, ?>) object).get(PAYLOAD_MEMBER);
+        final String objectJson = JsonMergePatch.toJson(object);
+        State base;
+        synchronized (states) {
+            base = states.get(key);
+        }
+        long sequence = base == null ? 1 : base.sequence + 1;
+        WebhookPayload snapshot = WebhookPayload.of(envelope(event, sequence, "payload", objectJson));
+        WebhookPayload patch = base == null
+                ? null
+                : WebhookPayload.of(envelope(event, sequence, "patch", JsonMergePatch.toJson(JsonMergePatch.diff(JsonMergePatch.parse(base.json), object))));
+        return new Delta(key, new State(sequence, objectJson), patch, snapshot);
+    }
+
+    /**
+     * Makes the state carried by {@param delta} the base of the following patches, unless a state with the same or a later sequence
+     * is already delivered, e.g. when a retry of a webhook is accepted after a webhook produced while the retried one was in flight
+     */
+    void delivered(@NotNull Delta delta) {
+        synchronized (states) {
+            State base = states.get(delta.key);
+            if (base == null || base.sequence < delta.state.sequence)
+                states.put(delta.key, delta.state);
+        }
+    }
+
+    @NotNull
+    private static String envelope(@NotNull AsyncEvent event, long sequence, @NotNull String member, @NotNull String json) {
+        return format("{ \"eventType\" : \"%s\", \"objectId\" : %d, \"sequence\" : %d, \"%s\" : %s }", event.getEventType(), event.getObjectId(), sequence, member, json);
+    }
+
+    static class Delta {
+        private final Key key;
+        private final State state;
+        /** merge patch against the delivered state or null if no state of the object was delivered */
+        private final WebhookPayload patch;
+        private final WebhookPayload snapshot;
+
+        private Delta(@NotNull Key key, @NotNull State state, @Nullable WebhookPayload patch, @NotNull WebhookPayload snapshot) {
+            this.key = key;
+            this.state = state;
+            this.patch = patch;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * @return payload which should be sent
+         */
+        @NotNull
+        WebhookPayload getPayload() {
+            return patch != null ? patch : snapshot;
+        }
+
+        /**
+         * @return payload which should be sent if the receiver asks for a resync, or null if the payload is already a snapshot
+         */
+        @Nullable
+        WebhookPayload getResyncPayload() {
+            return patch != null ? snapshot : null;
+        }
+    }
+
+    private static class State {
+        private final long sequence;
+        private final String json;
+
+        private State(long sequence, String json) {
+            this.sequence = sequence;
+            this.json = json;
+        }
+    }
+
+    private static class Key {
+        private final String projectKey;
+        private final String endpointName;
+        private final String webhooksUrl;
+        /** ids of objects of different types, e.g. agents and builds, may be equal */
+        private final RestApiProducer.EventType objectType;
+        private final Long objectId;
+
+        private Key(String projectKey, String endpointName, String webhooksUrl, RestApiProducer.EventType objectType, Long objectId) {
+            this.projectKey = projectKey;
+            this.endpointName = endpointName;
+            this.webhooksUrl = webhooksUrl;
+            this.objectType = objectType;
+            this.objectId = objectId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return projectKey.equals(key.projectKey) && endpointName.equals(key.endpointName) && webhooksUrl.equals(key.webhooksUrl)
+                    && objectType == key.objectType && Objects.equals(objectId, key.objectId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(projectKey, endpointName, webhooksUrl, objectType, objectId);
+        }
+    }
+}
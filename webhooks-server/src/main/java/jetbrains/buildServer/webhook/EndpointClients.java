@@ -0,0 +1,268 @@
+package jetbrains.buildServer.webhook;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP clients with keep-alive connection pools, one per receiver scheme, host and port, so requests to the same receiver reuse
+ * connections instead of making new TLS handshakes. Clients which weren't used for {@link #IDLE_TIMEOUT_PROPERTY} milliseconds are closed. All clients share the SSL context trusting TeamCity trust store,
+ * it's rebuilt only when the trust store content changes, which is checked at most every {@link #TRUST_STORE_CHECK_INTERVAL_PROPERTY} milliseconds.
+ * Clients created with the previous SSL context are closed once requests they may perform are timed out
+ */
+class EndpointClients {
+
+    private static final Logger LOG = Logger.getInstance(EndpointClients.class.getName());
+
+    static final String CONNECT_TIMEOUT_PROPERTY = "teamcity.webhooks.http.connectTimeoutMs";
+    static final String READ_TIMEOUT_PROPERTY = "teamcity.webhooks.http.readTimeoutMs";
+    static final String IDLE_TIMEOUT_PROPERTY = "teamcity.webhooks.http.idleConnectionTimeoutMs";
+    static final String TRUST_STORE_CHECK_INTERVAL_PROPERTY = "teamcity.webhooks.http.trustStoreCheckIntervalMs";
+
+    private static final int DEFAULT_TIMEOUT_MILLIS = 60 * 1000;
+
+    private final SSLTrustStoreProvider sslTrustStoreProvider;
+    private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+    private final List<Client> retired = Collections.synchronizedList(new ArrayList<>());
+    private final Object sslLock = new Object();
+    private volatile SslState ssl;
+
+    EndpointClients(@NotNull SSLTrustStoreProvider sslTrustStoreProvider) {
+        this.sslTrustStoreProvider = sslTrustStoreProvider;
+    }
+
+    @NotNull
+    CloseableHttpClient get(@NotNull URI uri) {
+        SslState sslState = getSslState();
+        String key = getKey(uri);
+        Client client = clients.get(key);
+        if (client == null || client.ssl != sslState) {
+            synchronized (clients) {
+                client = clients.get(key);
+                if (client == null || client.ssl != sslState) {
+                    Client previous = client;
+                    client = new Client(sslState);
+                    clients.put(key, client);
+                    if (previous != null)
+                        retire(previous);
+                }
+            }
+        }
+        client.lastUsedAt = System.currentTimeMillis();
+        return client.httpClient;
+    }
+
+    int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Closes expired and idle connections, retires idle clients and closes clients retired long enough ago, should be called periodically
+     */
+    void maintain() {
+        long idleTimeout = TeamCityProperties.getLong(IDLE_TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MILLIS);
+        long idleBefore = System.currentTimeMillis() - idleTimeout;
+        for (Map.Entry<String, Client> entry : clients.entrySet()) {
+            Client client = entry.getValue();
+            if (client.lastUsedAt < idleBefore) {
+                // a request may have got the client just before, so it's closed once the request is timed out
+                synchronized (clients) {
+                    if (clients.remove(entry.getKey(), client))
+                        retire(client);
+                }
+                continue;
+            }
+            client.connectionManager.closeExpiredConnections();
+            client.connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }
+        long closeBefore = System.currentTimeMillis() - getConnectTimeout() - getReadTimeout();
+        synchronized (retired) {
+            Iterator<Client> it = retired.iterator();
+            while (it.hasNext()) {
+                Client client = it.next();
+                if (client.retiredAt < closeBefore) {
+                    it.remove();
+                    client.close();
+                }
+            }
+        }
+    }
+
+    void close() {
+        synchronized (clients) {
+            clients.values().forEach(Client::close);
+            clients.clear();
+        }
+        synchronized (retired) {
+            retired.forEach(Client::close);
+            retired.clear();
+        }
+    }
+
+    private void retire(@NotNull Client client) {
+        client.retiredAt = System.currentTimeMillis();
+        retired.add(client);
+    }
+
+    /**
+     * @return scheme, host and port of the uri, connections of the pool can be reused only for requests to the same ones
+     */
+    @NotNull
+    private static String getKey(@NotNull URI uri) {
+        HttpHost host = URIUtils.extractHost(uri);
+        return host == null ? uri.toString() : host.getSchemeName() + "://" + host.getHostName().toLowerCase(Locale.ROOT) + ":" + host.getPort();
+    }
+
+    @NotNull
+    private SslState getSslState() {
+        SslState current = ssl;
+        long now = System.currentTimeMillis();
+        if (current != null && now - current.checkedAt < TeamCityProperties.getLong(TRUST_STORE_CHECK_INTERVAL_PROPERTY, 60 * 1000))
+            return current;
+        synchronized (sslLock) {
+            current = ssl;
+            if (current != null && now - current.checkedAt < TeamCityProperties.getLong(TRUST_STORE_CHECK_INTERVAL_PROPERTY, 60 * 1000))
+                return current;
+            KeyStore trustStore = sslTrustStoreProvider.getTrustStore();
+            List<String> fingerprint = fingerprint(trustStore);
+            if (current != null && current.fingerprint.equals(fingerprint)) {
+                current.checkedAt = now;
+                return current;
+            }
+            ssl = current = new SslState(createSslContext(trustStore), fingerprint, now);
+            return current;
+        }
+    }
+
+    @Nullable
+    private static SSLContext createSslContext(@Nullable KeyStore trustStore) {
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[]{new CompositeTrustManager(trustStore)}, null);
+            return sslContext;
+        } catch (GeneralSecurityException e) {
+            LOG.warnAndDebugDetails("Failed to load TeamCity trust store, only JVM trusted certificates will be trusted by webhooks", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return aliases and certificates of the trust store, which change whenever a certificate is added, removed or replaced
+     */
+    @NotNull
+    private static List<String> fingerprint(@Nullable KeyStore trustStore) {
+        if (trustStore == null)
+            return Collections.emptyList();
+        List<String> fingerprint = new ArrayList<>();
+        try {
+            for (String alias : Collections.list(trustStore.aliases())) {
+                Certificate certificate = trustStore.getCertificate(alias);
+                fingerprint.add(alias + ":" + (certificate == null ? 0 : Arrays.hashCode(certificate.getEncoded())));
+            }
+        } catch (GeneralSecurityException e) {
+            LOG.warnAndDebugDetails("Failed to read TeamCity trust store", e);
+        }
+        Collections.sort(fingerprint);
+        return fingerprint;
+    }
+
+    private static int getConnectTimeout() {
+        return TeamCityProperties.getInteger(CONNECT_TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    private static int getReadTimeout() {
+        return TeamCityProperties.getInteger(READ_TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    @Nullable
+    private static String[] splitProperty(@NotNull String name) {
+        String value = System.getProperty(name);
+        return value == null || value.trim().isEmpty() ? null : value.trim().split("\\s*,\\s*");
+    }
+
+    private static class SslState {
+        private final SSLContext context;
+        private final List<String> fingerprint;
+        private volatile long checkedAt;
+
+        private SslState(@Nullable SSLContext context, @NotNull List<String> fingerprint, long checkedAt) {
+            this.context = context;
+            this.fingerprint = fingerprint;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    private static class Client {
+        private final SslState ssl;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final CloseableHttpClient httpClient;
+        private volatile long lastUsedAt;
+        private volatile long retiredAt;
+
+        private Client(@NotNull SslState ssl) {
+            this.ssl = ssl;
+            lastUsedAt = System.currentTimeMillis();
+            SSLConnectionSocketFactory sslSocketFactory = ssl.context == null
+                    ? SSLConnectionSocketFactory.getSystemSocketFactory()
+                    : new SSLConnectionSocketFactory(ssl.context, splitProperty("https.protocols"), splitProperty("https.cipherSuites"),
+                    SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+            Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", sslSocketFactory)
+                    .build();
+            int maxConnections = Math.max(1, TeamCityProperties.getInteger(EndpointHealth.MAX_CONCURRENCY_PROPERTY, 4));
+            connectionManager = new PoolingHttpClientConnectionManager(registry);
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnections);
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(getConnectTimeout())
+                    .setConnectionRequestTimeout(getConnectTimeout())
+                    .setSocketTimeout(getReadTimeout())
+                    .build();
+            httpClient = HttpClients.custom()
+                    .useSystemProperties()
+                    .disableContentCompression()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .build();
+        }
+
+        void close() {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                LOG.warnAndDebugDetails("Failed to close webhooks HTTP client", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Health of a single webhooks receiver: a circuit breaker and a bulkhead limiting concurrent requests.
+ * <p>
+ * After {@link #FAILURE_THRESHOLD_PROPERTY} consecutive failures the circuit is opened and no requests are sent
+ * for {@link #OPEN_DURATION_PROPERTY} milliseconds. Then the only probe request is allowed:
+ * the circuit is closed if it succeeds and opened again otherwise.
+ * No more than {@link #MAX_CONCURRENCY_PROPERTY} requests are sent to the receiver at the same time.
+ */
+class EndpointHealth {
+
+    static final String FAILURE_THRESHOLD_PROPERTY = "teamcity.webhooks.circuitBreaker.failureThreshold";
+    static final String OPEN_DURATION_PROPERTY = "teamcity.webhooks.circuitBreaker.openMs";
+    static final String MAX_CONCURRENCY_PROPERTY = "teamcity.webhooks.endpoint.maxConcurrency";
+
+    /** delay before the next attempt of a request which didn't fit into the bulkhead */
+    static final long BULKHEAD_DELAY_MILLIS = 200;
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final Semaphore bulkhead = new Semaphore(Math.max(1, TeamCityProperties.getInteger(MAX_CONCURRENCY_PROPERTY, 4)));
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInProgress;
+    private volatile boolean gzipRejected;
+
+    /**
+     * Acquires permission to send a request, which should be returned by {@link #release(boolean)}
+     * @return 0 if request can be sent or delay in milliseconds after which request should be tried again
+     */
+    long tryAcquire() {
+        synchronized (this) {
+            if (state == State.OPEN) {
+                long openDuration = getOpenDuration();
+                long elapsed = System.currentTimeMillis() - openedAt;
+                if (elapsed < openDuration)
+                    return openDuration - elapsed;
+                state = State.HALF_OPEN;
+            }
+            if (state == State.HALF_OPEN) {
+                if (probeInProgress)
+                    return BULKHEAD_DELAY_MILLIS;
+                probeInProgress = true;
+            }
+        }
+        if (bulkhead.tryAcquire())
+            return 0;
+        synchronized (this) {
+            probeInProgress = false;
+        }
+        return BULKHEAD_DELAY_MILLIS;
+    }
+
+    /**
+     * @param failed true if the request failed because of the receiver, e.g. it's not available or responded with 5xx code
+     */
+    void release(boolean failed) {
+        bulkhead.release();
+        synchronized (this) {
+            probeInProgress = false;
+            if (!failed) {
+                consecutiveFailures = 0;
+                state = State.CLOSED;
+                return;
+            }
+            consecutiveFailures++;
+            int threshold = TeamCityProperties.getInteger(FAILURE_THRESHOLD_PROPERTY, 5);
+            if (state == State.HALF_OPEN || (threshold > 0 && consecutiveFailures >= threshold)) {
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Returns permission without affecting the receiver health, e.g. if request was not sent at all
+     */
+    void releaseUnused() {
+        bulkhead.release();
+        synchronized (this) {
+            probeInProgress = false;
+        }
+    }
+
+    /**
+     * @return true if the receiver rejected compressed request, so requests to it shouldn't be compressed anymore
+     */
+    boolean isGzipRejected() {
+        return gzipRejected;
+    }
+
+    void rejectGzip() {
+        gzipRejected = true;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private static long getOpenDuration() {
+        return TeamCityProperties.getLong(OPEN_DURATION_PROPERTY, 30 * 1000);
+    }
+}
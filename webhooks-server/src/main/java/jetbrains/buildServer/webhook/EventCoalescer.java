@@ -0,0 +1,111 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pending webhooks of endpoints with coalescing enabled, see {@link WebhookEndpoint#isCoalescing()}.
+ * Payloads are rendered from the current state of the event object when the webhook is sent, so a pending webhook
+ * of the same event type and object already carries everything a later event would, and the later event is dropped.
+ * An event superseding other event types, see {@link WebhookEndpoint#getSuperseded(String)}, cancels their pending webhooks
+ * of the same object. Objects are identified by their type and id, since ids of objects of different types may be equal. A webhook stops being pending once its delivery lane takes it for sending
+ */
+class EventCoalescer {
+
+    private final ConcurrentHashMap<Key, Map<String, Ticket>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @return ticket to {@link #take(Ticket)} before sending the webhook,
+     * or null if a webhook of the same event type and object is already pending
+     */
+    @Nullable
+    Ticket offer(@NotNull WebhookEndpoint endpoint, @NotNull String webhooksUrl, @NotNull AsyncEvent event) {
+        final Key key = new Key(endpoint.getProjectKey(), endpoint.getName(), webhooksUrl, RestApiProducer.EventType.find(event.getEventType()), event.getObjectId());
+        final String eventType = event.getEventType();
+        final Ticket ticket = new Ticket(key, eventType);
+        final boolean[] accepted = new boolean[1];
+        pending.compute(key, (k, tickets) -> {
+            if (tickets == null)
+                tickets = new HashMap<>(4);
+            if (tickets.containsKey(eventType))
+                return tickets;
+            for (String superseded : endpoint.getSuperseded(eventType)) {
+                tickets.remove(superseded);
+            }
+            tickets.put(eventType, ticket);
+            accepted[0] = true;
+            return tickets;
+        });
+        return accepted[0] ? ticket : null;
+    }
+
+    /**
+     * @return true if the webhook should be sent, false if it was superseded while pending
+     */
+    boolean take(@NotNull Ticket ticket) {
+        final boolean[] taken = new boolean[1];
+        pending.computeIfPresent(ticket.key, (k, tickets) -> {
+            if (tickets.get(ticket.eventType) == ticket) {
+                tickets.remove(ticket.eventType);
+                taken[0] = true;
+            }
+            return tickets.isEmpty() ? null : tickets;
+        });
+        return taken[0];
+    }
+
+    /**
+     * Stops the webhook from being pending when it won't be sent, e.g. its delivery lane rejected or dropped it,
+     * so later events of the object are not coalesced into it
+     */
+    void release(@NotNull Ticket ticket) {
+        take(ticket);
+    }
+
+    static class Ticket {
+        private final Key key;
+        private final String eventType;
+
+        private Ticket(Key key, String eventType) {
+            this.key = key;
+            this.eventType = eventType;
+        }
+    }
+
+    private static class Key {
+        private final String projectKey;
+        private final String endpointName;
+        private final String webhooksUrl;
+        /** ids of objects of different types, e.g. agents and builds, may be equal */
+        private final RestApiProducer.EventType objectType;
+        private final Long objectId;
+
+        private Key(String projectKey, String endpointName, String webhooksUrl, RestApiProducer.EventType objectType, Long objectId) {
+            this.projectKey = projectKey;
+            this.endpointName = endpointName;
+            this.webhooksUrl = webhooksUrl;
+            this.objectType = objectType;
+            this.objectId = objectId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return projectKey.equals(key.projectKey) && endpointName.equals(key.endpointName) && webhooksUrl.equals(key.webhooksUrl)
+                    && objectType == key.objectType && Objects.equals(objectId, key.objectId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(projectKey, endpointName, webhooksUrl, objectType, objectId);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package jetbrains.buildServer.webhook;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * Predicate deciding if an event should be sent to the endpoint, compiled once from an expression like
+ * {@code buildType:Project_Build,Project_Deploy; branch:<default>,release/*; status:FAILURE}.
+ * <p>
+ * Conditions are separated by {@code ;} and all of them should match, values of a condition are separated by {@code ,}
+ * and any of them should match. Values may contain {@code *} wildcard. A condition on an attribute the event object doesn't have,
+ * e.g. on the status of a queued build, doesn't match
+ */
+class EventFilter {
+
+    static final EventFilter ALL = new EventFilter(Collections.emptyList());
+
+    static final String DEFAULT_BRANCH = "<default>";
+
+    /**
+     * Attributes of the event object a filter is evaluated against, see {@link EventSubjects}
+     */
+    interface Subject {
+        @Nullable
+        String getBuildTypeId();
+
+        /**
+         * @return branch display name or null if the build has no branch
+         */
+        @Nullable
+        String getBranch();
+
+        boolean isDefaultBranch();
+
+        @Nullable
+        String getStatus();
+
+        @Nullable
+        Integer getAgentPoolId();
+
+        @Nullable
+        String getAgentPoolName();
+
+        @NotNull
+        Collection<String> getTags();
+    }
+
+    enum Attribute {
+        BUILD_TYPE("buildType"),
+        BRANCH("branch"),
+        STATUS("status"),
+        AGENT_POOL("agentPool"),
+        TAG("tag");
+
+        private final String key;
+
+        Attribute(String key) {
+            this.key = key;
+        }
+
+        @Nullable
+        static Attribute fromKey(@NotNull String key) {
+            for (Attribute attribute : values()) {
+                if (attribute.key.equalsIgnoreCase(key))
+                    return attribute;
+            }
+            return null;
+        }
+    }
+
+    private final List<Condition> conditions;
+
+    private EventFilter(@NotNull List<Condition> conditions) {
+        this.conditions = conditions;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    @NotNull
+    static EventFilter compile(@NotNull String expression) {
+        List<Condition> conditions = new ArrayList<>();
+        for (String part : expression.split(";")) {
+            if (part.trim().isEmpty())
+                continue;
+            int colon = part.indexOf(':');
+            if (colon < 0)
+                throw new IllegalArgumentException(format("Condition '%s' should be in the form attribute:value", part.trim()));
+            String key = part.substring(0, colon).trim();
+            Attribute attribute = Attribute.fromKey(key);
+            if (attribute == null)
+                throw new IllegalArgumentException(format("Unknown attribute '%s'", key));
+            List<Pattern> values = new ArrayList<>();
+            for (String value : part.substring(colon + 1).split(",")) {
+                if (!value.trim().isEmpty())
+                    values.add(toPattern(value.trim()));
+            }
+            if (values.isEmpty())
+                throw new IllegalArgumentException(format("No values of attribute '%s'", key));
+            conditions.add(new Condition(attribute, values));
+        }
+        return conditions.isEmpty() ? ALL : new EventFilter(Collections.unmodifiableList(conditions));
+    }
+
+    /**
+     * @return true if all events match the filter and so the event object isn't needed to evaluate it
+     */
+    boolean isAll() {
+        return conditions.isEmpty();
+    }
+
+    boolean matches(@NotNull Subject subject) {
+        for (Condition condition : conditions) {
+            if (!condition.matches(subject))
+                return false;
+        }
+        return true;
+    }
+
+    @NotNull
+    private static Pattern toPattern(@NotNull String value) {
+        String[] parts = value.split("\\*", -1);
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0)
+                regex.append(".*");
+            regex.append(Pattern.quote(parts[i]));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    private static class Condition {
+        private final Attribute attribute;
+        private final List<Pattern> values;
+
+        private Condition(@NotNull Attribute attribute, @NotNull List<Pattern> values) {
+            this.attribute = attribute;
+            this.values = values;
+        }
+
+        boolean matches(@NotNull Subject subject) {
+            switch (attribute) {
+                case BUILD_TYPE:
+                    return matchesAny(subject.getBuildTypeId());
+                case BRANCH:
+                    return (subject.isDefaultBranch() && matchesAny(DEFAULT_BRANCH)) || matchesAny(subject.getBranch());
+                case STATUS:
+                    return matchesAny(subject.getStatus());
+                case AGENT_POOL:
+                    Integer poolId = subject.getAgentPoolId();
+                    return (poolId != null && matchesAny(String.valueOf(poolId))) || matchesAny(subject.getAgentPoolName());
+                case TAG:
+                    for (String tag : subject.getTags()) {
+                        if (matchesAny(tag))
+                            return true;
+                    }
+                    return false;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean matchesAny(@Nullable String actual) {
+            if (actual == null)
+                return false;
+            for (Pattern value : values) {
+                if (value.matcher(actual).matches())
+                    return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.BuildAgentManager;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildPromotionManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.serverSide.agentPools.AgentPool;
+import jetbrains.buildServer.serverSide.agentPools.AgentPoolManager;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Resolves the object of an event in the server model to evaluate {@link EventFilter}s against it
+ * before the webhook payload is generated, and to tell whether a representation rendered for an earlier event is still current
+ */
+@Component
+public class EventSubjects {
+
+    private final BuildPromotionManager buildPromotionManager;
+    private final BuildAgentManager buildAgentManager;
+    private final AgentPoolManager agentPoolManager;
+
+    public EventSubjects(BuildPromotionManager buildPromotionManager,
+                         BuildAgentManager buildAgentManager,
+                         AgentPoolManager agentPoolManager) {
+        this.buildPromotionManager = buildPromotionManager;
+        this.buildAgentManager = buildAgentManager;
+        this.agentPoolManager = agentPoolManager;
+    }
+
+    /**
+     * @return the event object or null if the event is not supported or its object is not found
+     */
+    @Nullable
+    EventFilter.Subject get(@NotNull AsyncEvent event) {
+        RestApiProducer.EventType eventType = RestApiProducer.EventType.find(event.getEventType());
+        if (eventType == null)
+            return null;
+        switch (eventType) {
+            case AGENT:
+                SBuildAgent agent = buildAgentManager.findAgentById(event.getObjectId().intValue(), true);
+                return agent == null ? null : new AgentSubject(agent);
+            case BUILD:
+                BuildPromotion promotion = buildPromotionManager.findPromotionById(event.getObjectId());
+                return promotion == null ? null : new BuildSubject(promotion);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return stamp of the event object state which changes when the object is modified, or null if the object is not found.
+     * The stamp of a build covers its state, status text and count of problems, the stamp of an agent covers its state
+     * and the last communication time
+     */
+    @Nullable
+    Object getVersion(@NotNull AsyncEvent event) {
+        RestApiProducer.EventType eventType = RestApiProducer.EventType.find(event.getEventType());
+        if (eventType == null)
+            return null;
+        switch (eventType) {
+            case AGENT:
+                SBuildAgent agent = buildAgentManager.findAgentById(event.getObjectId().intValue(), true);
+                return agent == null ? null : Arrays.asList(event.getEventType(), agent.isRegistered(), agent.isEnabled(), agent.isAuthorized(),
+                        agent.getAgentPoolId(), agent.getLastCommunicationTimestamp());
+            case BUILD:
+                BuildPromotion promotion = buildPromotionManager.findPromotionById(event.getObjectId());
+                if (promotion == null)
+                    return null;
+                SBuild build = promotion.getAssociatedBuild();
+                if (build == null)
+                    return Collections.singletonList(event.getEventType());
+                return Arrays.asList(event.getEventType(), build.isFinished(), build.getBuildStatus(), build.getStatusDescriptor().getText(),
+                        build.getFailureReasons().size());
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private String getAgentPoolName(int agentPoolId) {
+        AgentPool pool = agentPoolManager.findAgentPoolById(agentPoolId);
+        return pool == null ? null : pool.getName();
+    }
+
+    private class AgentSubject implements EventFilter.Subject {
+        private final SBuildAgent agent;
+
+        private AgentSubject(@NotNull SBuildAgent agent) {
+            this.agent = agent;
+        }
+
+        @Nullable
+        @Override
+        public String getBuildTypeId() {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public String getBranch() {
+            return null;
+        }
+
+        @Override
+        public boolean isDefaultBranch() {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        public String getStatus() {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Integer getAgentPoolId() {
+            return agent.getAgentPoolId();
+        }
+
+        @Nullable
+        @Override
+        public String getAgentPoolName() {
+            return EventSubjects.this.getAgentPoolName(agent.getAgentPoolId());
+        }
+
+        @NotNull
+        @Override
+        public Collection<String> getTags() {
+            return Collections.emptyList();
+        }
+    }
+
+    private class BuildSubject implements EventFilter.Subject {
+        private final BuildPromotion promotion;
+        private final SBuild build;
+
+        private BuildSubject(@NotNull BuildPromotion promotion) {
+            this.promotion = promotion;
+            this.build = promotion.getAssociatedBuild();
+        }
+
+        @Nullable
+        @Override
+        public String getBuildTypeId() {
+            return promotion.getBuildTypeExternalId();
+        }
+
+        @Nullable
+        @Override
+        public String getBranch() {
+            Branch branch = promotion.getBranch();
+            return branch == null ? null : branch.getDisplayName();
+        }
+
+        /**
+         * Builds of configurations without branches are considered to be built in the default branch
+         */
+        @Override
+        public boolean isDefaultBranch() {
+            Branch branch = promotion.getBranch();
+            return branch == null || branch.isDefaultBranch();
+        }
+
+        @Nullable
+        @Override
+        public String getStatus() {
+            return build == null ? null : build.getBuildStatus().getText();
+        }
+
+        @Nullable
+        @Override
+        public Integer getAgentPoolId() {
+            SBuildAgent agent = build == null ? null : build.getAgent();
+            return agent == null ? null : agent.getAgentPoolId();
+        }
+
+        @Nullable
+        @Override
+        public String getAgentPoolName() {
+            Integer agentPoolId = getAgentPoolId();
+            return agentPoolId == null ? null : EventSubjects.this.getAgentPoolName(agentPoolId);
+        }
+
+        @NotNull
+        @Override
+        public Collection<String> getTags() {
+            return build == null ? Collections.emptyList() : build.getTags();
+        }
+    }
+}
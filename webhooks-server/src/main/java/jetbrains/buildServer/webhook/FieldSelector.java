@@ -0,0 +1,95 @@
+package jetbrains.buildServer.webhook;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled TeamCity REST API fields specification, like {@code id,number,agent(id,name)}.
+ * Optional {@code fields=} prefix is allowed, so the same project parameter value can be used with both producers
+ */
+class FieldSelector {
+
+    static final FieldSelector EMPTY = new FieldSelector(Collections.emptyMap());
+
+    private static final String PREFIX = "fields=";
+
+    private final Map<String, FieldSelector> fields;
+
+    private FieldSelector(@NotNull Map<String, FieldSelector> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the specification is malformed
+     */
+    @NotNull
+    static FieldSelector parse(@NotNull String specification) {
+        String spec = specification.trim();
+        if (spec.startsWith(PREFIX))
+            spec = spec.substring(PREFIX.length());
+        if (spec.isEmpty())
+            return EMPTY;
+        Parser parser = new Parser(spec);
+        FieldSelector selector = parser.parseList();
+        if (parser.pos != spec.length())
+            throw new IllegalArgumentException("Unexpected '" + spec.charAt(parser.pos) + "' at position " + parser.pos + " of fields " + specification);
+        return selector;
+    }
+
+    boolean isEmpty() {
+        return fields.isEmpty();
+    }
+
+    @NotNull
+    Set<String> getNames() {
+        return fields.keySet();
+    }
+
+    /**
+     * @return selector of nested object fields or {@link #EMPTY} if the field is selected without nested fields
+     */
+    @Nullable
+    FieldSelector get(@NotNull String name) {
+        return fields.get(name);
+    }
+
+    private static class Parser {
+        private final String spec;
+        private int pos;
+
+        private Parser(String spec) {
+            this.spec = spec;
+        }
+
+        private FieldSelector parseList() {
+            Map<String, FieldSelector> fields = new LinkedHashMap<>();
+            while (true) {
+                int start = pos;
+                while (pos < spec.length() && "(),".indexOf(spec.charAt(pos)) < 0)
+                    pos++;
+                String name = spec.substring(start, pos).trim();
+                if (name.isEmpty())
+                    throw new IllegalArgumentException("Empty field name at position " + start + " of fields " + spec);
+                FieldSelector nested = EMPTY;
+                if (pos < spec.length() && spec.charAt(pos) == '(') {
+                    pos++;
+                    nested = parseList();
+                    if (pos >= spec.length() || spec.charAt(pos) != ')')
+                        throw new IllegalArgumentException("Missing ')' in fields " + spec);
+                    pos++;
+                }
+                fields.put(name, nested);
+                if (pos < spec.length() && spec.charAt(pos) == ',') {
+                    pos++;
+                    continue;
+                }
+                return new FieldSelector(Collections.unmodifiableMap(fields));
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package jetbrains.buildServer.webhook;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * JSON merge patch, see RFC 7386, between two JSON documents. Documents are parsed into maps for objects and lists for arrays,
+ * while member names and other values are kept as their JSON text, so they are compared and written back without decoding.
+ * As defined by the RFC, arrays are replaced as a whole and a member changed to null is indistinguishable from a removed one
+ */
+class JsonMergePatch {
+
+    private static final String NULL = "null";
+
+    private JsonMergePatch() {
+    }
+
+    /**
+     * @return {@link Map} of member names to values for an object, {@link List} for an array, JSON text for other values
+     * @throws IllegalArgumentException if {@param json} is not a valid JSON document
+     */
+    @NotNull
+    static Object parse(@NotNull String json) {
+        Parser parser = new Parser(json);
+        Object value = parser.value();
+        parser.skipWhitespace();
+        if (parser.pos < json.length())
+            throw parser.error("end of document");
+        return value;
+    }
+
+    /**
+     * @return merge patch transforming {@param source} into {@param target}, an empty object if they are equal
+     */
+    @NotNull
+    static Object diff(@NotNull Object source, @NotNull Object target) {
+        if (!(source instanceof Map) || !(target instanceof Map))
+            return target;
+        Map<?, ?> sourceMembers = (Map<?, ?>) source;
+        Map<?, ?> targetMembers = (Map<?, ?>) target;
+        Map<Object, Object> patch = new LinkedHashMap<>();
+        for (Object name : sourceMembers.keySet()) {
+            if (!targetMembers.containsKey(name))
+                patch.put(name, NULL);
+        }
+        for (Map.Entry<?, ?> member : targetMembers.entrySet()) {
+            Object sourceValue = sourceMembers.get(member.getKey());
+            Object targetValue = member.getValue();
+            if (sourceValue == null) {
+                patch.put(member.getKey(), targetValue);
+            } else if (!sourceValue.equals(targetValue)) {
+                patch.put(member.getKey(), sourceValue instanceof Map && targetValue instanceof Map ? diff(sourceValue, targetValue) : targetValue);
+            }
+        }
+        return patch;
+    }
+
+    @NotNull
+    static String toJson(@NotNull Object value) {
+        StringBuilder json = new StringBuilder();
+        write(value, json);
+        return json.toString();
+    }
+
+    private static void write(@NotNull Object value, @NotNull StringBuilder json) {
+        if (value instanceof Map) {
+            json.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> member : ((Map<?, ?>) value).entrySet()) {
+                if (!first)
+                    json.append(',');
+                json.append(member.getKey()).append(':');
+                write(member.getValue(), json);
+                first = false;
+            }
+            json.append('}');
+        } else if (value instanceof List) {
+            json.append('[');
+            List<?> items = (List<?>) value;
+            for (int i = 0; i < items.size(); i++) {
+                if (i > 0)
+                    json.append(',');
+                write(items.get(i), json);
+            }
+            json.append(']');
+        } else {
+            json.append(value);
+        }
+    }
+
+    private static class Parser {
+        private final String json;
+        private int pos;
+
+        private Parser(String json) {
+            this.json = json;
+        }
+
+        @NotNull
+        private Object value() {
+            skipWhitespace();
+            if (pos >= json.length())
+                throw error("value");
+            char c = json.charAt(pos);
+            if (c == '{')
+                return object();
+            if (c == '[')
+                return array();
+            int start = pos;
+            if (c == '"') {
+                skipString();
+            } else {
+                while (pos < json.length() && ",:}] \t\r\n".indexOf(json.charAt(pos)) < 0) {
+                    pos++;
+                }
+                if (pos == start)
+                    throw error("value");
+            }
+            return json.substring(start, pos);
+        }
+
+        @NotNull
+        private Map<String, Object> object() {
+            Map<String, Object> members = new LinkedHashMap<>();
+            pos++;
+            skipWhitespace();
+            if (consume('}'))
+                return members;
+            do {
+                skipWhitespace();
+                if (pos >= json.length() || json.charAt(pos) != '"')
+                    throw error("member name");
+                int start = pos;
+                skipString();
+                String name = json.substring(start, pos);
+                skipWhitespace();
+                if (!consume(':'))
+                    throw error("':'");
+                members.put(name, value());
+                skipWhitespace();
+            } while (consume(','));
+            if (!consume('}'))
+                throw error("'}'");
+            return members;
+        }
+
+        @NotNull
+        private List<Object> array() {
+            List<Object> items = new ArrayList<>();
+            pos++;
+            skipWhitespace();
+            if (consume(']'))
+                return items;
+            do {
+                items.add(value());
+                skipWhitespace();
+            } while (consume(','));
+            if (!consume(']'))
+                throw error("']'");
+            return items;
+        }
+
+        private void skipString() {
+            pos++;
+            while (pos < json.length()) {
+                char c = json.charAt(pos++);
+                if (c == '\\') {
+                    pos++;
+                } else if (c == '"') {
+                    return;
+                }
+            }
+            throw error("end of string");
+        }
+
+        private void skipWhitespace() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private boolean consume(char c) {
+            if (pos < json.length() && json.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        @NotNull
+        private IllegalArgumentException error(@NotNull String expected) {
+            return new IllegalArgumentException(format("Malformed JSON, %s expected at position %d", expected, pos));
+        }
+    }
+}
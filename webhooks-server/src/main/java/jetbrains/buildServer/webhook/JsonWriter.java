@@ -0,0 +1,97 @@
+package jetbrains.buildServer.webhook;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal streaming JSON writer, keeps track of separators between object members
+ */
+class JsonWriter {
+
+    private final Writer out;
+    private boolean first = true;
+
+    JsonWriter(@NotNull Writer out) {
+        this.out = out;
+    }
+
+    JsonWriter beginObject() throws IOException {
+        out.write('{');
+        first = true;
+        return this;
+    }
+
+    JsonWriter endObject() throws IOException {
+        out.write('}');
+        first = false;
+        return this;
+    }
+
+    JsonWriter name(@NotNull String name) throws IOException {
+        if (!first)
+            out.write(',');
+        string(name);
+        out.write(':');
+        first = true;
+        return this;
+    }
+
+    JsonWriter value(@Nullable Object value) throws IOException {
+        if (value == null) {
+            out.write("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.write(value.toString());
+        } else {
+            string(value.toString());
+        }
+        first = false;
+        return this;
+    }
+
+    /**
+     * Writes already serialized JSON value as is
+     */
+    JsonWriter rawValue(@NotNull String json) throws IOException {
+        out.write(json);
+        first = false;
+        return this;
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    private void string(@NotNull String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,76 @@
+package jetbrains.buildServer.webhook;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+
+/**
+ * Lock-free latency histogram with fixed millisecond buckets.
+ * Percentiles are approximated by the upper bound of the bucket they fall into
+ */
+class LatencyHistogram {
+
+    private static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, Long.MAX_VALUE};
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MILLIS.length];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(value);
+        int bucket = 0;
+        while (millis >= BUCKET_BOUNDS_MILLIS[bucket])
+            bucket++;
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(value);
+        maxNanos.accumulateAndGet(value, Math::max);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    double getMeanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / (double) n / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    double getMaxMillis() {
+        return maxNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @param percentile from 0 to 1
+     * @return upper bound of the bucket the percentile falls into, or max value for the last bucket
+     */
+    double getPercentileMillis(double percentile) {
+        long n = count.sum();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile * n);
+        long seen = 0;
+        for (int i = 0; i < buckets.length - 1; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank)
+                return Math.min(BUCKET_BOUNDS_MILLIS[i], getMaxMillis());
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public String toString() {
+        return format("count=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms",
+                getCount(), getMeanMillis(), getPercentileMillis(0.5), getPercentileMillis(0.99), getMaxMillis());
+    }
+}
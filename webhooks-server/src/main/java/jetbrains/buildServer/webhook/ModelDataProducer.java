@@ -0,0 +1,265 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.Branch;
+import jetbrains.buildServer.serverSide.BuildAgentManager;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildPromotionManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.WebLinks;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static java.lang.String.format;
+
+/**
+ * Serializes builds and agents straight from the server model, without the internal REST API request made by {@link RestApiProducer}.
+ * <p>
+ * The output is the same as the REST API output for the supported subset of fields.
+ * {@link WebhooksEventListener} uses it instead of the {@link WebhookDataProducer} when enabled by {@link #ENABLED_PROPERTY} internal property,
+ * webhooks requiring default representation (empty fields) or fields out of the subset are still produced by the {@link WebhookDataProducer}
+ */
+@Component
+public class ModelDataProducer {
+
+    static final String ENABLED_PROPERTY = "teamcity.webhooks.producer.native";
+
+    private static final DateTimeFormatter REST_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssZ").withZone(ZoneId.systemDefault());
+
+    private final BuildPromotionManager buildPromotionManager;
+    private final BuildAgentManager buildAgentManager;
+    private final ConcurrentHashMap<String, FieldSelector> selectors = new ConcurrentHashMap<>();
+    private final Schema<BuildView> buildSchema;
+    private final Schema<SBuildAgent> agentSchema;
+
+    public ModelDataProducer(BuildPromotionManager buildPromotionManager,
+                             BuildAgentManager buildAgentManager,
+                             WebLinks webLinks) {
+        this.buildPromotionManager = buildPromotionManager;
+        this.buildAgentManager = buildAgentManager;
+
+        agentSchema = new Schema<SBuildAgent>()
+                .value("id", SBuildAgent::getId)
+                .value("name", SBuildAgent::getName)
+                .value("typeId", SBuildAgent::getAgentTypeId)
+                .value("connected", SBuildAgent::isRegistered)
+                .value("enabled", SBuildAgent::isEnabled)
+                .value("authorized", SBuildAgent::isAuthorized)
+                .value("ip", SBuildAgent::getHostAddress)
+                .value("href", agent -> "/app/rest/agents/id:" + agent.getId());
+
+        Schema<SBuildType> buildTypeSchema = new Schema<SBuildType>()
+                .value("id", SBuildType::getExternalId)
+                .value("name", SBuildType::getName)
+                .value("projectId", SBuildType::getProjectExternalId)
+                .value("projectName", SBuildType::getProjectName)
+                .value("href", buildType -> "/app/rest/buildTypes/id:" + buildType.getExternalId())
+                .value("webUrl", webLinks::getConfigurationHomePageUrl);
+
+        buildSchema = new Schema<BuildView>()
+                .value("id", BuildView::getId)
+                .value("buildTypeId", view -> view.promotion.getBuildTypeExternalId())
+                .value("number", view -> view.build != null ? view.build.getBuildNumber() : null)
+                .value("status", view -> view.build != null ? view.build.getBuildStatus().getText() : null)
+                .value("state", BuildView::getState)
+                .value("branchName", view -> view.getBranch() != null ? view.getBranch().getDisplayName() : null)
+                .value("defaultBranch", view -> view.getBranch() != null ? view.getBranch().isDefaultBranch() : null)
+                .value("personal", view -> view.promotion.isPersonal())
+                .value("statusText", view -> view.build != null ? view.build.getStatusDescriptor().getText() : null)
+                .value("queuedDate", view -> formatDate(view.build != null ? view.build.getQueuedDate() : view.queuedBuild.getWhenQueued()))
+                .value("startDate", view -> view.build != null ? formatDate(view.build.getStartDate()) : null)
+                .value("finishDate", view -> view.build != null ? formatDate(view.build.getFinishDate()) : null)
+                .value("href", view -> (view.build != null ? "/app/rest/builds/id:" : "/app/rest/buildQueue/id:") + view.getId())
+                .value("webUrl", view -> view.build != null ? webLinks.getViewResultsUrl(view.build) : webLinks.getQueuedBuildUrl(view.queuedBuild))
+                .object("agent", view -> view.build != null ? view.build.getAgent() : null, agentSchema)
+                .object("buildType", view -> view.promotion.getBuildType(), buildTypeSchema);
+    }
+
+    static boolean isEnabled() {
+        return TeamCityProperties.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * @return serialized envelope with the object or null if the object cannot be serialized by this producer
+     */
+    @Nullable
+    byte[] serialize(@NotNull AsyncEvent event, @NotNull String fields) {
+        FieldSelector selector = getSelector(fields);
+        if (selector == null || selector.isEmpty())
+            return null;
+        RestApiProducer.EventType type = RestApiProducer.EventType.find(event.getEventType());
+        if (type == null)
+            return null;
+        switch (type) {
+            case AGENT:
+                SBuildAgent agent = agentSchema.supports(selector) ? buildAgentManager.findAgentById(event.getObjectId().intValue(), true) : null;
+                return agent != null ? serialize(event, agentSchema, agent, selector) : null;
+            case BUILD:
+                BuildView build = buildSchema.supports(selector) ? findBuild(event.getObjectId()) : null;
+                return build != null ? serialize(event, buildSchema, build, selector) : null;
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private FieldSelector getSelector(@NotNull String fields) {
+        FieldSelector selector = selectors.get(fields);
+        if (selector == null) {
+            try {
+                selector = FieldSelector.parse(fields);
+            } catch (IllegalArgumentException e) {
+                return null; // let REST API report the problem
+            }
+            selectors.put(fields, selector);
+        }
+        return selector;
+    }
+
+    @Nullable
+    private BuildView findBuild(long promotionId) {
+        BuildPromotion promotion = buildPromotionManager.findPromotionById(promotionId);
+        if (promotion == null)
+            return null;
+        SBuild build = promotion.getAssociatedBuild();
+        SQueuedBuild queuedBuild = build == null ? promotion.getQueuedBuild() : null;
+        return build != null || queuedBuild != null ? new BuildView(promotion, build, queuedBuild) : null;
+    }
+
+    private static <T> byte[] serialize(@NotNull AsyncEvent event, @NotNull Schema<T> schema, @NotNull T object, @NotNull FieldSelector selector) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try {
+            Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+            writer.write(format("{ \"eventType\" : \"%s\", \"payload\" : ", event.getEventType()));
+            JsonWriter json = new JsonWriter(writer);
+            schema.write(json, object, selector);
+            writer.write(" }");
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Nullable
+    private static String formatDate(@Nullable Date date) {
+        return date == null ? null : REST_DATE_FORMAT.format(date.toInstant());
+    }
+
+    /**
+     * Build in any state: queued, running or finished
+     */
+    private static class BuildView {
+        private final BuildPromotion promotion;
+        private final SBuild build;
+        private final SQueuedBuild queuedBuild;
+
+        private BuildView(@NotNull BuildPromotion promotion, @Nullable SBuild build, @Nullable SQueuedBuild queuedBuild) {
+            this.promotion = promotion;
+            this.build = build;
+            this.queuedBuild = queuedBuild;
+        }
+
+        long getId() {
+            return build != null ? build.getBuildId() : promotion.getId();
+        }
+
+        @NotNull
+        String getState() {
+            return build == null ? "queued" : build.isFinished() ? "finished" : "running";
+        }
+
+        @Nullable
+        Branch getBranch() {
+            return promotion.getBranch();
+        }
+    }
+
+    /**
+     * Serializable fields of an object, compatible with the REST API representation
+     */
+    private static class Schema<T> {
+        private final Map<String, Function<T, Object>> values = new HashMap<>();
+        private final Map<String, NestedObject<T, ?>> objects = new HashMap<>();
+
+        Schema<T> value(@NotNull String name, @NotNull Function<T, Object> getter) {
+            values.put(name, getter);
+            return this;
+        }
+
+        <N> Schema<T> object(@NotNull String name, @NotNull Function<T, N> getter, @NotNull Schema<N> schema) {
+            objects.put(name, new NestedObject<>(getter, schema));
+            return this;
+        }
+
+        /**
+         * @return true if all selected fields can be serialized, nested objects are supported with explicit fields only
+         */
+        boolean supports(@NotNull FieldSelector selector) {
+            for (String name : selector.getNames()) {
+                FieldSelector nested = selector.get(name);
+                if (values.containsKey(name)) {
+                    if (nested != null && !nested.isEmpty())
+                        return false;
+                } else {
+                    NestedObject<T, ?> object = objects.get(name);
+                    if (object == null || nested == null || nested.isEmpty() || !object.schema.supports(nested))
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        void write(@NotNull JsonWriter json, @NotNull T object, @NotNull FieldSelector selector) throws IOException {
+            json.beginObject();
+            for (String name : selector.getNames()) {
+                Function<T, Object> getter = values.get(name);
+                if (getter != null) {
+                    Object value = getter.apply(object);
+                    if (value != null)
+                        json.name(name).value(value);
+                } else {
+                    objects.get(name).write(json, name, object, selector.get(name));
+                }
+            }
+            json.endObject();
+        }
+    }
+
+    private static class NestedObject<T, N> {
+        private final Function<T, N> getter;
+        private final Schema<N> schema;
+
+        private NestedObject(Function<T, N> getter, Schema<N> schema) {
+            this.getter = getter;
+            this.schema = schema;
+        }
+
+        void write(@NotNull JsonWriter json, @NotNull String name, @NotNull T parent, @NotNull FieldSelector selector) throws IOException {
+            N object = getter.apply(parent);
+            if (object != null) {
+                json.name(name);
+                schema.write(json, object, selector);
+            }
+        }
+    }
+}
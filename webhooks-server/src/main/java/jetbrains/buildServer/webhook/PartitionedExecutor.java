@@ -0,0 +1,243 @@
+package jetbrains.buildServer.webhook;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes tasks on a fixed number of single-threaded lanes.
+ * Tasks submitted with equal partition keys always land on the same lane and are executed in submission order
+ * among tasks of the same {@link DeliveryPriority}, a lane with a backlog executes tasks of a higher priority first.
+ * Tasks with different keys may be executed concurrently.
+ * A lane holds up to the given count of pending tasks, submitting to a full lane waits until the lane has room,
+ * since running the task in the caller or dropping it would break the order of tasks with the same key
+ */
+class PartitionedExecutor {
+
+    private static final Logger LOG = Logger.getInstance(PartitionedExecutor.class.getName());
+
+    private final Lane[] lanes;
+
+    PartitionedExecutor(@NotNull String name, int parallelism, int laneCapacity) {
+        lanes = new Lane[Math.max(1, parallelism)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(name + "-" + i, Math.max(1, laneCapacity));
+            Thread thread = new NamedDaemonThreadFactory(name + "-" + i).newThread(lanes[i]);
+            lanes[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    void execute(@NotNull Object partitionKey, @NotNull Runnable task) {
+        execute(partitionKey, DeliveryPriority.NORMAL, task);
+    }
+
+    /**
+     * Waits while the lane of {@param partitionKey} is full
+     * @throws RejectedExecutionException if the executor is shut down or the calling thread is interrupted while waiting
+     */
+    void execute(@NotNull Object partitionKey, @NotNull DeliveryPriority priority, @NotNull Runnable task) {
+        getLane(partitionKey).add(priority, task, true);
+    }
+
+    /**
+     * Adds the task to the lane of {@param partitionKey} even if the lane is full, so the calling thread never waits.
+     * Used for tasks which were accepted before, like attempts of retried webhooks, and so don't add to the backlog
+     * @throws RejectedExecutionException if the executor is shut down
+     */
+    void resubmit(@NotNull Object partitionKey, @NotNull DeliveryPriority priority, @NotNull Runnable task) {
+        getLane(partitionKey).add(priority, task, false);
+    }
+
+    @NotNull
+    private Lane getLane(@NotNull Object partitionKey) {
+        return lanes[Math.floorMod(partitionKey.hashCode(), lanes.length)];
+    }
+
+    /**
+     * Runs {@param callback} in a lane thread once all tasks submitted to all lanes before are executed.
+     * Tasks submitted later are executed after the earlier tasks of their lane regardless of their priority,
+     * but don't wait for other lanes
+     */
+    void afterSubmitted(@NotNull Runnable callback) {
+        AtomicInteger remaining = new AtomicInteger(lanes.length);
+        for (Lane lane : lanes) {
+            lane.addBarrier(() -> {
+                if (remaining.decrementAndGet() == 0)
+                    callback.run();
+            });
+        }
+    }
+
+    /**
+     * Lets lanes execute already submitted tasks for up to {@param timeout}, then interrupts them
+     * @return tasks which were not executed, without {@link #afterSubmitted} callbacks
+     */
+    @NotNull
+    List<Runnable> shutdown(long timeout, @NotNull TimeUnit unit) {
+        for (Lane lane : lanes) {
+            lane.shutdown();
+        }
+        List<Runnable> discarded = new ArrayList<>();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Lane lane : lanes) {
+            try {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining > 0)
+                    lane.thread.join(remaining);
+                if (lane.thread.isAlive())
+                    lane.shutdownNow(discarded);
+            } catch (InterruptedException e) {
+                lane.shutdownNow(discarded);
+                Thread.currentThread().interrupt();
+            }
+        }
+        return discarded;
+    }
+
+    /**
+     * Queue of tasks per priority served by a single thread. A barrier is added to all queues at once,
+     * and a queue reaching it is not served until all queues do. Barriers don't count towards the capacity
+     */
+    private static class Lane implements Runnable {
+        private final String name;
+        private final int capacity;
+        private final ArrayDeque<Runnable>[] queues;
+        private Thread thread;
+        private boolean shutdown;
+        private int size;
+        /** the lane was reported full and hasn't run out of tasks since */
+        private boolean reportedFull;
+
+        @SuppressWarnings("unchecked")
+        private Lane(@NotNull String name, int capacity) {
+            this.name = name;
+            this.capacity = capacity;
+            queues = new ArrayDeque[DeliveryPriority.values().length];
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayDeque<>();
+            }
+        }
+
+        synchronized void add(@NotNull DeliveryPriority priority, @NotNull Runnable task, boolean waitForRoom) {
+            while (waitForRoom && size >= capacity && !shutdown) {
+                if (!reportedFull) {
+                    LOG.warn(String.format("Webhooks delivery lane %s has %d pending tasks, new webhooks wait until it sends some of them", name, size));
+                    reportedFull = true;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for delivery lane " + name);
+                }
+            }
+            if (shutdown)
+                throw new RejectedExecutionException("Delivery lane is shut down");
+            queues[priority.ordinal()].add(task);
+            size++;
+            notifyAll();
+        }
+
+        synchronized void addBarrier(@NotNull Runnable task) {
+            if (shutdown)
+                throw new RejectedExecutionException("Delivery lane is shut down");
+            Barrier barrier = new Barrier(task);
+            for (ArrayDeque<Runnable> queue : queues) {
+                queue.add(barrier);
+            }
+            notifyAll();
+        }
+
+        synchronized void shutdown() {
+            shutdown = true;
+            notifyAll();
+        }
+
+        synchronized void shutdownNow(@NotNull List<Runnable> discarded) {
+            shutdown = true;
+            for (ArrayDeque<Runnable> queue : queues) {
+                for (Runnable task : queue) {
+                    if (!(task instanceof Barrier))
+                        discarded.add(task);
+                }
+                queue.clear();
+            }
+            size = 0;
+            notifyAll();
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    while ((task = poll()) == null) {
+                        if (shutdown)
+                            return;
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                try {
+                    task.run();
+                } catch (Throwable throwable) {
+                    LOG.warnAndDebugDetails("Webhooks delivery task failed", throwable);
+                }
+            }
+        }
+
+        /**
+         * @return the first task of the highest priority queue not waiting at a barrier, or null if there are no tasks to run
+         */
+        @Nullable
+        private Runnable poll() {
+            boolean allAtBarrier = true;
+            for (ArrayDeque<Runnable> queue : queues) {
+                Runnable head = queue.peek();
+                if (head != null && !(head instanceof Barrier)) {
+                    if (size-- == capacity)
+                        notifyAll(); // submitters wait for room
+                    if (size == 0)
+                        reportedFull = false;
+                    return queue.poll();
+                }
+                if (head == null)
+                    allAtBarrier = false;
+            }
+            if (!allAtBarrier)
+                return null;
+            // barriers are added to all queues at once, so heads of all queues are the same barrier
+            Runnable barrier = null;
+            for (ArrayDeque<Runnable> queue : queues) {
+                barrier = queue.poll();
+            }
+            return barrier;
+        }
+    }
+
+    private static class Barrier implements Runnable {
+        private final Runnable task;
+
+        private Barrier(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
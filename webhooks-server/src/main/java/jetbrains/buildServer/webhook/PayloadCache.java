@@ -0,0 +1,123 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.web.impl.RestApiFacade;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bounded cache of rendered REST representations keyed by object url, fields and object version.
+ * Entries expire after the given time and the least recently used entries are evicted when the cache is full.
+ * Concurrent requests of the same missing entry share a single rendering
+ */
+class PayloadCache {
+
+    interface Loader {
+        @NotNull
+        String load() throws RestApiFacade.InternalRestApiCallException;
+    }
+
+    private final int maxSize;
+    private final Map<Key, CachedPayload> entries;
+    private final ConcurrentHashMap<Key, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    PayloadCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, CachedPayload>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedPayload> eldest) {
+                return size() > PayloadCache.this.maxSize;
+            }
+        };
+    }
+
+    @NotNull
+    String get(@NotNull String objectUrl, @NotNull String fields, @NotNull Object version, long ttlMillis, @NotNull Loader loader)
+            throws RestApiFacade.InternalRestApiCallException {
+        final Key key = new Key(objectUrl, fields, version);
+        synchronized (entries) {
+            CachedPayload entry = entries.get(key);
+            if (entry != null) {
+                if (System.currentTimeMillis() - entry.loadedAt <= ttlMillis)
+                    return entry.value;
+                entries.remove(key);
+            }
+        }
+
+        CompletableFuture<String> loading = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, loading);
+        if (existing != null)
+            return await(existing);
+
+        try {
+            String value = loader.load();
+            synchronized (entries) {
+                entries.put(key, new CachedPayload(value, System.currentTimeMillis()));
+            }
+            loading.complete(value);
+            return value;
+        } catch (RestApiFacade.InternalRestApiCallException | RuntimeException e) {
+            loading.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, loading);
+        }
+    }
+
+    @NotNull
+    private static String await(@NotNull CompletableFuture<String> loading) throws RestApiFacade.InternalRestApiCallException {
+        try {
+            return loading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RestApiFacade.InternalRestApiCallException)
+                throw (RestApiFacade.InternalRestApiCallException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static class CachedPayload {
+        private final String value;
+        private final long loadedAt;
+
+        private CachedPayload(String value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private static class Key {
+        private final String objectUrl;
+        private final String fields;
+        private final Object version;
+
+        private Key(String objectUrl, String fields, Object version) {
+            this.objectUrl = objectUrl;
+            this.fields = fields;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return objectUrl.equals(key.objectUrl) && fields.equals(key.fields) && version.equals(key.version);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(objectUrl, fields, version);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package jetbrains.buildServer.webhook;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Repeatable request entity writing {@link WebhookPayload} straight into the connection stream,
+ * optionally compressed with gzip.
+ * Uncompressed payloads of known length are sent with Content-Length, compressed payloads and payloads
+ * whose length is known only once they are written are sent chunked
+ */
+class PayloadEntity extends AbstractHttpEntity {
+
+    private static final int GZIP_BUFFER_SIZE = 8 * 1024;
+
+    private final WebhookPayload payload;
+    private final boolean gzip;
+    private final long length;
+
+    PayloadEntity(@NotNull WebhookPayload payload, boolean gzip) {
+        this.payload = payload;
+        this.gzip = gzip;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        if (gzip)
+            setContentEncoding("gzip");
+        length = gzip ? -1 : payload.getLength();
+        setChunked(length < 0);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() {
+        return new ByteArrayInputStream(WebhookPayload.toBytes(this::writeTo));
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (gzip) {
+            GZIPOutputStream gzipOut = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+            payload.writeTo(gzipOut);
+            gzipOut.finish();
+        } else {
+            payload.writeTo(out);
+        }
+        out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -1,11 +1,22 @@
 package jetbrains.buildServer.webhook;
 
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.web.impl.RestApiFacade;
 import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.String.format;
 import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.*;
@@ -17,12 +28,23 @@ import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.BUILD_INT
 @Component
 public class RestApiProducer implements WebhookDataProducer {
 
-    private enum EventType {
+    enum EventType {
         AGENT(Arrays.asList(AGENT_REGISTRED, AGENT_UNREGISTERED, AGENT_REMOVED), "/app/rest/agents/id:"),
-        BUILD(Arrays.asList(BUILD_STARTED, BUILD_FINISHED, BUILD_INTERRUPTED, CHANGES_LOADED, BUILD_TYPE_ADDED_TO_QUEUE, BUILD_REMOVED_FROM_QUEUE, BUILD_PROBLEMS_CHANGED), "/app/rest/builds/promotionId:");
+        BUILD(Arrays.asList(BUILD_STARTED, BUILD_FINISHED, BUILD_INTERRUPTED, CHANGES_LOADED, BUILD_TYPE_ADDED_TO_QUEUE, BUILD_REMOVED_FROM_QUEUE, BUILD_PROBLEMS_CHANGED,
+                MARKED_AS_SUCCESSFUL, FAILURE_DETECTED), "/app/rest/builds/promotionId:");
 
-        private String restApiUrl;
-        private List<String> events;
+        private static final Map<String, EventType> BY_EVENT = new HashMap<>();
+
+        static {
+            for (EventType type : values()) {
+                for (String event : type.events) {
+                    BY_EVENT.put(event, type);
+                }
+            }
+        }
+
+        private final String restApiUrl;
+        private final List<String> events;
 
         EventType(List<String> events, String restApiUrl) {
             this.events = events;
@@ -30,11 +52,18 @@ public class RestApiProducer implements WebhookDataProducer {
         }
 
         static EventType getEventType(String event) {
-            for(EventType type : EventType.values()) {
-                if (type.events.contains(event))
-                    return type;
-            }
-            throw new IllegalArgumentException(format("Event %s is not supported.", event));
+            EventType type = find(event);
+            if (type == null)
+                throw new IllegalArgumentException(format("Event %s is not supported.", event));
+            return type;
+        }
+
+        /**
+         * @return type of the {@param event} or null if the event is not supported
+         */
+        @Nullable
+        static EventType find(String event) {
+            return BY_EVENT.get(event);
         }
 
         String getRestApiUrl() {
@@ -42,30 +71,112 @@ public class RestApiProducer implements WebhookDataProducer {
         }
     }
 
+    static final String PAYLOAD_CACHE_TTL_PROPERTY = "teamcity.webhooks.payloadCache.ttlMs";
+    static final String PAYLOAD_CACHE_SIZE_PROPERTY = "teamcity.webhooks.payloadCache.maxSize";
+
+    private static final byte[] ENVELOPE_END = " }".getBytes(StandardCharsets.UTF_8);
+
     private final RestApiFacade restApiFacade;
+    private final EventSubjects eventSubjects;
+    private final ConcurrentHashMap<String, byte[]> envelopeStarts = new ConcurrentHashMap<>();
+    private final PayloadCache payloadCache = new PayloadCache(TeamCityProperties.getInteger(PAYLOAD_CACHE_SIZE_PROPERTY, 1000));
 
-    public RestApiProducer(RestApiFacade restApiFacade) {
+    public RestApiProducer(RestApiFacade restApiFacade, EventSubjects eventSubjects) {
         this.restApiFacade = restApiFacade;
+        this.eventSubjects = eventSubjects;
     }
 
     @Override
     public String getJson(AsyncEvent event, String fields) {
+        return format("{ \"eventType\" : \"%s\", \"payload\" : %s }", event.getEventType(), getObjectJson(event, fields));
+    }
+
+    /**
+     * Writes the envelope and REST representation straight into the request stream
+     * without formatting them into an intermediate {@link String}
+     */
+    @Override
+    public WebhookPayload getPayload(AsyncEvent event, String fields) {
+        final byte[] envelopeStart = envelopeStarts.computeIfAbsent(event.getEventType(),
+                eventType -> format("{ \"eventType\" : \"%s\", \"payload\" : ", eventType).getBytes(StandardCharsets.UTF_8));
+        return envelope(envelopeStart, getObjectJson(event, fields));
+    }
+
+    /**
+     * @return payload of {@param objectJson} wrapped into the envelope, its length is counted without encoding the JSON
+     */
+    static WebhookPayload envelope(byte[] envelopeStart, String objectJson) {
+        final long length = envelopeStart.length + getUtf8Length(objectJson) + ENVELOPE_END.length;
+        return new WebhookPayload() {
+            @Override
+            public void writeTo(@NotNull OutputStream out) throws IOException {
+                out.write(envelopeStart);
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                writer.write(objectJson);
+                writer.flush();
+                out.write(ENVELOPE_END);
+            }
+
+            @Override
+            public long getLength() {
+                return length;
+            }
+        };
+    }
+
+    /**
+     * @return count of bytes {@link OutputStreamWriter} writes for {@param text} in UTF-8,
+     * unpaired surrogates are replaced with a single byte '?' as the writer does
+     */
+    private static long getUtf8Length(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private String getObjectJson(AsyncEvent event, String fields) {
         EventType eventType = EventType.getEventType(event.getEventType());
         String objectRestUrl = eventType.getRestApiUrl() + event.getObjectId();
         try {
-            return format("{ \"eventType\" : \"%s\", \"payload\" : %s }", event.getEventType(), restApiFacade.getJson(objectRestUrl, fields));
+            return getObjectJson(objectRestUrl, fields, event);
         } catch (RestApiFacade.InternalRestApiCallException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Renders the object, reusing representation rendered recently for the same object, fields and object version if
+     * payload cache is enabled by {@link #PAYLOAD_CACHE_TTL_PROPERTY}.
+     * The version is the event type together with the stamp of the object state, see {@link EventSubjects#getVersion},
+     * so repeated events of the same type, like {@link WebhooksManager.EventNames#BUILD_PROBLEMS_CHANGED}, reuse the representation
+     * only while the object stays the same. Objects which are not found are rendered without the cache
+     */
+    private String getObjectJson(String objectRestUrl, String fields, AsyncEvent event) throws RestApiFacade.InternalRestApiCallException {
+        long ttl = TeamCityProperties.getLong(PAYLOAD_CACHE_TTL_PROPERTY, 0);
+        if (ttl <= 0)
+            return restApiFacade.getJson(objectRestUrl, fields);
+        Object version = eventSubjects.getVersion(event);
+        if (version == null)
+            return restApiFacade.getJson(objectRestUrl, fields);
+        return payloadCache.get(objectRestUrl, fields, version, ttl, () -> restApiFacade.getJson(objectRestUrl, fields));
+    }
+
     @Override
     public boolean support(AsyncEvent event) {
-        try {
-            EventType.getEventType(event.getEventType());
-        } catch (IllegalArgumentException e) {
-            return false;
-        }
-        return true;
+        return EventType.find(event.getEventType()) != null;
     }
 }
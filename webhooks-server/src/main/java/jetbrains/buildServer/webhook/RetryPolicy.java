@@ -0,0 +1,60 @@
+package jetbrains.buildServer.webhook;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Defines how failed webhook deliveries are retried: up to {@link #getRetryCount()} times
+ * with exponentially growing, randomly shortened delays, while the delivery is younger than maximum age
+ */
+class RetryPolicy {
+
+    static final RetryPolicy NO_RETRY = new RetryPolicy(0, 0, 0, 0, 0);
+
+    private final int retryCount;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final long maxAgeMillis;
+    private final double jitter;
+
+    /**
+     * @param jitter part of the delay which is randomized, from 0 (fixed delays) to 1 (delays from 0 up to the backoff value)
+     */
+    RetryPolicy(int retryCount, long initialDelayMillis, long maxDelayMillis, long maxAgeMillis, double jitter) {
+        this.retryCount = Math.max(0, retryCount);
+        this.initialDelayMillis = Math.max(0, initialDelayMillis);
+        this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+        this.maxAgeMillis = maxAgeMillis;
+        this.jitter = Math.min(1, Math.max(0, jitter));
+    }
+
+    int getRetryCount() {
+        return retryCount;
+    }
+
+    long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * @param failedAttempts count of already failed attempts, starting from 1
+     * @return delay before the next attempt
+     */
+    long getDelayMillis(int failedAttempts) {
+        long backoff = initialDelayMillis << Math.min(failedAttempts - 1, 30);
+        if (backoff <= 0 || backoff > maxDelayMillis)
+            backoff = maxDelayMillis;
+        return backoff - (long) (backoff * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * @return true if one more attempt should be performed after {@param delayMillis}
+     * for delivery created at {@param createdAtMillis} which already failed {@param failedAttempts} times
+     */
+    boolean shouldRetry(int failedAttempts, long createdAtMillis, long delayMillis) {
+        return failedAttempts <= retryCount && !isExpired(createdAtMillis, delayMillis);
+    }
+
+    boolean isExpired(long createdAtMillis, long delayMillis) {
+        return maxAgeMillis > 0 && System.currentTimeMillis() + delayMillis - createdAtMillis > maxAgeMillis;
+    }
+}
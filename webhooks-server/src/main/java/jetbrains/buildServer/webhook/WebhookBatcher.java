@@ -0,0 +1,139 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Groups events going to the same project endpoint into batches.
+ * A batch is passed to the sink once it reaches its maximum size or its linger time is over,
+ * batches with zero linger time are passed by {@link #flushLingerless()} at the end of every handled events list
+ */
+class WebhookBatcher {
+
+    private final Map<Key, Batch> batches = new HashMap<>();
+    private final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("WebhooksBatchLinger"));
+    private final Consumer<Batch> sink;
+
+    WebhookBatcher(@NotNull Consumer<Batch> sink) {
+        this.sink = sink;
+    }
+
+    void add(@NotNull WebhookEndpoint endpoint, @NotNull String webhooksUrl, @NotNull AsyncEvent event) {
+        final long lingerMillis = endpoint.getBatchLingerMillis();
+        Batch ready = null;
+        synchronized (batches) {
+            Key key = new Key(endpoint.getProjectKey(), endpoint.getName(), webhooksUrl);
+            Batch batch = batches.computeIfAbsent(key, k -> new Batch(endpoint, webhooksUrl, lingerMillis));
+            batch.events.add(event);
+            if (batch.events.size() >= endpoint.getBatchSize()) {
+                ready = remove(key);
+            } else if (batch.events.size() == 1 && lingerMillis > 0) {
+                batch.lingerTask = lingerTimer.schedule(() -> flush(key, batch), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (ready != null)
+            sink.accept(ready);
+    }
+
+    void flushLingerless() {
+        flushMatching(false);
+    }
+
+    void flushAll() {
+        flushMatching(true);
+    }
+
+    void shutdown() {
+        lingerTimer.shutdownNow();
+        flushAll();
+    }
+
+    private void flushMatching(boolean all) {
+        List<Batch> ready = new ArrayList<>();
+        synchronized (batches) {
+            Iterator<Batch> it = batches.values().iterator();
+            while (it.hasNext()) {
+                Batch batch = it.next();
+                if (all || batch.lingerMillis <= 0) {
+                    it.remove();
+                    cancelLinger(batch);
+                    ready.add(batch);
+                }
+            }
+        }
+        ready.forEach(sink);
+    }
+
+    private void flush(Key key, Batch batch) {
+        boolean removed;
+        synchronized (batches) {
+            removed = batches.remove(key, batch);
+        }
+        if (removed)
+            sink.accept(batch);
+    }
+
+    private Batch remove(Key key) {
+        Batch batch = batches.remove(key);
+        cancelLinger(batch);
+        return batch;
+    }
+
+    private static void cancelLinger(Batch batch) {
+        if (batch.lingerTask != null)
+            batch.lingerTask.cancel(false);
+    }
+
+    static class Batch {
+        final WebhookEndpoint endpoint;
+        final String webhooksUrl;
+        final List<AsyncEvent> events = new ArrayList<>();
+        final long createdAt = System.currentTimeMillis();
+        private final long lingerMillis;
+        private ScheduledFuture<?> lingerTask;
+
+        private Batch(WebhookEndpoint endpoint, String webhooksUrl, long lingerMillis) {
+            this.endpoint = endpoint;
+            this.webhooksUrl = webhooksUrl;
+            this.lingerMillis = lingerMillis;
+        }
+    }
+
+    private static class Key {
+        private final String projectKey;
+        private final String endpointName;
+        private final String webhooksUrl;
+
+        private Key(String projectKey, String endpointName, String webhooksUrl) {
+            this.projectKey = projectKey;
+            this.endpointName = endpointName;
+            this.webhooksUrl = webhooksUrl;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return projectKey.equals(key.projectKey) && endpointName.equals(key.endpointName) && webhooksUrl.equals(key.webhooksUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(projectKey, endpointName, webhooksUrl);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable webhooks configuration of a project compiled from its parameters once,
+ * see {@link WebhookConfigCache}. A project can send webhooks to several {@link WebhookEndpoint}s:
+ * the default one and named ones listed in {@link #ENDPOINTS_PARAMETER}
+ */
+class WebhookConfig {
+
+    static final String PARAMETER_PREFIX = "teamcity.internal.webhooks.";
+    static final String ENABLE_PARAMETER = PARAMETER_PREFIX + "enable";
+    static final String ENDPOINTS_PARAMETER = PARAMETER_PREFIX + "endpoints";
+    static final String ENDPOINT_PARAMETER_PREFIX = PARAMETER_PREFIX + "endpoint.";
+    static final String EVENTS_PARAMETER = PARAMETER_PREFIX + WebhookEndpoint.EVENTS;
+    static final String URL_PARAMETER = PARAMETER_PREFIX + WebhookEndpoint.URL;
+
+    static final WebhookConfig DISABLED = new WebhookConfig("", "", Collections.emptyList());
+
+    private final String projectKey;
+    private final String projectName;
+    private final List<WebhookEndpoint> endpoints;
+    private final Map<String, List<WebhookEndpoint>> endpointsByEvent = new HashMap<>();
+
+    private WebhookConfig(@NotNull String projectKey,
+                          @NotNull String projectName,
+                          @NotNull List<WebhookEndpoint> endpoints) {
+        this.projectKey = projectKey;
+        this.projectName = projectName;
+        this.endpoints = endpoints;
+        for (WebhookEndpoint endpoint : endpoints) {
+            for (String event : endpoint.getEvents()) {
+                endpointsByEvent.computeIfAbsent(event, e -> new ArrayList<>()).add(endpoint);
+            }
+        }
+    }
+
+    @NotNull
+    static WebhookConfig compile(@NotNull String projectKey, @NotNull ProjectEx project) {
+        if (!project.getBooleanInternalParameter(ENABLE_PARAMETER))
+            return DISABLED;
+
+        List<WebhookEndpoint> endpoints = new ArrayList<>();
+        WebhookEndpoint defaultEndpoint = WebhookEndpoint.compile(WebhookEndpoint.DEFAULT_NAME, PARAMETER_PREFIX, projectKey, project);
+        if (defaultEndpoint.isConfigured() || !defaultEndpoint.getEvents().isEmpty())
+            endpoints.add(defaultEndpoint);
+
+        Set<String> names = new LinkedHashSet<>();
+        Arrays.stream(project.getInternalParameterValue(ENDPOINTS_PARAMETER, "").split(";"))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .forEach(names::add);
+        for (String name : names) {
+            endpoints.add(WebhookEndpoint.compile(name, ENDPOINT_PARAMETER_PREFIX + name + ".", projectKey, project));
+        }
+
+        return new WebhookConfig(projectKey, project.getName(), Collections.unmodifiableList(endpoints));
+    }
+
+    /**
+     * @return endpoints {@param eventType} should be sent to
+     */
+    @NotNull
+    List<WebhookEndpoint> getEndpoints(@NotNull String eventType) {
+        return endpointsByEvent.getOrDefault(eventType, Collections.emptyList());
+    }
+
+    @NotNull
+    List<WebhookEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return the first endpoint configured with {@param url} or null if there is no such endpoint
+     */
+    @Nullable
+    WebhookEndpoint findEndpoint(@NotNull String url) {
+        for (WebhookEndpoint endpoint : endpoints) {
+            if (endpoint.isConfigured() && endpoint.getUrl().equals(url))
+                return endpoint;
+        }
+        return null;
+    }
+
+    @NotNull
+    String getProjectKey() {
+        return projectKey;
+    }
+
+    @NotNull
+    String getProjectName() {
+        return projectName;
+    }
+}
@@ -0,0 +1,107 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.ProjectNotFoundException;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps compiled {@link WebhookConfig} per project.
+ * Since webhooks parameters are inherited by subprojects, the whole cache is invalidated on any project settings change
+ */
+@Component
+public class WebhookConfigCache {
+
+    static final String ROOT_PROJECT_KEY = "<Root Project>";
+
+    private final ConcurrentHashMap<String, WebhookConfig> configs = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final SBuildServer buildServer;
+
+    public WebhookConfigCache(SBuildServer buildServer, EventDispatcher<BuildServerListener> serverEvents) {
+        this.buildServer = buildServer;
+        serverEvents.addListener(new BuildServerAdapter() {
+            @Override
+            public void projectPersisted(@NotNull String projectId) {
+                invalidate();
+            }
+
+            @Override
+            public void projectRestored(@NotNull String projectId) {
+                invalidate();
+            }
+
+            @Override
+            public void projectRemoved(@NotNull SProject project) {
+                invalidate();
+            }
+
+            @Override
+            public void projectsLoaded() {
+                invalidate();
+            }
+
+            @Override
+            public void serverConfigurationReloaded() {
+                invalidate();
+            }
+        });
+    }
+
+    @NotNull
+    static String getProjectKey(@NotNull AsyncEvent event) {
+        return event.getProjectId() != null ? event.getProjectId() : ROOT_PROJECT_KEY;
+    }
+
+    /**
+     * @return configuration of the project related to {@param event}, agent events are related to the root project
+     */
+    @NotNull
+    WebhookConfig get(@NotNull AsyncEvent event) throws ProjectNotFoundException {
+        return get(event.getProjectId());
+    }
+
+    /**
+     * @param projectId internal project id or null for the root project
+     */
+    @NotNull
+    WebhookConfig get(@Nullable String projectId) throws ProjectNotFoundException {
+        String projectKey = projectId != null ? projectId : ROOT_PROJECT_KEY;
+        WebhookConfig config = configs.get(projectKey);
+        if (config == null) {
+            long compiledAt = generation.get();
+            config = WebhookConfig.compile(projectKey, getProject(projectId));
+            configs.put(projectKey, config);
+            if (generation.get() != compiledAt) // settings were changed while compiling
+                configs.remove(projectKey, config);
+        }
+        return config;
+    }
+
+    void invalidate() {
+        generation.incrementAndGet();
+        configs.clear();
+    }
+
+    private ProjectEx getProject(@Nullable String projectId) throws ProjectNotFoundException {
+        ProjectManager myProjectManager = buildServer.getProjectManager();
+
+        ProjectEx project = projectId == null
+                ? (ProjectEx) myProjectManager.getRootProject()
+                : (ProjectEx) myProjectManager.findProjectById(projectId);
+        if (project == null)
+            throw new ProjectNotFoundException("Project with internal id " + projectId + " not found");
+        return project;
+    }
+}
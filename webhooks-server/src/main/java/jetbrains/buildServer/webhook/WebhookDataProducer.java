@@ -4,7 +4,8 @@ import jetbrains.buildServer.webhook.async.events.AsyncEvent;
 
 /**
  * Implementation of this interface and mark it as {@link org.springframework.context.annotation.Primary}
- * allows to override webhooks data format and use custom one instead of {@link RestApiProducer}
+ * allows to override webhooks data format and use custom one instead of {@link RestApiProducer}.
+ * Custom producers are not used for webhooks {@link ModelDataProducer} serializes when it's enabled
  */
 public interface WebhookDataProducer {
 
@@ -16,6 +17,16 @@ public interface WebhookDataProducer {
      */
     String getJson(AsyncEvent event, String fields);
 
+    /**
+     * Generate payload for {@param event} which is written straight into webhook request.
+     * Producers should override it to avoid building the whole JSON as a {@link String}
+     * @param event event triggered webhook sending
+     * @param fields list of required fields in webhook
+     */
+    default WebhookPayload getPayload(AsyncEvent event, String fields) {
+        return WebhookPayload.of(getJson(event, fields));
+    }
+
     /**
      * @return true if webhook payload can be generate for {@param event},
      *  or false if the payload cannot be generated
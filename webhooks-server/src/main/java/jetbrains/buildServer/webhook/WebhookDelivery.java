@@ -0,0 +1,152 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.http.SimpleCredentials;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Webhook request which should be sent to the receiver, possibly in several attempts
+ */
+class WebhookDelivery {
+    private final String projectKey;
+    private final String url;
+    private final SimpleCredentials credentials;
+    private WebhookPayload payload;
+    private final boolean gzip;
+    private final RetryPolicy retryPolicy;
+    private final long createdAt;
+    private int failedAttempts;
+    private long outboxId = WebhookOutbox.NO_ID;
+    private DeltaPayloads.Delta delta;
+    private DeliveryPriority priority = DeliveryPriority.NORMAL;
+    private String eventType;
+
+    WebhookDelivery(@NotNull String projectKey,
+                    @NotNull String url,
+                    @Nullable SimpleCredentials credentials,
+                    @NotNull WebhookPayload payload,
+                    boolean gzip,
+                    @NotNull RetryPolicy retryPolicy) {
+        this(projectKey, url, credentials, payload, gzip, retryPolicy, System.currentTimeMillis());
+    }
+
+    WebhookDelivery(@NotNull String projectKey,
+                    @NotNull String url,
+                    @Nullable SimpleCredentials credentials,
+                    @NotNull WebhookPayload payload,
+                    boolean gzip,
+                    @NotNull RetryPolicy retryPolicy,
+                    long createdAt) {
+        this.projectKey = projectKey;
+        this.url = url;
+        this.credentials = credentials;
+        this.payload = payload;
+        this.gzip = gzip;
+        this.retryPolicy = retryPolicy;
+        this.createdAt = createdAt;
+    }
+
+    @NotNull
+    String getProjectKey() {
+        return projectKey;
+    }
+
+    @NotNull
+    String getUrl() {
+        return url;
+    }
+
+    @Nullable
+    SimpleCredentials getCredentials() {
+        return credentials;
+    }
+
+    @NotNull
+    WebhookPayload getPayload() {
+        return payload;
+    }
+
+    /**
+     * Replaces the payload with the same content which is already rendered, e.g. into {@link WebhookOutbox} record
+     */
+    void setPayload(@NotNull WebhookPayload payload) {
+        this.payload = payload;
+    }
+
+    /**
+     * @return true if the request body should be compressed, unless the receiver doesn't accept compressed requests
+     */
+    boolean isGzip() {
+        return gzip;
+    }
+
+    @NotNull
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    int getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    int registerFailedAttempt() {
+        return ++failedAttempts;
+    }
+
+    /**
+     * @return id of the delivery record in {@link WebhookOutbox} or {@link WebhookOutbox#NO_ID} if it's not persisted
+     */
+    long getOutboxId() {
+        return outboxId;
+    }
+
+    void setOutboxId(long outboxId) {
+        this.outboxId = outboxId;
+    }
+
+    /**
+     * @return payload with the whole object state which should be sent if the receiver rejects the delta payload,
+     * or null if the payload is not a delta, see {@link DeltaPayloads}
+     */
+    @Nullable
+    WebhookPayload getResyncPayload() {
+        return delta == null ? null : delta.getResyncPayload();
+    }
+
+    /**
+     * @return delta the payload was produced from, or null if the payload is not a delta
+     */
+    @Nullable
+    DeltaPayloads.Delta getDelta() {
+        return delta;
+    }
+
+    void setDelta(@Nullable DeltaPayloads.Delta delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * @return type of the event the webhook is sent for, or null if the webhook is a batch of events
+     */
+    @Nullable
+    String getEventType() {
+        return eventType;
+    }
+
+    void setEventType(@Nullable String eventType) {
+        this.eventType = eventType;
+    }
+
+    @NotNull
+    DeliveryPriority getPriority() {
+        return priority;
+    }
+
+    void setPriority(@NotNull DeliveryPriority priority) {
+        this.priority = priority;
+    }
+}
@@ -0,0 +1,286 @@
+package jetbrains.buildServer.webhook;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.http.SimpleCredentials;
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+
+/**
+ * Immutable configuration of a single webhooks receiver of a project: its url, events, fields, credentials and delivery settings.
+ * Every endpoint is configured by the same set of parameters, the default endpoint by parameters with {@link WebhookConfig#PARAMETER_PREFIX},
+ * named endpoints by parameters with {@link WebhookConfig#ENDPOINT_PARAMETER_PREFIX} followed by the endpoint name
+ */
+class WebhookEndpoint {
+
+    private static final Logger LOG = Logger.getInstance(WebhookEndpoint.class.getName());
+
+    static final String EVENTS = "events";
+    static final String URL = "url";
+    static final String USERNAME = "username";
+    static final String PASSWORD = "password";
+    static final String RETRY_COUNT = "retry_count";
+    static final String RETRY_DELAY = "retry_delay_ms";
+    static final String RETRY_MAX_DELAY = "retry_max_delay_ms";
+    static final String RETRY_MAX_AGE = "retry_max_age_ms";
+    static final String RETRY_JITTER = "retry_jitter";
+    static final String COMPRESSION = "compression";
+    static final String BATCH_SIZE = "batch_size";
+    static final String BATCH_LINGER = "batch_linger_ms";
+    static final String COALESCE = "coalesce";
+    static final String DELTA = "delta";
+    static final String FILTER = "filter";
+    static final String FIELDS_SUFFIX = ".fields";
+    static final String FILTER_SUFFIX = ".filter";
+    static final String SUPERSEDES_SUFFIX = ".supersedes";
+
+    /** name of the endpoint configured by parameters without endpoint name */
+    static final String DEFAULT_NAME = "";
+
+    private final String name;
+    private final String projectKey;
+    private final String projectName;
+    private final Set<String> events;
+    private final Map<String, String> fields;
+    private final Map<String, EventFilter> filters;
+    private final String url;
+    private final SimpleCredentials credentials;
+    private final boolean gzip;
+    private final RetryPolicy retryPolicy;
+    private final int batchSize;
+    private final long batchLingerMillis;
+    private final boolean coalescing;
+    private final Map<String, Set<String>> superseded;
+    private final boolean delta;
+
+    private WebhookEndpoint(@NotNull String name,
+                            @NotNull String projectKey,
+                            @NotNull String projectName,
+                            @NotNull Set<String> events,
+                            @NotNull Map<String, String> fields,
+                            @NotNull Map<String, EventFilter> filters,
+                            @NotNull String url,
+                            @Nullable SimpleCredentials credentials,
+                            boolean gzip,
+                            @NotNull RetryPolicy retryPolicy,
+                            int batchSize,
+                            long batchLingerMillis,
+                            boolean coalescing,
+                            @NotNull Map<String, Set<String>> superseded,
+                            boolean delta) {
+        this.name = name;
+        this.projectKey = projectKey;
+        this.projectName = projectName;
+        this.events = events;
+        this.fields = fields;
+        this.filters = filters;
+        this.url = url;
+        this.credentials = credentials;
+        this.gzip = gzip;
+        this.retryPolicy = retryPolicy;
+        this.batchSize = batchSize;
+        this.batchLingerMillis = batchLingerMillis;
+        this.coalescing = coalescing;
+        this.superseded = superseded;
+        this.delta = delta;
+    }
+
+    /**
+     * @param prefix prefix of the endpoint parameters, ending with a dot
+     */
+    @NotNull
+    static WebhookEndpoint compile(@NotNull String name, @NotNull String prefix, @NotNull String projectKey, @NotNull ProjectEx project) {
+        Set<String> events = new HashSet<>();
+        Map<String, String> fields = new HashMap<>();
+        Map<String, EventFilter> filters = new HashMap<>();
+        Map<String, Set<String>> superseded = new HashMap<>();
+        split(project.getInternalParameterValue(prefix + EVENTS, ""))
+                .forEach(event -> {
+                    events.add(event);
+                    fields.put(event, project.getInternalParameterValue(prefix + event + FIELDS_SUFFIX, ""));
+                    EventFilter filter = getFilterParameter(project, prefix + event + FILTER_SUFFIX, prefix + FILTER);
+                    if (!filter.isAll())
+                        filters.put(event, filter);
+                    Set<String> supersededEvents = new HashSet<>();
+                    split(project.getInternalParameterValue(prefix + event + SUPERSEDES_SUFFIX, ""))
+                            .filter(supersededEvent -> !supersededEvent.equals(event))
+                            .forEach(supersededEvents::add);
+                    if (!supersededEvents.isEmpty())
+                        superseded.put(event, Collections.unmodifiableSet(supersededEvents));
+                });
+
+        String username = project.getInternalParameterValue(prefix + USERNAME, "");
+        String password = project.getParametersProvider().get(prefix + PASSWORD);
+        SimpleCredentials credentials = username.isEmpty() || password == null ? null : new SimpleCredentials(username, password);
+
+        return new WebhookEndpoint(name,
+                projectKey,
+                project.getName(),
+                Collections.unmodifiableSet(events),
+                Collections.unmodifiableMap(fields),
+                Collections.unmodifiableMap(filters),
+                project.getInternalParameterValue(prefix + URL, ""),
+                credentials,
+                "gzip".equalsIgnoreCase(project.getInternalParameterValue(prefix + COMPRESSION, "").trim()),
+                new RetryPolicy(getIntParameter(project, prefix + RETRY_COUNT, 0),
+                        getLongParameter(project, prefix + RETRY_DELAY, 1000),
+                        getLongParameter(project, prefix + RETRY_MAX_DELAY, 60 * 1000),
+                        getLongParameter(project, prefix + RETRY_MAX_AGE, 60 * 60 * 1000),
+                        getDoubleParameter(project, prefix + RETRY_JITTER, 0.5)),
+                getIntParameter(project, prefix + BATCH_SIZE, 1),
+                getIntParameter(project, prefix + BATCH_LINGER, 0),
+                Boolean.parseBoolean(project.getInternalParameterValue(prefix + COALESCE, "false").trim()),
+                Collections.unmodifiableMap(superseded),
+                Boolean.parseBoolean(project.getInternalParameterValue(prefix + DELTA, "false").trim()));
+    }
+
+    boolean isEnabled(@NotNull String eventType) {
+        return events.contains(eventType);
+    }
+
+    @NotNull
+    Set<String> getEvents() {
+        return events;
+    }
+
+    /**
+     * @return endpoint name or {@link #DEFAULT_NAME} for the default endpoint
+     */
+    @NotNull
+    String getName() {
+        return name;
+    }
+
+    @NotNull
+    String getProjectKey() {
+        return projectKey;
+    }
+
+    @NotNull
+    String getProjectName() {
+        return projectName;
+    }
+
+    boolean isConfigured() {
+        return !url.isEmpty();
+    }
+
+    @NotNull
+    String getUrl() {
+        if (url.isEmpty())
+            throw new WebhooksEventListener.WebhookSendException("WEBHOOKS_URL_IS_NOT_DEFINED", name.isEmpty()
+                    ? "Webhooks url is not defined for project " + projectName
+                    : format("Webhooks url is not defined for endpoint %s of project %s", name, projectName));
+        return url;
+    }
+
+    @Nullable
+    SimpleCredentials getCredentials() {
+        return credentials;
+    }
+
+    boolean isGzip() {
+        return gzip;
+    }
+
+    @NotNull
+    String getFields(@NotNull String eventType) {
+        return fields.getOrDefault(eventType, "");
+    }
+
+    /**
+     * @return filter of {@param eventType} events, configured for the event or for all events of the endpoint
+     */
+    @NotNull
+    EventFilter getFilter(@NotNull String eventType) {
+        return filters.getOrDefault(eventType, EventFilter.ALL);
+    }
+
+    @NotNull
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    long getBatchLingerMillis() {
+        return batchLingerMillis;
+    }
+
+    /**
+     * @return true if webhooks of the same event and object pending in the delivery lane should be coalesced, see {@link EventCoalescer}
+     */
+    boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * @return event types whose pending webhooks of the same object are cancelled by {@param eventType} event
+     */
+    @NotNull
+    Set<String> getSuperseded(@NotNull String eventType) {
+        return superseded.getOrDefault(eventType, Collections.emptySet());
+    }
+
+    /**
+     * @return true if webhooks should carry changes of the object since the previous webhook instead of the whole object, see {@link DeltaPayloads}
+     */
+    boolean isDelta() {
+        return delta;
+    }
+
+    @NotNull
+    private static Stream<String> split(@NotNull String events) {
+        return Arrays.stream(events.split(";"))
+                .map(String::trim)
+                .filter(event -> !event.isEmpty());
+    }
+
+    @NotNull
+    private static EventFilter getFilterParameter(ProjectEx project, String eventParameterName, String parameterName) {
+        String eventExpression = project.getInternalParameterValue(eventParameterName, "");
+        String name = eventExpression.trim().isEmpty() ? parameterName : eventParameterName;
+        String expression = eventExpression.trim().isEmpty() ? project.getInternalParameterValue(parameterName, "") : eventExpression;
+        try {
+            return EventFilter.compile(expression);
+        } catch (IllegalArgumentException ex) {
+            LOG.warn(format("Project %s parameter %s is not a valid filter: %s. All events will be sent.", project.getName(), name, ex.getMessage()));
+        }
+        return EventFilter.ALL;
+    }
+
+    private static int getIntParameter(ProjectEx project, String parameterName, int defaultValue) {
+        return getNumberParameter(project, parameterName, defaultValue, Integer::valueOf);
+    }
+
+    private static long getLongParameter(ProjectEx project, String parameterName, long defaultValue) {
+        return getNumberParameter(project, parameterName, defaultValue, Long::valueOf);
+    }
+
+    private static double getDoubleParameter(ProjectEx project, String parameterName, double defaultValue) {
+        return getNumberParameter(project, parameterName, defaultValue, Double::valueOf);
+    }
+
+    private static <T extends Number> T getNumberParameter(ProjectEx project, String parameterName, T defaultValue, Function<String, T> parser) {
+        final String parameter = project.getInternalParameterValue(parameterName, String.valueOf(defaultValue));
+        try {
+            return parser.apply(parameter.trim());
+        } catch (NumberFormatException ex) {
+            LOG.warn(format("Project %s parameter %s is not a number. Default value %s will be used.", project.getName(), parameterName, defaultValue));
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,345 @@
+package jetbrains.buildServer.webhook;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * Counters and latency histograms of the webhooks pipeline: payload generation per event type,
+ * HTTP requests per receiver url, retries and time from the event to the delivery per receiver url and per event type,
+ * time from the event to the delivery per {@link DeliveryPriority}, and delivery status per project.
+ * Batches of events are recorded under {@link #BATCH_EVENT_TYPE} event type.
+ * Receiver urls are recorded without user info, query and fragment, which may carry secrets, and only for up to
+ * {@link #MAX_RECEIVERS_PROPERTY} receivers, the others are recorded together as {@link #OTHER_RECEIVERS}.
+ * Exposed via JMX as {@link #OBJECT_NAME} and by {@link WebhooksStatusController}
+ */
+@Component
+public class WebhookMetrics implements WebhookMetricsMBean {
+
+    private static final Logger LOG = Logger.getInstance(WebhookMetrics.class.getName());
+
+    static final String OBJECT_NAME = "jetbrains.buildServer.webhook:type=WebhookMetrics";
+    static final String MAX_RECEIVERS_PROPERTY = "teamcity.webhooks.metrics.maxReceivers";
+    static final String OTHER_RECEIVERS = "other";
+    static final String BATCH_EVENT_TYPE = "batch";
+    private static final String MALFORMED_URL = "malformed url";
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> receiverRetries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> eventTypeRetries = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+    private final ConcurrentHashMap<String, LatencyHistogram> payloadLatency = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> requestLatency = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> endToEndLatency = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> eventTypeEndToEndLatency = new ConcurrentHashMap<>();
+    private final Map<DeliveryPriority, PriorityStatus> priorities = new EnumMap<>(DeliveryPriority.class);
+    private final ConcurrentHashMap<String, ProjectStatus> projects = new ConcurrentHashMap<>();
+
+    public WebhookMetrics() {
+        for (DeliveryPriority priority : DeliveryPriority.values()) {
+            priorities.put(priority, new PriorityStatus());
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name); // left by the previous plugin instance
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            LOG.warnAndDebugDetails("Failed to register webhooks metrics in JMX", e);
+        }
+    }
+
+    /**
+     * Unregisters metrics from JMX
+     */
+    public void dispose() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException ignored) {
+        }
+    }
+
+    void recordPayload(@NotNull String eventType, long nanos) {
+        payloadLatency.computeIfAbsent(eventType, key -> new LatencyHistogram()).record(nanos);
+    }
+
+    void recordRequest(@NotNull String url, long nanos) {
+        getReceiverEntry(requestLatency, url, LatencyHistogram::new).record(nanos);
+    }
+
+    void recordRetry(@NotNull WebhookDelivery delivery) {
+        retries.increment();
+        getReceiverEntry(receiverRetries, delivery.getUrl(), LongAdder::new).increment();
+        eventTypeRetries.computeIfAbsent(getEventType(delivery), key -> new LongAdder()).increment();
+    }
+
+    void recordCoalesced() {
+        coalesced.increment();
+    }
+
+    void recordResync() {
+        resyncs.increment();
+    }
+
+    void submitted(@NotNull String projectKey) {
+        getProjectStatus(projectKey).inFlight.incrementAndGet();
+    }
+
+    void delivered(@NotNull WebhookDelivery delivery) {
+        delivered.increment();
+        long now = System.currentTimeMillis();
+        long latencyMillis = now - delivery.getCreatedAt();
+        getReceiverEntry(endToEndLatency, delivery.getUrl(), LatencyHistogram::new).record(latencyMillis * 1_000_000L);
+        eventTypeEndToEndLatency.computeIfAbsent(getEventType(delivery), key -> new LatencyHistogram()).record(latencyMillis * 1_000_000L);
+        PriorityStatus priorityStatus = priorities.get(delivery.getPriority());
+        priorityStatus.latency.record(latencyMillis * 1_000_000L);
+        if (latencyMillis > delivery.getPriority().getLatencyTargetMillis())
+            priorityStatus.missedTarget.increment();
+        ProjectStatus status = getProjectStatus(delivery.getProjectKey());
+        status.lastSuccess = now;
+        status.inFlight.decrementAndGet();
+    }
+
+    /**
+     * Records the failure reason and message with the receiver url replaced by its {@link #getReceiverKey key},
+     * since they are shown to users and may contain the url with its secrets
+     */
+    void failed(@NotNull WebhookDelivery delivery, @NotNull String reason, @Nullable String message) {
+        failed.increment();
+        ProjectStatus status = getProjectStatus(delivery.getProjectKey());
+        status.lastFailure = System.currentTimeMillis();
+        status.lastFailureReason = redact(reason, delivery.getUrl());
+        status.lastFailureMessage = message == null ? null : redact(message, delivery.getUrl());
+        status.inFlight.decrementAndGet();
+    }
+
+    @NotNull
+    Map<String, LatencyHistogram> getPayloadHistograms() {
+        return new TreeMap<>(payloadLatency);
+    }
+
+    @NotNull
+    Map<String, LatencyHistogram> getRequestHistograms() {
+        return new TreeMap<>(requestLatency);
+    }
+
+    @NotNull
+    Map<String, LatencyHistogram> getEndToEndHistograms() {
+        return new TreeMap<>(endToEndLatency);
+    }
+
+    @NotNull
+    Map<String, LatencyHistogram> getEventTypeEndToEndHistograms() {
+        return new TreeMap<>(eventTypeEndToEndLatency);
+    }
+
+    @NotNull
+    Map<String, Long> getReceiverRetryCounts() {
+        return sum(receiverRetries);
+    }
+
+    @NotNull
+    Map<String, Long> getEventTypeRetryCounts() {
+        return sum(eventTypeRetries);
+    }
+
+    /**
+     * @return end-to-end latency and count of deliveries which missed the latency target per priority class
+     */
+    @NotNull
+    Map<DeliveryPriority, PriorityStatus> getPriorities() {
+        return Collections.unmodifiableMap(priorities);
+    }
+
+    @NotNull
+    Map<String, ProjectStatus> getProjects() {
+        return new TreeMap<>(projects);
+    }
+
+    @Override
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public long getResyncCount() {
+        return resyncs.sum();
+    }
+
+    @Override
+    public int getInFlightCount() {
+        int inFlight = 0;
+        for (ProjectStatus status : projects.values()) {
+            inFlight += status.inFlight.get();
+        }
+        return inFlight;
+    }
+
+    @Override
+    public String[] getPayloadLatency() {
+        return describe(payloadLatency);
+    }
+
+    @Override
+    public String[] getRequestLatency() {
+        return describe(requestLatency);
+    }
+
+    @Override
+    public String[] getEndToEndLatency() {
+        return describe(endToEndLatency);
+    }
+
+    @Override
+    public String[] getEventTypeEndToEndLatency() {
+        return describe(eventTypeEndToEndLatency);
+    }
+
+    @Override
+    public String[] getReceiverRetries() {
+        return describe(getReceiverRetryCounts());
+    }
+
+    @Override
+    public String[] getEventTypeRetries() {
+        return describe(getEventTypeRetryCounts());
+    }
+
+    @Override
+    public String[] getPriorityLatency() {
+        return priorities.entrySet().stream()
+                .map(entry -> entry.getKey() + ": " + entry.getValue().describe(entry.getKey()))
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public String[] getProjectStatuses() {
+        return getProjects().entrySet().stream()
+                .map(entry -> entry.getKey() + ": " + entry.getValue())
+                .toArray(String[]::new);
+    }
+
+    @NotNull
+    private static <T> T getReceiverEntry(@NotNull ConcurrentHashMap<String, T> entries, @NotNull String url, @NotNull Supplier<T> factory) {
+        String key = getReceiverKey(url);
+        T entry = entries.get(key);
+        if (entry != null)
+            return entry;
+        if (entries.size() >= TeamCityProperties.getInteger(MAX_RECEIVERS_PROPERTY, 100))
+            key = OTHER_RECEIVERS;
+        return entries.computeIfAbsent(key, k -> factory.get());
+    }
+
+    @NotNull
+    private static String getEventType(@NotNull WebhookDelivery delivery) {
+        String eventType = delivery.getEventType();
+        return eventType != null ? eventType : BATCH_EVENT_TYPE;
+    }
+
+    /**
+     * @return {@param url} without user info, query and fragment
+     */
+    @NotNull
+    static String getReceiverKey(@NotNull String url) {
+        try {
+            URI uri = new URI(url);
+            if (uri.isOpaque() || uri.getHost() == null)
+                return MALFORMED_URL;
+            return new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(), uri.getPath(), null, null).toString();
+        } catch (URISyntaxException e) {
+            return MALFORMED_URL;
+        }
+    }
+
+    @NotNull
+    private static String redact(@NotNull String text, @NotNull String url) {
+        return url.isEmpty() ? text : text.replace(url, getReceiverKey(url));
+    }
+
+    @NotNull
+    private ProjectStatus getProjectStatus(@NotNull String projectKey) {
+        return projects.computeIfAbsent(projectKey, key -> new ProjectStatus());
+    }
+
+    @NotNull
+    private static Map<String, Long> sum(@NotNull Map<String, LongAdder> counters) {
+        Map<String, Long> sums = new TreeMap<>();
+        counters.forEach((key, counter) -> sums.put(key, counter.sum()));
+        return sums;
+    }
+
+    @NotNull
+    private static String[] describe(@NotNull Map<String, ?> histograms) {
+        return new TreeMap<>(histograms).entrySet().stream()
+                .map(entry -> entry.getKey() + ": " + entry.getValue())
+                .toArray(String[]::new);
+    }
+
+    static class PriorityStatus {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder missedTarget = new LongAdder();
+
+        @NotNull
+        private String describe(@NotNull DeliveryPriority priority) {
+            return format("%s target=%dms missedTarget=%d", latency, priority.getLatencyTargetMillis(), missedTarget.sum());
+        }
+    }
+
+    static class ProjectStatus {
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile long lastSuccess;
+        volatile long lastFailure;
+        volatile String lastFailureReason;
+        volatile String lastFailureMessage;
+
+        @Override
+        public String toString() {
+            return format("inFlight=%d lastSuccess=%s lastFailure=%s%s", inFlight.get(), formatTime(lastSuccess), formatTime(lastFailure),
+                    lastFailureReason == null ? "" : format(" reason=%s message=%s", lastFailureReason, lastFailureMessage));
+        }
+
+        @Nullable
+        static String formatTime(long time) {
+            return time == 0 ? null : Instant.ofEpochMilli(time).toString();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package jetbrains.buildServer.webhook;
+
+/**
+ * JMX view of {@link WebhookMetrics}, registered as {@link WebhookMetrics#OBJECT_NAME}
+ */
+public interface WebhookMetricsMBean {
+
+    long getDeliveredCount();
+
+    long getFailedCount();
+
+    long getRetryCount();
+
+    /**
+     * @return count of retries per receiver url without user info and query
+     */
+    String[] getReceiverRetries();
+
+    /**
+     * @return count of retries per event type, retries of batches are counted as {@link WebhookMetrics#BATCH_EVENT_TYPE}
+     */
+    String[] getEventTypeRetries();
+
+    /**
+     * @return count of webhooks dropped because a pending webhook of the same object was sent instead
+     */
+    long getCoalescedCount();
+
+    /**
+     * @return count of delta webhooks the receiver rejected and got the whole object instead
+     */
+    long getResyncCount();
+
+    int getInFlightCount();
+
+    /**
+     * @return payload generation latency per event type
+     */
+    String[] getPayloadLatency();
+
+    /**
+     * @return HTTP request latency per receiver url without user info and query, see {@link WebhookMetrics#getReceiverKey}
+     */
+    String[] getRequestLatency();
+
+    /**
+     * @return latency from the event to the successful delivery per receiver url without user info and query
+     */
+    String[] getEndToEndLatency();
+
+    /**
+     * @return latency from the event to the successful delivery per event type
+     */
+    String[] getEventTypeEndToEndLatency();
+
+    /**
+     * @return latency from the event to the successful delivery, the latency target and count of deliveries which missed it per priority class
+     */
+    String[] getPriorityLatency();
+
+    /**
+     * @return last success, last failure and in-flight webhooks per project
+     */
+    String[] getProjectStatuses();
+}
@@ -0,0 +1,542 @@
+package jetbrains.buildServer.webhook;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.lang.String.format;
+
+/**
+ * Durable append-only storage of webhooks which were not delivered yet.
+ * <p>
+ * Every delivery is appended as a pending record before the first attempt and acknowledged by an ack record
+ * once it's delivered. The payload is rendered straight into the record, and the delivery sends the persisted bytes.
+ * Deliveries which failed stay pending, so they are replayed after the server restart.
+ * Records are written to segment files under the plugin data directory, writes are forced to disk in groups
+ * by a background flusher outside of the write lock, so appending doesn't wait for fsync.
+ * Pending records left after server restart are replayed in the order they were appended.
+ * Sealed segments are compacted by moving their still pending records to the current segment and deleting them,
+ * a segment is kept until all its pending records are moved.
+ * Records older than {@link #MAX_AGE_PROPERTY} are dropped by compaction and are not replayed
+ * <p>
+ * The outbox is enabled by {@link #ENABLED_PROPERTY} internal property
+ */
+@Component
+public class WebhookOutbox {
+
+    private static final Logger LOG = Logger.getInstance(WebhookOutbox.class.getName());
+
+    static final String ENABLED_PROPERTY = "teamcity.webhooks.outbox.enabled";
+    static final String FSYNC_INTERVAL_PROPERTY = "teamcity.webhooks.outbox.fsyncIntervalMs";
+    static final String SEGMENT_SIZE_PROPERTY = "teamcity.webhooks.outbox.segmentSizeBytes";
+    static final String COMPACTION_INTERVAL_PROPERTY = "teamcity.webhooks.outbox.compactionIntervalMs";
+    static final String MAX_AGE_PROPERTY = "teamcity.webhooks.outbox.maxAgeMs";
+
+    static final long NO_ID = -1;
+
+    private static final byte PENDING = 1;
+    private static final byte ACK = 2;
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final AtomicLong nextId = new AtomicLong();
+    /** segment sequence of every not acknowledged record, {@link #NO_ID} while compaction moves the record */
+    private final ConcurrentHashMap<Long, Long> pending = new ConcurrentHashMap<>();
+    /**
+     * ids of records of every segment which may still be pending, so compaction reads only segments with pending records.
+     * Sets are changed only inside map operations
+     */
+    private final ConcurrentHashMap<Long, Set<Long>> segmentIds = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final List<Record> recovered = new ArrayList<>();
+    private ScheduledExecutorService maintenance;
+    private volatile FileChannel channel;
+    private long segmentSequence;
+    private boolean dirty;
+
+    public WebhookOutbox(ServerPaths serverPaths) {
+        directory = new File(serverPaths.getPluginDataDirectory(), "webhooks/outbox").toPath();
+        segmentSize = TeamCityProperties.getLong(SEGMENT_SIZE_PROPERTY, 16 * 1024 * 1024);
+        if (TeamCityProperties.getBoolean(ENABLED_PROPERTY)) {
+            try {
+                open();
+            } catch (IOException e) {
+                LOG.warnAndDebugDetails("Failed to open webhooks outbox at " + directory + ", undelivered webhooks won't be persisted", e);
+                closeQuietly();
+            }
+        }
+    }
+
+    boolean isEnabled() {
+        return channel != null;
+    }
+
+    /**
+     * Persists delivery as pending together with its event type and priority, rendering {@param payload} straight into the record
+     * @param payload payload which should be sent when the delivery is replayed
+     * @return the written record, which payload shares the rendered bytes, so they can be sent without rendering the payload again,
+     * or null if the outbox is disabled or the record wasn't written
+     */
+    @Nullable
+    Record append(@NotNull WebhookDelivery delivery, @NotNull WebhookPayload payload) {
+        if (!isEnabled())
+            return null;
+        long id = nextId.getAndIncrement();
+        try {
+            Record record = encodePending(id, delivery.getCreatedAt(), delivery.getProjectKey(), delivery.getUrl(), delivery.getEventType(), delivery.getPriority(), payload);
+            write(record.toBuffer(), id, false);
+            return record;
+        } catch (IOException | UncheckedIOException e) {
+            LOG.warnAndDebugDetails("Failed to append webhook to outbox " + directory, e);
+            return null;
+        }
+    }
+
+    /**
+     * Marks delivery as done, so it won't be replayed
+     */
+    void ack(long id) {
+        if (id == NO_ID || !isEnabled())
+            return;
+        Long segment = pending.remove(id);
+        if (segment == null)
+            return;
+        segmentIds.computeIfPresent(segment, (key, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+        ByteBuffer record = record(ACK, 8);
+        record.putLong(id);
+        try {
+            write(checksum(record), NO_ID, false);
+        } catch (IOException e) {
+            LOG.warnAndDebugDetails("Failed to acknowledge webhook in outbox " + directory, e);
+        }
+    }
+
+    /**
+     * Passes deliveries left pending after the previous server run to {@param consumer} in order they were appended,
+     * records are kept pending until they are acknowledged
+     */
+    void replay(@NotNull Consumer<Record> consumer) {
+        List<Record> records;
+        synchronized (recovered) {
+            records = new ArrayList<>(recovered);
+            recovered.clear();
+        }
+        long maxAge = TeamCityProperties.getLong(MAX_AGE_PROPERTY, TimeUnit.DAYS.toMillis(1));
+        for (Record record : records) {
+            if (maxAge > 0 && System.currentTimeMillis() - record.createdAt > maxAge) {
+                LOG.info(format("Webhook for project %s to %s created at %s is too old and won't be replayed.", record.projectKey, record.url, new Date(record.createdAt)));
+                ack(record.id);
+            } else {
+                consumer.accept(record);
+            }
+        }
+    }
+
+    void close() {
+        if (maintenance != null)
+            maintenance.shutdownNow();
+        synchronized (writeLock) {
+            flush();
+            closeQuietly();
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        Map<Long, Record> records = new LinkedHashMap<>();
+        Set<Long> acked = new HashSet<>();
+        long lastSegment = 0;
+        long maxId = -1;
+        for (Path segment : listSegments()) {
+            long sequence = getSequence(segment);
+            lastSegment = Math.max(lastSegment, sequence);
+            maxId = Math.max(maxId, read(segment, sequence, records, acked));
+        }
+        for (Long id : acked) {
+            records.remove(id);
+        }
+        records.values().stream()
+                .sorted(Comparator.comparingLong(record -> record.id))
+                .forEach(record -> {
+                    pending.put(record.id, record.segment);
+                    addSegmentId(record.segment, record.id);
+                    recovered.add(record);
+                });
+        nextId.set(maxId + 1);
+        segmentSequence = lastSegment;
+        roll();
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("WebhooksOutbox"));
+        long fsyncInterval = Math.max(1, TeamCityProperties.getLong(FSYNC_INTERVAL_PROPERTY, 100));
+        maintenance.scheduleWithFixedDelay(this::flushOutsideLock, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+        long compactionInterval = Math.max(1000, TeamCityProperties.getLong(COMPACTION_INTERVAL_PROPERTY, TimeUnit.MINUTES.toMillis(1)));
+        maintenance.scheduleWithFixedDelay(this::compact, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param pendingId id of the written pending record or {@link #NO_ID} for ack records
+     * @param relocated true if the pending record is moved from a sealed segment by compaction
+     */
+    private void write(@NotNull ByteBuffer record, long pendingId, boolean relocated) throws IOException {
+        synchronized (writeLock) {
+            if (channel == null)
+                throw new ClosedChannelIOException();
+            if (channel.position() > 0 && channel.position() + record.remaining() > segmentSize)
+                roll();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            if (pendingId != NO_ID) {
+                if (!relocated) {
+                    pending.put(pendingId, segmentSequence);
+                    addSegmentId(segmentSequence, pendingId);
+                } else if (pending.replace(pendingId, NO_ID, segmentSequence)) { // unless acknowledged meanwhile
+                    addSegmentId(segmentSequence, pendingId);
+                }
+            }
+            dirty = true;
+        }
+    }
+
+    private void addSegmentId(long sequence, long id) {
+        segmentIds.compute(sequence, (key, ids) -> {
+            if (ids == null)
+                ids = new HashSet<>();
+            ids.add(id);
+            return ids;
+        });
+    }
+
+    /** should be called under write lock */
+    private void flush() {
+        if (!dirty || channel == null)
+            return;
+        try {
+            channel.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            LOG.warnAndDebugDetails("Failed to flush webhooks outbox " + directory, e);
+        }
+    }
+
+    /**
+     * Forces writes to disk without holding the write lock, so appends are not blocked by fsync
+     */
+    private void flushOutsideLock() {
+        FileChannel flushed;
+        synchronized (writeLock) {
+            if (!dirty || channel == null)
+                return;
+            flushed = channel;
+            dirty = false;
+        }
+        try {
+            flushed.force(false);
+        } catch (ClosedChannelException e) {
+            // the segment was rolled or the outbox was closed, both force the segment before closing it
+        } catch (IOException e) {
+            LOG.warnAndDebugDetails("Failed to flush webhooks outbox " + directory, e);
+            synchronized (writeLock) {
+                dirty = true;
+            }
+        }
+    }
+
+    /** should be called under write lock */
+    private void roll() throws IOException {
+        if (channel != null) {
+            flush();
+            channel.close();
+        }
+        segmentSequence++;
+        channel = FileChannel.open(getSegmentPath(segmentSequence), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Deletes sealed segments moving their pending records to the current segment first,
+     * pending records older than {@link #MAX_AGE_PROPERTY} are dropped.
+     * A segment which pending records failed to be moved is kept, so they are replayed or moved by the next compaction
+     */
+    void compact() {
+        try {
+            long current;
+            synchronized (writeLock) {
+                current = segmentSequence;
+            }
+            long maxAge = TeamCityProperties.getLong(MAX_AGE_PROPERTY, TimeUnit.DAYS.toMillis(1));
+            long now = System.currentTimeMillis();
+            int dropped = 0;
+            for (Path segment : listSegments()) {
+                long sequence = getSequence(segment);
+                if (sequence >= current)
+                    continue;
+                boolean moved = true;
+                if (segmentIds.containsKey(sequence)) {
+                    Map<Long, Record> records = new LinkedHashMap<>();
+                    read(segment, sequence, records, new HashSet<>());
+                    for (Record record : records.values()) {
+                        if (maxAge > 0 && now - record.createdAt > maxAge) {
+                            if (pending.remove(record.id, sequence))
+                                dropped++;
+                        } else if (pending.replace(record.id, sequence, NO_ID)) {
+                            try {
+                                write(record.toBuffer(), record.id, true);
+                            } catch (IOException e) {
+                                pending.replace(record.id, NO_ID, sequence);
+                                moved = false;
+                                LOG.warnAndDebugDetails("Failed to move webhook to the current segment of outbox " + directory + ", segment " + segment + " is kept", e);
+                            }
+                        }
+                    }
+                    flushOutsideLock();
+                }
+                if (moved) {
+                    segmentIds.remove(sequence);
+                    Files.deleteIfExists(segment);
+                }
+            }
+            if (dropped > 0)
+                LOG.info(format("%d undelivered webhooks are older than %d ms and were dropped from outbox %s", dropped, maxAge, directory));
+        } catch (IOException e) {
+            LOG.warnAndDebugDetails("Failed to compact webhooks outbox " + directory, e);
+        }
+    }
+
+    /**
+     * Reads records of the segment until the end or the first damaged record
+     * @return maximum record id found in the segment
+     */
+    private long read(@NotNull Path segment, long sequence, @NotNull Map<Long, Record> records, @NotNull Set<Long> acked) throws IOException {
+        long maxId = -1;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+            while (true) {
+                int length;
+                long checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE)
+                    break;
+                byte[] bytes = new byte[HEADER_SIZE + length];
+                try {
+                    in.readFully(bytes, HEADER_SIZE, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes, HEADER_SIZE, length);
+                if (crc.getValue() != checksum)
+                    break;
+                ByteBuffer.wrap(bytes).putInt(length).putLong(checksum);
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(bytes, HEADER_SIZE, length));
+                byte type = recordIn.readByte();
+                long id = recordIn.readLong();
+                maxId = Math.max(maxId, id);
+                if (type == ACK) {
+                    acked.add(id);
+                } else if (type == PENDING) {
+                    long createdAt = recordIn.readLong();
+                    String projectKey = recordIn.readUTF();
+                    String url = recordIn.readUTF();
+                    String eventType = recordIn.readUTF();
+                    DeliveryPriority priority = getPriority(recordIn.readUTF());
+                    int bodyLength = recordIn.readInt();
+                    // the body is the last field of the record
+                    records.put(id, new Record(id, sequence, createdAt, projectKey, url, eventType.isEmpty() ? null : eventType, priority,
+                            bytes, bytes.length - bodyLength, bodyLength));
+                }
+            }
+        }
+        return maxId;
+    }
+
+    /**
+     * Encodes pending record into a single buffer shared by the record payload
+     */
+    @NotNull
+    private static Record encodePending(long id, long createdAt, String projectKey, String url,
+                                        @Nullable String eventType, DeliveryPriority priority, WebhookPayload payload) throws IOException {
+        long payloadLength = payload.getLength();
+        RecordBuffer bytes = new RecordBuffer(HEADER_SIZE + 64 + 3 * (projectKey.length() + url.length()) + (int) Math.max(0, Math.min(payloadLength, MAX_RECORD_SIZE)));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(new byte[HEADER_SIZE]);
+        out.writeByte(PENDING);
+        out.writeLong(id);
+        out.writeLong(createdAt);
+        out.writeUTF(projectKey);
+        out.writeUTF(url);
+        out.writeUTF(eventType == null ? "" : eventType);
+        out.writeUTF(priority.name());
+        out.writeInt(0); // body length, known once the payload is written
+        int bodyOffset = bytes.size();
+        payload.writeTo(bytes);
+        int bodyLength = bytes.size() - bodyOffset;
+        if (bytes.size() - HEADER_SIZE > MAX_RECORD_SIZE)
+            throw new IOException(format("Webhook payload of %d bytes is too large for outbox", bodyLength));
+        ByteBuffer record = ByteBuffer.wrap(bytes.getArray(), 0, bytes.size());
+        record.putInt(0, bytes.size() - HEADER_SIZE);
+        record.putInt(bodyOffset - 4, bodyLength);
+        checksum(record);
+        return new Record(id, NO_ID, createdAt, projectKey, url, eventType, priority, bytes.getArray(), bodyOffset, bodyLength, bytes.size());
+    }
+
+    @NotNull
+    private static DeliveryPriority getPriority(@NotNull String name) {
+        try {
+            return DeliveryPriority.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return DeliveryPriority.NORMAL;
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer record(byte type, int payloadLength) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 1 + payloadLength);
+        record.putInt(1 + payloadLength);
+        record.position(HEADER_SIZE);
+        record.put(type);
+        return record;
+    }
+
+    @NotNull
+    private static ByteBuffer checksum(@NotNull ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, record.limit() - HEADER_SIZE);
+        record.putLong(4, crc.getValue());
+        record.rewind();
+        return record;
+    }
+
+    @NotNull
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX) && path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted(Comparator.comparingLong(WebhookOutbox::getSequence))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @NotNull
+    private Path getSegmentPath(long sequence) {
+        return directory.resolve(format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private static long getSequence(@NotNull Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void closeQuietly() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Exposes its array, so the encoded record is written and sent without copying
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer(int size) {
+            super(size);
+        }
+
+        @NotNull
+        byte[] getArray() {
+            return buf;
+        }
+    }
+
+    private static class ClosedChannelIOException extends IOException {
+        ClosedChannelIOException() {
+            super("Webhooks outbox is closed");
+        }
+    }
+
+    /**
+     * Delivery which was persisted in the outbox but not acknowledged
+     */
+    static class Record {
+        final long id;
+        final long createdAt;
+        final String projectKey;
+        final String url;
+        /** null if the webhook is a batch of events */
+        final String eventType;
+        final DeliveryPriority priority;
+        private final long segment;
+        /** whole encoded record including the header */
+        private final byte[] bytes;
+        private final int size;
+        private final int bodyOffset;
+        private final int bodyLength;
+
+        private Record(long id, long segment, long createdAt, String projectKey, String url, String eventType, DeliveryPriority priority,
+                       byte[] bytes, int bodyOffset, int bodyLength) {
+            this(id, segment, createdAt, projectKey, url, eventType, priority, bytes, bodyOffset, bodyLength, bytes.length);
+        }
+
+        private Record(long id, long segment, long createdAt, String projectKey, String url, String eventType, DeliveryPriority priority,
+                       byte[] bytes, int bodyOffset, int bodyLength, int size) {
+            this.id = id;
+            this.segment = segment;
+            this.createdAt = createdAt;
+            this.projectKey = projectKey;
+            this.url = url;
+            this.eventType = eventType;
+            this.priority = priority;
+            this.bytes = bytes;
+            this.size = size;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+        }
+
+        @NotNull
+        WebhookPayload getPayload() {
+            return WebhookPayload.of(bytes, bodyOffset, bodyLength);
+        }
+
+        @NotNull
+        private ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+    }
+}
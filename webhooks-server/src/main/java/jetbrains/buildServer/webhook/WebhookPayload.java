@@ -0,0 +1,99 @@
+package jetbrains.buildServer.webhook;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * JSON body of webhook request which is written straight into the request stream.
+ * Payload can be written several times, e.g. when the request is retried
+ */
+public interface WebhookPayload {
+
+    void writeTo(@NotNull OutputStream out) throws IOException;
+
+    /**
+     * @return count of bytes {@link #writeTo} writes, or -1 if it is not known until the payload is written
+     */
+    default long getLength() {
+        return -1;
+    }
+
+    @NotNull
+    static WebhookPayload of(@NotNull String json) {
+        return of(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    static WebhookPayload of(@NotNull byte[] json) {
+        return of(json, 0, json.length);
+    }
+
+    /**
+     * @return payload of {@param length} bytes of {@param bytes} starting from {@param offset}, the bytes are not copied
+     */
+    @NotNull
+    static WebhookPayload of(@NotNull byte[] bytes, int offset, int length) {
+        return new WebhookPayload() {
+            @Override
+            public void writeTo(@NotNull OutputStream out) throws IOException {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public long getLength() {
+                return length;
+            }
+        };
+    }
+
+    /**
+     * @return payload containing JSON array of {@param payloads}, its length is known if lengths of all of them are known
+     */
+    @NotNull
+    static WebhookPayload array(@NotNull List<WebhookPayload> payloads) {
+        long arrayLength = payloads.isEmpty() ? 2 : payloads.size() + 1;
+        for (WebhookPayload payload : payloads) {
+            long length = payload.getLength();
+            if (length < 0) {
+                arrayLength = -1;
+                break;
+            }
+            arrayLength += length;
+        }
+        final long length = arrayLength;
+        return new WebhookPayload() {
+            @Override
+            public void writeTo(@NotNull OutputStream out) throws IOException {
+                out.write('[');
+                for (int i = 0; i < payloads.size(); i++) {
+                    if (i > 0)
+                        out.write(',');
+                    payloads.get(i).writeTo(out);
+                }
+                out.write(']');
+            }
+
+            @Override
+            public long getLength() {
+                return length;
+            }
+        };
+    }
+
+    @NotNull
+    static byte[] toBytes(@NotNull WebhookPayload payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            payload.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
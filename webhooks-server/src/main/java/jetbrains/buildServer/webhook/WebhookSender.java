@@ -0,0 +1,229 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.http.SimpleCredentials;
+import jetbrains.buildServer.serverSide.IOGuard;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider;
+import jetbrains.buildServer.webhook.WebhooksEventListener.WebhookSendException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+
+/**
+ * Sends {@link WebhookDelivery} to the receiver, writing its payload straight into the request body.
+ * The first attempt is performed in the calling thread, failed attempts are retried in background
+ * according to the delivery {@link RetryPolicy}, so the calling thread is never blocked by retries.
+ * The retry scheduler only waits for the retry delay and passes the attempt to {@link RetryExecutor},
+ * so a slow receiver never holds the scheduler thread and delays retries to other receivers.
+ * Requests to receivers which are failing or overloaded are postponed or failed fast, see {@link EndpointHealth}
+ */
+class WebhookSender {
+
+    static final String RETRY_THREADS_PROPERTY = "teamcity.webhooks.retry.threads";
+    private static final long MAINTENANCE_INTERVAL_SECONDS = 30;
+
+    interface DeliveryListener {
+        void delivered(@NotNull WebhookDelivery delivery);
+
+        void failed(@NotNull WebhookDelivery delivery, @NotNull WebhookSendException exception);
+    }
+
+    /**
+     * Executes attempts of retried and postponed deliveries
+     */
+    interface RetryExecutor {
+        /**
+         * @throws java.util.concurrent.RejectedExecutionException if the attempt won't be executed, the delivery is failed then
+         */
+        void execute(@NotNull WebhookDelivery delivery, @NotNull Runnable attempt);
+    }
+
+    private final EndpointClients clients;
+    private final WebhookMetrics metrics;
+    private final DeliveryListener listener;
+    private final RetryExecutor retryExecutor;
+    private final ScheduledExecutorService retryScheduler;
+    private final ConcurrentHashMap<String, EndpointHealth> endpoints = new ConcurrentHashMap<>();
+
+    WebhookSender(@NotNull SSLTrustStoreProvider sslTrustStoreProvider,
+                  @NotNull WebhookMetrics metrics,
+                  @NotNull DeliveryListener listener,
+                  @NotNull RetryExecutor retryExecutor) {
+        this.clients = new EndpointClients(sslTrustStoreProvider);
+        this.metrics = metrics;
+        this.listener = listener;
+        this.retryExecutor = retryExecutor;
+        this.retryScheduler = Executors.newScheduledThreadPool(Math.max(1, TeamCityProperties.getInteger(RETRY_THREADS_PROPERTY, 1)),
+                new NamedDaemonThreadFactory("WebhooksRetry"));
+        this.retryScheduler.scheduleWithFixedDelay(clients::maintain, MAINTENANCE_INTERVAL_SECONDS, MAINTENANCE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    void send(@NotNull WebhookDelivery delivery) {
+        EndpointHealth endpoint = endpoints.computeIfAbsent(delivery.getUrl(), url -> new EndpointHealth());
+        long parkDelay = endpoint.tryAcquire();
+        if (parkDelay > 0) {
+            park(delivery, parkDelay, endpoint);
+            return;
+        }
+        WebhookSendException failure;
+        try {
+            failure = attempt(delivery, endpoint);
+        } catch (WebhookSendException ex) {
+            endpoint.releaseUnused();
+            listener.failed(delivery, ex);
+            return;
+        }
+        endpoint.release(failure != null && isEndpointFailure(failure));
+        if (failure == null) {
+            listener.delivered(delivery);
+            return;
+        }
+        int failedAttempts = delivery.registerFailedAttempt();
+        RetryPolicy retryPolicy = delivery.getRetryPolicy();
+        long delay = retryPolicy.getDelayMillis(failedAttempts);
+        if (!retryPolicy.shouldRetry(failedAttempts, delivery.getCreatedAt(), delay)) {
+            listener.failed(delivery, failure);
+            return;
+        }
+        metrics.recordRetry(delivery);
+        schedule(delivery, delay, failure);
+    }
+
+    /**
+     * Postpones delivery which cannot be sent now because the receiver circuit is open or its bulkhead is full,
+     * without counting it as a failed attempt. Deliveries which are not supposed to be retried fail fast when the circuit is open
+     */
+    private void park(@NotNull WebhookDelivery delivery, long delay, @NotNull EndpointHealth endpoint) {
+        RetryPolicy retryPolicy = delivery.getRetryPolicy();
+        boolean circuitOpen = endpoint.getState() != EndpointHealth.State.CLOSED;
+        if ((circuitOpen && retryPolicy.getRetryCount() == 0) || retryPolicy.isExpired(delivery.getCreatedAt(), delay)) {
+            listener.failed(delivery, circuitOpenException(delivery, circuitOpen));
+            return;
+        }
+        schedule(delivery, delay, circuitOpenException(delivery, circuitOpen));
+    }
+
+    private void schedule(@NotNull WebhookDelivery delivery, long delay, @NotNull WebhookSendException failure) {
+        try {
+            retryScheduler.schedule(() -> resubmit(delivery, failure), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            listener.failed(delivery, failure);
+        }
+    }
+
+    private void resubmit(@NotNull WebhookDelivery delivery, @NotNull WebhookSendException failure) {
+        try {
+            retryExecutor.execute(delivery, () -> send(delivery));
+        } catch (RejectedExecutionException e) {
+            listener.failed(delivery, failure);
+        }
+    }
+
+    @NotNull
+    private static WebhookSendException circuitOpenException(@NotNull WebhookDelivery delivery, boolean circuitOpen) {
+        return circuitOpen
+                ? new WebhookSendException("CIRCUIT_OPEN", format("Sending webhook to %s skipped because the receiver failed recently.", delivery.getUrl()))
+                : new WebhookSendException("BULKHEAD_FULL", format("Sending webhook to %s postponed because of too many concurrent requests to the receiver.", delivery.getUrl()));
+    }
+
+    /**
+     * @return false if the request was rejected because of the request itself, e.g. with 4xx code,
+     * and so the failure shouldn't affect the receiver health
+     */
+    private static boolean isEndpointFailure(@NotNull WebhookSendException failure) {
+        try {
+            int code = Integer.parseInt(failure.getReason());
+            return code >= 500 || code == 408 || code == 429;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    void shutdown() {
+        retryScheduler.shutdownNow();
+        clients.close();
+    }
+
+    /**
+     * Performs single request
+     * @return exception describing the failure or null if webhook was sent successfully
+     * @throws WebhookSendException if the failure cannot be fixed by retrying
+     */
+    @Nullable
+    private WebhookSendException attempt(@NotNull WebhookDelivery delivery, @NotNull EndpointHealth endpoint) throws WebhookSendException {
+        final String uri = delivery.getUrl();
+        final HttpPost request;
+        try {
+            request = new HttpPost(new URI(uri));
+        } catch (URISyntaxException | IllegalArgumentException ex) {
+            throw new WebhookSendException(uri, format("Sending webhook to %s failed because of wrong URL syntax. Exception message: %s.", uri, ex.getMessage()));
+        }
+        SimpleCredentials credentials = delivery.getCredentials();
+        if (credentials != null) {
+            String token = credentials.getUsername() + ":" + credentials.getPassword();
+            request.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + Base64.getEncoder().encodeToString(token.getBytes(StandardCharsets.UTF_8)));
+        }
+        try {
+            boolean gzip = delivery.isGzip() && !endpoint.isGzipRejected();
+            CloseableHttpClient httpClient = clients.get(request.getURI());
+            int code = execute(httpClient, request, delivery.getPayload(), gzip);
+            if (gzip && code == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+                // receiver doesn't accept compressed requests
+                endpoint.rejectGzip();
+                code = execute(httpClient, request, delivery.getPayload(), false);
+            }
+            WebhookPayload resyncPayload = delivery.getResyncPayload();
+            if (resyncPayload != null && code == HttpStatus.SC_CONFLICT) {
+                // receiver missed the previous state and asks for the whole object
+                metrics.recordResync();
+                code = execute(httpClient, request, resyncPayload, gzip && !endpoint.isGzipRejected());
+            }
+            if (code >= 200 && code < 300)
+                return null;
+            return new WebhookSendException(String.valueOf(code), format("Sending webhook to %s failed with HTTP code: %s %s.", uri, code, EnglishReasonPhraseCatalog.INSTANCE.getReason(code, null)));
+        } catch (Exception ex) {
+            return new WebhookSendException(ex.getClass().getName(), format("Sending webhook to %s failed with exception %s.", uri, ex.getMessage()));
+        }
+    }
+
+    /**
+     * @return response status code
+     */
+    private int execute(@NotNull CloseableHttpClient httpClient, @NotNull HttpPost request, @NotNull WebhookPayload payload, boolean gzip) throws IOException {
+        request.setEntity(new PayloadEntity(payload, gzip));
+        AtomicInteger code = new AtomicInteger();
+        long start = System.nanoTime();
+        try {
+            IOGuard.allowNetworkCall(() -> {
+                try (CloseableHttpResponse response = httpClient.execute(request)) {
+                    code.set(response.getStatusLine().getStatusCode());
+                    EntityUtils.consumeQuietly(response.getEntity());
+                }
+            });
+        } finally {
+            metrics.recordRequest(request.getURI().toString(), System.nanoTime() - start);
+        }
+        return code.get();
+    }
+}
@@ -2,171 +2,498 @@ package jetbrains.buildServer.webhook;
 
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.http.SimpleCredentials;
-import jetbrains.buildServer.serverSide.IOGuard;
-import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.ProjectNotFoundException;
-import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.impl.ProjectEx;
-import jetbrains.buildServer.util.HTTPRequestBuilder;
-import jetbrains.buildServer.util.http.HttpMethod;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
 import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider;
 import jetbrains.buildServer.webhook.async.AsyncEventListener;
 import jetbrains.buildServer.webhook.async.events.AsyncEvent;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.stereotype.Component;
 
-import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.BiConsumer;
-import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.String.format;
 
 /**
- * {@link AsyncEventListener} produces webhook information and send it regarding the {@link ProjectEx} configuration
+ * {@link AsyncEventListener} produces webhook information and send it regarding the {@link ProjectEx} configuration,
+ * see {@link WebhookConfig}
  */
 @Component
 public class WebhooksEventListener implements AsyncEventListener {
 
     private static final Logger LOG = Logger.getInstance(WebhooksEventListener.class.getName());
+    private static final long DELIVERY_SHUTDOWN_TIMEOUT_SECONDS = 30;
+    static final String FAN_OUT_THREADS_PROPERTY = "teamcity.webhooks.delivery.fanOutThreads";
     private ConcurrentHashMap<String, String> lastErrorCodeMap = new ConcurrentHashMap<>();
 
     private final WebhookDataProducer jsonProducer;
-    private final SBuildServer buildServer;
-    private final SSLTrustStoreProvider sslTrustStoreProvider;
-    private final HTTPRequestBuilder.RequestHandler requestHandler;
+    private final ModelDataProducer nativeProducer;
+    private final WebhookConfigCache configCache;
+    private final WebhookSender sender;
+    private final WebhookOutbox outbox;
+    private final WebhookMetrics metrics;
+    private final EventSubjects eventSubjects;
+    private final ClusterSharding sharding;
+    /** started by the first webhook sent from delivery lanes, see {@link #getDeliveryExecutor()} */
+    private volatile PartitionedExecutor deliveryExecutor;
+    private boolean stopped;
+    /** sends which find no idle thread are rejected and run by the lane thread itself, see {@link #sendConcurrently} */
+    private final ExecutorService fanOutExecutor = new ThreadPoolExecutor(0,
+            Math.max(1, TeamCityProperties.getInteger(FAN_OUT_THREADS_PROPERTY, 2 * Runtime.getRuntime().availableProcessors())),
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), new NamedDaemonThreadFactory("WebhooksFanOut"));
+    private final WebhookBatcher batcher = new WebhookBatcher(this::deliverBatch);
+    private final EventCoalescer coalescer = new EventCoalescer();
+    private final DeltaPayloads deltas = new DeltaPayloads(TeamCityProperties.getInteger(DeltaPayloads.MAX_OBJECTS_PROPERTY, 1000));
 
     public WebhooksEventListener(WebhookDataProducer jsonProducer,
-                                 SBuildServer buildServer,
-                                 SSLTrustStoreProvider sslTrustStoreProvider,
-                                 HTTPRequestBuilder.RequestHandler requestHandler) {
+                                 ModelDataProducer nativeProducer,
+                                 WebhookConfigCache configCache,
+                                 WebhookOutbox outbox,
+                                 WebhookMetrics metrics,
+                                 EventSubjects eventSubjects,
+                                 ClusterSharding sharding,
+                                 SSLTrustStoreProvider sslTrustStoreProvider) {
         this.jsonProducer = jsonProducer;
-        this.buildServer = buildServer;
-        this.sslTrustStoreProvider = sslTrustStoreProvider;
-        this.requestHandler = requestHandler;
+        this.nativeProducer = nativeProducer;
+        this.configCache = configCache;
+        this.outbox = outbox;
+        this.metrics = metrics;
+        this.eventSubjects = eventSubjects;
+        this.sharding = sharding;
+        this.sender = new WebhookSender(sslTrustStoreProvider, metrics, new WebhookSender.DeliveryListener() {
+            @Override
+            public void delivered(@NotNull WebhookDelivery delivery) {
+                outbox.ack(delivery.getOutboxId());
+                if (delivery.getDelta() != null)
+                    deltas.delivered(delivery.getDelta());
+                metrics.delivered(delivery);
+                lastErrorCodeMap.remove(delivery.getProjectKey());
+            }
+
+            @Override
+            public void failed(@NotNull WebhookDelivery delivery, @NotNull WebhookSendException exception) {
+                metrics.failed(delivery, exception.getReason(), exception.getMessage());
+                warn(delivery.getProjectKey(), exception.getReason(), exception.getMessage());
+            }
+        }, this::retry);
+        sharding.start(new ClusterSharding.LocalNode() {
+            @Override
+            public void deliver(@NotNull List<AsyncEvent> events) {
+                handleLocally(events);
+            }
+
+            @Override
+            public void drain(@NotNull Runnable onDrained) {
+                WebhooksEventListener.this.drain(onDrained);
+            }
+        });
     }
 
     @Override
     public void handle(AsyncEvent event) {
-        final String projectKey = event.getProjectId() != null ? event.getProjectId() : "<Root Project>";
+        handle(Collections.singletonList(event));
+    }
+
+    @Override
+    public void handle(List<AsyncEvent> events) {
+        if (sharding.isEnabled()) {
+            sharding.route(events);
+        } else {
+            handleLocally(events);
+        }
+    }
+
+    /**
+     * Flushes pending batches and stops delivery lanes letting already accepted webhooks to be sent,
+     * scheduled retries are cancelled and left in {@link WebhookOutbox} if it's enabled
+     */
+    public void shutdown() {
+        sharding.stop();
+        batcher.shutdown();
+        PartitionedExecutor executor;
+        synchronized (this) {
+            stopped = true;
+            executor = deliveryExecutor;
+        }
+        if (executor != null) {
+            for (Runnable task : executor.shutdown(DELIVERY_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                if (task instanceof LaneTask)
+                    ((LaneTask) task).discard();
+            }
+        }
+        fanOutExecutor.shutdown();
+        sender.shutdown();
+        outbox.close();
+        sharding.leave();
+    }
+
+    private void handleLocally(List<AsyncEvent> events) {
+        for (AsyncEvent event : events) {
+            accept(event);
+        }
+        batcher.flushLingerless();
+    }
+
+    /**
+     * Sends pending batches and calls {@param onDrained} once webhooks of all accepted events are passed to the sender
+     */
+    private void drain(Runnable onDrained) {
+        batcher.flushAll();
+        PartitionedExecutor executor = deliveryExecutor;
+        if (executor == null) {
+            onDrained.run();
+        } else {
+            executor.afterSubmitted(onDrained);
+        }
+    }
+
+    /**
+     * @return delivery lanes, which are started on demand, so no threads are started while webhooks are sent
+     * in the events dispatcher thread, see {@link DeliveryPartitioning#NONE}
+     * @throws RejectedExecutionException if the listener is shut down
+     */
+    @NotNull
+    private PartitionedExecutor getDeliveryExecutor() {
+        PartitionedExecutor executor = deliveryExecutor;
+        if (executor != null)
+            return executor; // rejects tasks itself once shut down
+        synchronized (this) {
+            if (stopped)
+                throw new RejectedExecutionException("Webhooks delivery is shut down");
+            if (deliveryExecutor == null) {
+                deliveryExecutor = new PartitionedExecutor("WebhooksDelivery",
+                        TeamCityProperties.getInteger(DeliveryPartitioning.PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors()),
+                        TeamCityProperties.getInteger(DeliveryPartitioning.LANE_CAPACITY_PROPERTY, 10000));
+            }
+            return deliveryExecutor;
+        }
+    }
+
+    private void accept(AsyncEvent event) {
+        final String projectKey = WebhookConfigCache.getProjectKey(event);
         try {
-            ProjectEx project = getRelatedProject(event);
-            if (isWebhooksEnabled(project, event.getEventType())) {
-                String webhooksUrl = getWebhooksUrl(project);
-                if (jsonProducer.support(event)) {
-                    String eventData = jsonProducer.getJson(event, getResponseFields(project, event.getEventType()));
-                    sendWithRetry(webhooksUrl, getWebhooksCredential(project), eventData, getRetryCount(project));
-                    lastErrorCodeMap.remove(projectKey);
-                } else {
-                    LOG.warn("Unsupported event type " + event.getEventType());
-                }
+            List<WebhookEndpoint> endpoints = configCache.get(event).getEndpoints(event.getEventType());
+            if (endpoints.isEmpty())
+                return;
+            if (jsonProducer.support(event)) {
+                fanOut(projectKey, event, endpoints);
+            } else {
+                LOG.warn("Unsupported event type " + event.getEventType());
             }
-        } catch (WebhookSendException ex) {
-            warn(projectKey, ex.getReason(), ex.getMessage());
         } catch (ProjectNotFoundException ex) {
             warn(projectKey, "PROJECT_NOT_FOUND", "Related project not found for event " + event);
         } catch (Throwable throwable) {
-            warn(projectKey, throwable.getClass().getName(), throwable.getMessage());
+            handleFailure(projectKey, throwable);
         }
     }
 
-    private Integer getRetryCount(ProjectEx project) {
-        Integer defaultRetryCount = 0;
-        final String retryCountParameter = project.getInternalParameterValue("teamcity.internal.webhooks.retry_count", defaultRetryCount.toString());
+    /**
+     * Sends {@param event} to all its endpoints which filters accept it. Filters are evaluated against the event object
+     * loaded once before any payload is generated. The payload is rendered once per distinct fields,
+     * sends to endpoints of the same delivery lane are performed concurrently.
+     * Events of coalescing endpoints are dropped if they are already pending, see {@link EventCoalescer}
+     */
+    private void fanOut(String projectKey, AsyncEvent event, List<WebhookEndpoint> endpoints) {
+        final long createdAt = System.currentTimeMillis();
+        Map<String, SharedPayload> payloads = new HashMap<>();
+        Map<Object, List<Runnable>> lanes = new LinkedHashMap<>();
+        Map<Object, List<EventCoalescer.Ticket>> laneTickets = new HashMap<>();
+        EventFilter.Subject subject = null;
+        boolean subjectResolved = false;
+        for (WebhookEndpoint endpoint : endpoints) {
+            try {
+                EventFilter filter = endpoint.getFilter(event.getEventType());
+                if (!filter.isAll()) {
+                    if (!subjectResolved) {
+                        subject = eventSubjects.get(event);
+                        subjectResolved = true;
+                    }
+                    if (subject == null || !filter.matches(subject))
+                        continue;
+                }
+                String webhooksUrl = endpoint.getUrl();
+                if (endpoint.getBatchSize() > 1) {
+                    batcher.add(endpoint, webhooksUrl, event);
+                    continue;
+                }
+                SharedPayload payload = payloads.computeIfAbsent(endpoint.getFields(event.getEventType()), fields -> new SharedPayload(event, fields));
+                Object partitionKey = getPartitionKey(projectKey, webhooksUrl);
+                EventCoalescer.Ticket ticket = null;
+                if (endpoint.isCoalescing()) {
+                    ticket = coalescer.offer(endpoint, webhooksUrl, event);
+                    if (ticket == null) {
+                        metrics.recordCoalesced();
+                        continue;
+                    }
+                    laneTickets.computeIfAbsent(partitionKey, key -> new ArrayList<>()).add(ticket);
+                }
+                EventCoalescer.Ticket pendingTicket = ticket;
+                lanes.computeIfAbsent(partitionKey, key -> new ArrayList<>())
+                        .add(() -> {
+                            if (pendingTicket == null || coalescer.take(pendingTicket)) {
+                                send(endpoint, webhooksUrl, payload, createdAt);
+                            } else {
+                                metrics.recordCoalesced();
+                            }
+                        });
+            } catch (Throwable throwable) {
+                handleFailure(projectKey, throwable);
+            }
+        }
+        DeliveryPriority priority = DeliveryPriority.of(event.getEventType());
+        lanes.forEach((partitionKey, sends) -> {
+            List<EventCoalescer.Ticket> tickets = laneTickets.getOrDefault(partitionKey, Collections.emptyList());
+            try {
+                deliver(partitionKey, projectKey, priority, () -> sendConcurrently(projectKey, sends),
+                        tickets.isEmpty() ? null : () -> tickets.forEach(coalescer::release));
+            } catch (Throwable throwable) {
+                handleFailure(projectKey, throwable);
+            }
+        });
+    }
+
+    /**
+     * Performs sends in parallel and waits for all of them, so the slowest receiver doesn't delay the others
+     * while the order of webhooks within the delivery lane is kept. When all {@link #FAN_OUT_THREADS_PROPERTY} threads are busy,
+     * the remaining sends are performed by the calling thread
+     */
+    private void sendConcurrently(String projectKey, List<Runnable> sends) {
+        if (sends.size() == 1) {
+            sends.get(0).run();
+            return;
+        }
+        List<Future<?>> forked = new ArrayList<>(sends.size() - 1);
+        for (Runnable send : sends.subList(1, sends.size())) {
+            try {
+                forked.add(fanOutExecutor.submit(() -> runSafely(projectKey, send)));
+            } catch (RejectedExecutionException e) {
+                runSafely(projectKey, send);
+            }
+        }
+        runSafely(projectKey, sends.get(0));
+        for (Future<?> future : forked) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ignored) {
+                // failures are reported by runSafely
+            }
+        }
+    }
+
+    private void runSafely(String projectKey, Runnable send) {
         try {
-            return Integer.valueOf(retryCountParameter);
-        } catch (NumberFormatException ex) {
-            LOG.warn(format("Project %s parameter teamcity.internal.webhooks.retry_count is not a number. Default value %s will be used.", project.getName(), defaultRetryCount));
+            send.run();
+        } catch (Throwable throwable) {
+            handleFailure(projectKey, throwable);
         }
-        return defaultRetryCount;
     }
 
-    private ProjectEx getRelatedProject(AsyncEvent event) throws ProjectNotFoundException {
-        ProjectManager myProjectManager = buildServer.getProjectManager();
+    private void deliver(String projectKey, String webhooksUrl, DeliveryPriority priority, Runnable delivery) {
+        deliver(getPartitionKey(projectKey, webhooksUrl), projectKey, priority, delivery);
+    }
 
-        return event.getProjectId() == null
-                ? (ProjectEx) myProjectManager.getRootProject()
-                : (ProjectEx) myProjectManager.findProjectById(event.getProjectId());
+    private void deliver(@Nullable Object partitionKey, String projectKey, DeliveryPriority priority, Runnable delivery) {
+        deliver(partitionKey, projectKey, priority, delivery, null);
     }
 
-    private boolean isWebhooksEnabled(ProjectEx project, String eventType) {
-        if (project.getBooleanInternalParameter("teamcity.internal.webhooks.enable")) {
-            String eventsParameter = project.getInternalParameterValue("teamcity.internal.webhooks.events", "");
-            List<String> events = parseEvents(eventsParameter);
-            return events.contains(eventType);
+    /**
+     * @param onDiscarded called instead of {@param delivery} if the delivery lane rejects it or drops it on shutdown
+     */
+    private void deliver(@Nullable Object partitionKey, String projectKey, DeliveryPriority priority, Runnable delivery, @Nullable Runnable onDiscarded) {
+        if (partitionKey == null) {
+            delivery.run();
+            return;
+        }
+        LaneTask task = new LaneTask(projectKey, delivery, onDiscarded);
+        try {
+            getDeliveryExecutor().execute(partitionKey, priority.getLanePriority(), task);
+        } catch (RejectedExecutionException e) {
+            task.discard();
+            throw e;
         }
-        return false;
     }
 
-    @NotNull
-    private List<String> parseEvents(String eventsString) {
-        return Arrays.stream(eventsString.split(";"))
-                .map(String::trim).collect(Collectors.toList());
+    /**
+     * Passes the attempt of retried webhook to its delivery lane, or to the lane of its url when webhooks are not partitioned,
+     * so it is never sent concurrently with other webhooks of the lane. The attempt is added to the lane tail: webhooks
+     * submitted while the retry waited for its delay are not held back and may reach the receiver before the retried one
+     */
+    private void retry(WebhookDelivery delivery, Runnable attempt) {
+        Object partitionKey = getPartitionKey(delivery.getProjectKey(), delivery.getUrl());
+        getDeliveryExecutor().resubmit(partitionKey != null ? partitionKey : delivery.getUrl(), delivery.getPriority().getLanePriority(),
+                new LaneTask(delivery.getProjectKey(), attempt, null));
     }
 
-    private String getWebhooksUrl(ProjectEx project) {
-        final String urlParameter = project.getInternalParameterValue("teamcity.internal.webhooks.url", "");
-        if (urlParameter.isEmpty())
-            throw new WebhookSendException("WEBHOOKS_URL_IS_NOT_DEFINED", "Webhooks url is not defined for project " + project.getName());
-        return urlParameter;
+    private void deliverBatch(WebhookBatcher.Batch batch) {
+        final String projectKey = batch.endpoint.getProjectKey();
+        try {
+            DeliveryPriority priority = DeliveryPriority.BULK;
+            for (AsyncEvent event : batch.events) {
+                priority = priority.max(DeliveryPriority.of(event.getEventType()));
+            }
+            final DeliveryPriority batchPriority = priority;
+            // batches are also flushed by the linger timer, so they are sent by delivery lanes even without partitioning
+            // to keep batches of a receiver ordered and not to block the timer by a slow receiver
+            Object partitionKey = getPartitionKey(projectKey, batch.webhooksUrl);
+            deliver(partitionKey != null ? partitionKey : batch.webhooksUrl, projectKey, batchPriority, () -> sendBatch(batch, batchPriority));
+        } catch (Throwable throwable) {
+            handleFailure(projectKey, throwable);
+        }
     }
 
-    private SimpleCredentials getWebhooksCredential(ProjectEx project) {
-        String username = project.getInternalParameterValue("teamcity.internal.webhooks.username", "");
-        String password = project.getParametersProvider().get("teamcity.internal.webhooks.password");
+    private void send(WebhookEndpoint endpoint, String webhooksUrl, SharedPayload payload, long createdAt) {
+        WebhookDelivery delivery;
+        if (endpoint.isDelta()) {
+            DeltaPayloads.Delta delta = deltas.next(endpoint, webhooksUrl, payload.event, payload.getJson());
+            delivery = new WebhookDelivery(endpoint.getProjectKey(), webhooksUrl, endpoint.getCredentials(), delta.getPayload(), endpoint.isGzip(), endpoint.getRetryPolicy(), createdAt);
+            delivery.setDelta(delta);
+        } else {
+            delivery = new WebhookDelivery(endpoint.getProjectKey(), webhooksUrl, endpoint.getCredentials(), payload.get(), endpoint.isGzip(), endpoint.getRetryPolicy(), createdAt);
+        }
+        delivery.setPriority(DeliveryPriority.of(payload.event.getEventType()));
+        delivery.setEventType(payload.event.getEventType());
+        submit(delivery);
+    }
 
-        if (username.isEmpty() || password == null) return null;
+    private void sendBatch(WebhookBatcher.Batch batch, DeliveryPriority priority) {
+        final WebhookEndpoint endpoint = batch.endpoint;
+        List<WebhookPayload> payloads = new ArrayList<>(batch.events.size());
+        for (AsyncEvent event : batch.events) {
+            try {
+                payloads.add(getPayload(event, endpoint.getFields(event.getEventType())));
+            } catch (Throwable throwable) {
+                warn(endpoint.getProjectKey(), throwable.getClass().getName(), format("Webhook payload for event %s was not generated and excluded from batch: %s", event, throwable.getMessage()));
+            }
+        }
+        if (!payloads.isEmpty()) {
+            WebhookDelivery delivery = new WebhookDelivery(endpoint.getProjectKey(), batch.webhooksUrl, endpoint.getCredentials(), WebhookPayload.array(payloads), endpoint.isGzip(), endpoint.getRetryPolicy(), batch.createdAt);
+            delivery.setPriority(priority);
+            submit(delivery);
+        }
+    }
 
-        return new SimpleCredentials(username, password);
+    private WebhookPayload getPayload(AsyncEvent event, String fields) {
+        long start = System.nanoTime();
+        byte[] nativeJson = getNativeJson(event, fields);
+        WebhookPayload payload = nativeJson != null ? WebhookPayload.of(nativeJson) : jsonProducer.getPayload(event, fields);
+        metrics.recordPayload(event.getEventType(), System.nanoTime() - start);
+        return payload;
     }
 
-    private String getResponseFields(ProjectEx project, String event) {
-        return project.getInternalParameterValue("teamcity.internal.webhooks." + event + ".fields", "");
+    private String getJson(AsyncEvent event, String fields) {
+        long start = System.nanoTime();
+        byte[] nativeJson = getNativeJson(event, fields);
+        String json = nativeJson != null ? new String(nativeJson, StandardCharsets.UTF_8) : jsonProducer.getJson(event, fields);
+        metrics.recordPayload(event.getEventType(), System.nanoTime() - start);
+        return json;
     }
 
-    private void sendWithRetry(String uri, SimpleCredentials simpleCredentials, String json, Integer retryCount) {
-        AtomicInteger retryCountRef = new AtomicInteger(retryCount);
+    /**
+     * @return payload serialized by {@link ModelDataProducer} if it's enabled and supports the fields, null otherwise
+     */
+    @Nullable
+    private byte[] getNativeJson(AsyncEvent event, String fields) {
+        return ModelDataProducer.isEnabled() ? nativeProducer.serialize(event, fields) : null;
+    }
 
-        Consumer<Exception> exception = (ex) -> {
-            if (retryCountRef.get() > 0) {
-                sendWithRetry(uri, simpleCredentials, json, retryCountRef.decrementAndGet());
-            }
-             else {
-                if (ex instanceof WebhookSendException)
-                    throw (WebhookSendException) ex;
-                throw new WebhookSendException(ex.getClass().getName(), format("Sending webhook to %s failed with exception %s.", uri, ex.getMessage()));
+    private void submit(WebhookDelivery delivery) {
+        // delta payloads are persisted as snapshots, since the state patches are made against is not persisted
+        WebhookPayload resyncPayload = delivery.getResyncPayload();
+        WebhookOutbox.Record record = outbox.append(delivery, resyncPayload != null ? resyncPayload : delivery.getPayload());
+        if (record != null) {
+            delivery.setOutboxId(record.id);
+            // the payload is rendered once, into the outbox record
+            if (resyncPayload == null)
+                delivery.setPayload(record.getPayload());
+        }
+        metrics.submitted(delivery.getProjectKey());
+        sender.send(delivery);
+    }
+
+    /**
+     * Sends webhooks which were not delivered before the server restart with their event type and priority, see {@link WebhookOutbox}.
+     * Delta webhooks are sent as snapshots of the object
+     */
+    public void replayOutbox() {
+        if (!outbox.isEnabled())
+            return;
+        new NamedDaemonThreadFactory("WebhooksOutboxReplay").newThread(() -> outbox.replay(record -> {
+            try {
+                deliver(record.projectKey, record.url, record.priority, () -> {
+                    metrics.submitted(record.projectKey);
+                    sender.send(restoreDelivery(record));
+                });
+            } catch (Throwable throwable) {
+                handleFailure(record.projectKey, throwable);
             }
-        };
-        BiConsumer<Integer, String> error = (code, message) -> {
-            if (retryCountRef.get() > 0)
-                sendWithRetry(uri, simpleCredentials, json, retryCountRef.decrementAndGet());
-            else
-                throw new WebhookSendException(String.valueOf(code), format("Sending webhook to %s failed with HTTP code: %s %s.", uri, code, message));
-        };
+        })).start();
+    }
 
+    @NotNull
+    private WebhookDelivery restoreDelivery(WebhookOutbox.Record record) {
+        SimpleCredentials credentials = null;
+        boolean gzip = false;
+        RetryPolicy retryPolicy = RetryPolicy.NO_RETRY;
         try {
-            HTTPRequestBuilder request = new HTTPRequestBuilder(uri)
-                    .withTimeout(60 * 1000)
-                    .withAuthenticateHeader(simpleCredentials)
-                    .withTrustStore(sslTrustStoreProvider.getTrustStore())
-                    .allowNonSecureConnection(true)
-                    .withEncodingInterceptor(true)
-                    .withHeader(Collections.singletonMap("Content-Type", "application/json"))
-                    .withMethod(HttpMethod.POST)
-                    .withPostStringEntity(json, "application/json", StandardCharsets.UTF_8)
-                    .onException(exception)
-                    .onErrorResponse(error);
+            WebhookConfig config = configCache.get(WebhookConfigCache.ROOT_PROJECT_KEY.equals(record.projectKey) ? null : record.projectKey);
+            // credentials are not persisted and are sent only if the receiver is still configured for the project
+            WebhookEndpoint endpoint = config.findEndpoint(record.url);
+            if (endpoint != null) {
+                credentials = endpoint.getCredentials();
+                gzip = endpoint.isGzip();
+                retryPolicy = endpoint.getRetryPolicy();
+            }
+        } catch (ProjectNotFoundException ignored) {
+        }
+        WebhookDelivery delivery = new WebhookDelivery(record.projectKey, record.url, credentials, record.getPayload(), gzip, retryPolicy, record.createdAt);
+        delivery.setOutboxId(record.id);
+        delivery.setEventType(record.eventType);
+        delivery.setPriority(record.priority);
+        return delivery;
+    }
 
-            IOGuard.allowNetworkCall(() -> requestHandler.doRequest(request.build()));
+    private void handleFailure(String projectKey, Throwable throwable) {
+        if (throwable instanceof WebhookSendException) {
+            WebhookSendException ex = (WebhookSendException) throwable;
+            warn(projectKey, ex.getReason(), ex.getMessage());
+        } else {
+            warn(projectKey, throwable.getClass().getName(), throwable.getMessage());
+        }
+    }
 
-        } catch (URISyntaxException ex) {
-            throw new WebhookSendException(uri, format("Sending webhook to %s failed because of wrong URL syntax. Exception message: %s.", uri, ex.getMessage()));
+    /**
+     * @return key of the delivery lane webhook should be sent in,
+     * or null if webhook should be sent synchronously in the calling thread
+     */
+    @Nullable
+    private Object getPartitionKey(String projectKey, String webhooksUrl) {
+        switch (DeliveryPartitioning.fromProperty()) {
+            case PROJECT:
+                return projectKey;
+            case URL:
+                return webhooksUrl;
+            default:
+                return null;
         }
     }
 
@@ -179,6 +506,107 @@ public class WebhooksEventListener implements AsyncEventListener {
         }
     }
 
+    /**
+     * Delivery lane task reporting its failures
+     */
+    private class LaneTask implements Runnable {
+        private final String projectKey;
+        private final Runnable delivery;
+        private final Runnable onDiscarded;
+
+        private LaneTask(String projectKey, Runnable delivery, @Nullable Runnable onDiscarded) {
+            this.projectKey = projectKey;
+            this.delivery = delivery;
+            this.onDiscarded = onDiscarded;
+        }
+
+        @Override
+        public void run() {
+            try {
+                delivery.run();
+            } catch (Throwable throwable) {
+                handleFailure(projectKey, throwable);
+            }
+        }
+
+        void discard() {
+            if (onDiscarded != null)
+                onDiscarded.run();
+        }
+    }
+
+    /**
+     * Payload of an event shared by its endpoints with the same fields, rendered by the first send which needs it.
+     * Endpoints with delta payloads share the payload rendered as {@link String}
+     */
+    private class SharedPayload {
+        private final AsyncEvent event;
+        private final String fields;
+        private WebhookPayload payload;
+        private RuntimeException failure;
+        private String json;
+        private RuntimeException jsonFailure;
+
+        private SharedPayload(AsyncEvent event, String fields) {
+            this.event = event;
+            this.fields = fields;
+        }
+
+        synchronized WebhookPayload get() {
+            if (payload == null && failure == null) {
+                try {
+                    payload = getPayload(event, fields);
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null)
+                throw failure;
+            return payload;
+        }
+
+        synchronized String getJson() {
+            if (json == null && jsonFailure == null) {
+                try {
+                    json = WebhooksEventListener.this.getJson(event, fields);
+                } catch (RuntimeException e) {
+                    jsonFailure = e;
+                }
+            }
+            if (jsonFailure != null)
+                throw jsonFailure;
+            return json;
+        }
+    }
+
+    /**
+     * Defines how webhooks are spread over delivery lanes, configured by {@link #PARTITIONING_PROPERTY} internal property.
+     * Webhooks of the same partition are always sent in the order of events,
+     * webhooks of different partitions are sent concurrently by up to {@link #PARALLELISM_PROPERTY} threads
+     */
+    enum DeliveryPartitioning {
+        /** webhooks are sent one by one in the event dispatcher thread, batches are ordered per receiver url */
+        NONE,
+        /** webhooks are ordered per project */
+        PROJECT,
+        /** webhooks are ordered per receiver url */
+        URL;
+
+        static final String PARTITIONING_PROPERTY = "teamcity.webhooks.delivery.partitioning";
+        static final String PARALLELISM_PROPERTY = "teamcity.webhooks.delivery.parallelism";
+        static final String LANE_CAPACITY_PROPERTY = "teamcity.webhooks.delivery.laneCapacity";
+
+        @NotNull
+        static DeliveryPartitioning fromProperty() {
+            String value = TeamCityProperties.getProperty(PARTITIONING_PROPERTY, NONE.name());
+            for (DeliveryPartitioning partitioning : values()) {
+                if (partitioning.name().equalsIgnoreCase(value.trim()))
+                    return partitioning;
+            }
+            return NONE;
+        }
+    }
+
     public static class WebhookSendException extends RuntimeException {
         private final String reason;
 
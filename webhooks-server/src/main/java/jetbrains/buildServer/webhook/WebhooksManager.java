@@ -3,6 +3,9 @@ package jetbrains.buildServer.webhook;
 import java.util.Arrays;
 import jetbrains.buildServer.plugins.PluginLifecycleListenerAdapter;
 import jetbrains.buildServer.plugins.impl.PluginLifecycleEventDispatcher;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.webhook.async.AsyncEventDispatcher;
 import org.springframework.stereotype.Component;
 
@@ -27,16 +30,28 @@ public class WebhooksManager {
     }
 
     public WebhooksManager(PluginLifecycleEventDispatcher dispatcher,
+                           EventDispatcher<BuildServerListener> serverEvents,
                            AsyncEventDispatcher asyncEventDispatcher,
-                           WebhooksEventListener eventListener) {
+                           WebhooksEventListener eventListener,
+                           WebhookMetrics metrics) {
 
         asyncEventDispatcher.subscribe(Arrays.asList(AGENT_REGISTRED, AGENT_UNREGISTERED, AGENT_REMOVED
-          , BUILD_STARTED, BUILD_FINISHED, BUILD_INTERRUPTED, CHANGES_LOADED, BUILD_TYPE_ADDED_TO_QUEUE, BUILD_REMOVED_FROM_QUEUE, BUILD_PROBLEMS_CHANGED), eventListener);
+          , BUILD_STARTED, BUILD_FINISHED, BUILD_INTERRUPTED, CHANGES_LOADED, BUILD_TYPE_ADDED_TO_QUEUE, BUILD_REMOVED_FROM_QUEUE, BUILD_PROBLEMS_CHANGED
+          , MARKED_AS_SUCCESSFUL, FAILURE_DETECTED), eventListener);
+
+        serverEvents.addListener(new BuildServerAdapter() {
+            @Override
+            public void serverStartup() {
+                eventListener.replayOutbox();
+            }
+        });
 
         dispatcher.addListener(new PluginLifecycleListenerAdapter() {
             @Override
             public void beforePluginUnloaded() {
                 asyncEventDispatcher.unsubscribe(eventListener);
+                eventListener.shutdown();
+                metrics.dispose();
             }
         });
     }
@@ -0,0 +1,118 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Serves {@link WebhookMetrics} as JSON at {@link #PATH} to users allowed to view server settings
+ */
+@Component
+public class WebhooksStatusController extends BaseController {
+
+    static final String PATH = "/admin/webhooks/status.html";
+
+    private final WebhookMetrics metrics;
+
+    public WebhooksStatusController(SBuildServer server,
+                                    WebControllerManager webControllerManager,
+                                    WebhookMetrics metrics) {
+        super(server);
+        this.metrics = metrics;
+        webControllerManager.registerController(PATH, this);
+    }
+
+    @Nullable
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+        SUser user = SessionUser.getUser(request);
+        if (user == null || !user.isPermissionGrantedGlobally(Permission.VIEW_SERVER_SETTINGS)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return null;
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        writeStatus(metrics, response.getWriter());
+        return null;
+    }
+
+    static void writeStatus(@NotNull WebhookMetrics metrics, @NotNull Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.beginObject()
+                .name("delivered").value(metrics.getDeliveredCount())
+                .name("failed").value(metrics.getFailedCount())
+                .name("retries").value(metrics.getRetryCount())
+                .name("coalesced").value(metrics.getCoalescedCount())
+                .name("resyncs").value(metrics.getResyncCount())
+                .name("inFlight").value(metrics.getInFlightCount());
+        json.name("projects").beginObject();
+        for (Map.Entry<String, WebhookMetrics.ProjectStatus> entry : metrics.getProjects().entrySet()) {
+            WebhookMetrics.ProjectStatus status = entry.getValue();
+            json.name(entry.getKey()).beginObject()
+                    .name("inFlight").value(status.inFlight.get())
+                    .name("lastSuccess").value(WebhookMetrics.ProjectStatus.formatTime(status.lastSuccess))
+                    .name("lastFailure").value(WebhookMetrics.ProjectStatus.formatTime(status.lastFailure))
+                    .name("lastFailureReason").value(status.lastFailureReason)
+                    .name("lastFailureMessage").value(status.lastFailureMessage)
+                    .endObject();
+        }
+        json.endObject();
+        writeHistograms(json.name("payloadLatency"), metrics.getPayloadHistograms());
+        writeHistograms(json.name("requestLatency"), metrics.getRequestHistograms());
+        writeHistograms(json.name("endToEndLatency"), metrics.getEndToEndHistograms());
+        writeHistograms(json.name("eventTypeEndToEndLatency"), metrics.getEventTypeEndToEndHistograms());
+        writeCounts(json.name("receiverRetries"), metrics.getReceiverRetryCounts());
+        writeCounts(json.name("eventTypeRetries"), metrics.getEventTypeRetryCounts());
+        json.name("priorityLatency").beginObject();
+        for (Map.Entry<DeliveryPriority, WebhookMetrics.PriorityStatus> entry : metrics.getPriorities().entrySet()) {
+            LatencyHistogram histogram = entry.getValue().latency;
+            json.name(entry.getKey().name()).beginObject()
+                    .name("count").value(histogram.getCount())
+                    .name("meanMs").value(histogram.getMeanMillis())
+                    .name("p50Ms").value(histogram.getPercentileMillis(0.5))
+                    .name("p99Ms").value(histogram.getPercentileMillis(0.99))
+                    .name("maxMs").value(histogram.getMaxMillis())
+                    .name("targetMs").value(entry.getKey().getLatencyTargetMillis())
+                    .name("missedTarget").value(entry.getValue().missedTarget.sum())
+                    .endObject();
+        }
+        json.endObject();
+        json.endObject().flush();
+    }
+
+    private static void writeCounts(@NotNull JsonWriter json, @NotNull Map<String, Long> counts) throws IOException {
+        json.beginObject();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            json.name(entry.getKey()).value(entry.getValue());
+        }
+        json.endObject();
+    }
+
+    private static void writeHistograms(@NotNull JsonWriter json, @NotNull Map<String, LatencyHistogram> histograms) throws IOException {
+        json.beginObject();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            json.name(entry.getKey()).beginObject()
+                    .name("count").value(histogram.getCount())
+                    .name("meanMs").value(histogram.getMeanMillis())
+                    .name("p50Ms").value(histogram.getPercentileMillis(0.5))
+                    .name("p99Ms").value(histogram.getPercentileMillis(0.99))
+                    .name("maxMs").value(histogram.getMaxMillis())
+                    .endObject();
+        }
+        json.endObject();
+    }
+}
@@ -1,26 +1,16 @@
 package jetbrains.buildServer.webhook.async;
 
-import com.intellij.openapi.diagnostic.Logger;
-import jetbrains.buildServer.messages.XStreamHolder;
-import jetbrains.buildServer.serverSide.BuildServerAdapter;
-import jetbrains.buildServer.serverSide.BuildServerListener;
-import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.impl.events.async.AsyncEvent;
-import jetbrains.buildServer.util.EventDispatcher;
-import jetbrains.buildServer.xstream.XStreamFile;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import static java.lang.String.format;
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.*;
 
 /**
  * Allows to publish simple events to all subscribed listeners asynchronously
@@ -30,7 +20,17 @@ import static java.lang.String.format;
 @Component
 public class AsyncEventDispatcher {
 
+    /**
+     * Known event types, so converted events share the constants instead of the strings of the core events
+     */
+    private static final Map<String, String> EVENT_TYPES = Stream.of(AGENT_REGISTRED, AGENT_UNREGISTERED, AGENT_REMOVED,
+            BUILD_STARTED, BUILD_FINISHED, BUILD_INTERRUPTED, CHANGES_LOADED, BUILD_TYPE_ADDED_TO_QUEUE, BUILD_REMOVED_FROM_QUEUE,
+            BUILD_PROBLEMS_CHANGED, MARKED_AS_SUCCESSFUL, FAILURE_DETECTED)
+            .collect(Collectors.toMap(Function.identity(), Function.identity()));
+
     private final jetbrains.buildServer.serverSide.impl.events.async.AsyncEventDispatcher myDelegate;
+    /** subscribed listeners by identity, a listener is subscribed to the core dispatcher by the same wrapper until it's unsubscribed */
+    private final Map<AsyncEventListener, Subscription> mySubscriptions = new IdentityHashMap<>();
 
     public AsyncEventDispatcher(@SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
                                 @Qualifier("coreAsyncEventDispatcher")
@@ -39,54 +39,104 @@ public class AsyncEventDispatcher {
     }
 
     public void subscribe(String eventName, AsyncEventListener listener) {
-        myDelegate.subscribe(eventName, wrapListener(listener));
+        subscribe(Collections.singletonList(eventName), listener);
     }
 
-    public void subscribe(List<String> eventNames, AsyncEventListener listener) {
-        myDelegate.subscribe(eventNames, wrapListener(listener));
+    /**
+     * Subscribes {@param listener} to the events it isn't subscribed to yet, subscribing again to the same events has no effect
+     */
+    public synchronized void subscribe(List<String> eventNames, AsyncEventListener listener) {
+        Subscription subscription = mySubscriptions.computeIfAbsent(listener, Subscription::new);
+        List<String> added = new ArrayList<>(eventNames.size());
+        for (String eventName : eventNames) {
+            if (subscription.eventNames.add(eventName))
+                added.add(eventName);
+        }
+        if (!added.isEmpty())
+            myDelegate.subscribe(added, subscription.wrapper);
     }
 
-    public void unsubscribe(AsyncEventListener eventListener) {
-        myDelegate.unsubscribe(wrapListener(eventListener));
+    /**
+     * Unsubscribes {@param eventListener} from all events, has no effect if it isn't subscribed
+     */
+    public synchronized void unsubscribe(AsyncEventListener eventListener) {
+        Subscription subscription = mySubscriptions.remove(eventListener);
+        if (subscription != null)
+            myDelegate.unsubscribe(subscription.wrapper);
     }
 
-    private jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener wrapListener(AsyncEventListener listener) {
-        return new jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener() {
-            @Override
-            public void handle(AsyncEvent event) {
-                listener.handle(wrapEvent(event));
-            }
+    @NotNull
+    private static jetbrains.buildServer.webhook.async.events.AsyncEvent convert(@NotNull AsyncEvent event) {
+        String eventType = event.getEventType();
+        return new jetbrains.buildServer.webhook.async.events.AsyncEvent(EVENT_TYPES.getOrDefault(eventType, eventType),
+                event.getObjectId(), event.getProjectId());
+    }
 
-            @NotNull
-            private jetbrains.buildServer.webhook.async.events.AsyncEvent wrapEvent(AsyncEvent event) {
-                return new jetbrains.buildServer.webhook.async.events.AsyncEvent(event.getEventType(), event.getObjectId(), event.getProjectId());
-            }
+    private static class Subscription {
+        private final Set<String> eventNames = new HashSet<>();
+        private final ListenerWrapper wrapper;
 
-            @Override
-            public int hashCode() {
-                return listener.hashCode();
-            }
+        private Subscription(@NotNull AsyncEventListener listener) {
+            wrapper = new ListenerWrapper(listener);
+        }
+    }
 
-            @Override
-            public boolean equals(Object obj) {
-                return listener.equals(obj);
-            }
+    /**
+     * Core listener passing events to the plugin listener. Uses identity equality, so the core dispatcher
+     * finds the wrapper it was subscribed with regardless of how the plugin listener defines equality
+     */
+    private static final class ListenerWrapper implements jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener {
+        private final AsyncEventListener listener;
+
+        private ListenerWrapper(@NotNull AsyncEventListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void handle(AsyncEvent event) {
+            listener.handle(convert(event));
+        }
+
+        @Override
+        public void handle(List<AsyncEvent> events) {
+            listener.handle(events.size() == 1 ? Collections.singletonList(convert(events.get(0))) : new ConvertedEvents(events));
+        }
+
+        @Override
+        public Object getSyncKey() {
+            return listener.getSyncKey();
+        }
+
+        @NotNull
+        @Override
+        public String getUniqName() {
+            return listener.getUniqName();
+        }
+    }
 
-            @Override
-            public void handle(List<AsyncEvent> events) {
-                listener.handle(events.stream().map(this::wrapEvent).collect(Collectors.toList()));
+    /**
+     * Immutable list of events converted from a batch of core events when the list is created,
+     * so the listener can pass it to other threads
+     */
+    private static final class ConvertedEvents extends AbstractList<jetbrains.buildServer.webhook.async.events.AsyncEvent> implements RandomAccess {
+        private final jetbrains.buildServer.webhook.async.events.AsyncEvent[] events;
+
+        private ConvertedEvents(@NotNull List<AsyncEvent> events) {
+            this.events = new jetbrains.buildServer.webhook.async.events.AsyncEvent[events.size()];
+            int i = 0;
+            for (AsyncEvent event : events) {
+                this.events[i++] = convert(event);
             }
+        }
 
-            @Override
-            public Object getSyncKey() {
-                return listener.getSyncKey();
-            }
+        @Override
+        public jetbrains.buildServer.webhook.async.events.AsyncEvent get(int index) {
+            return events[index];
+        }
 
-            @NotNull
-            @Override
-            public String getUniqName() {
-                return listener.getUniqName();
-            }
-        };
+        @Override
+        public int size() {
+            return events.length;
+        }
     }
 }
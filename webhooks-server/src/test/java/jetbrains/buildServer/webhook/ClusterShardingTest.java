@@ -0,0 +1,161 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.BUILD_STARTED;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.*;
+
+@Test
+public class ClusterShardingTest {
+
+    private static final String[] PROPERTIES = {
+            ClusterSharding.ENABLED_PROPERTY,
+            ClusterSharding.NODE_ID_PROPERTY,
+            ClusterSharding.SERVER_NODE_ID_PROPERTY,
+            ClusterSharding.HEARTBEAT_INTERVAL_PROPERTY,
+            ClusterSharding.POLL_INTERVAL_PROPERTY,
+            ClusterSharding.HANDOVER_TIMEOUT_PROPERTY
+    };
+
+    private Path directory;
+    private final List<ClusterSharding> started = new ArrayList<>();
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("webhooks-cluster-test");
+        started.clear();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws IOException {
+        for (ClusterSharding sharding : started) {
+            sharding.stop();
+            sharding.leave();
+        }
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    public void sharding_without_node_id_is_disabled() {
+        System.setProperty(ClusterSharding.ENABLED_PROPERTY, "true");
+        ServerPaths serverPaths = mock(ServerPaths.class);
+        when(serverPaths.getPluginDataDirectory()).thenReturn(directory.toFile());
+
+        assertFalse(new ClusterSharding(serverPaths).isEnabled());
+
+        System.setProperty(ClusterSharding.SERVER_NODE_ID_PROPERTY, "node1");
+        assertTrue(new ClusterSharding(serverPaths).isEnabled());
+    }
+
+    public void only_projects_of_leaving_node_change_owner() {
+        List<String> nodes = Arrays.asList("node1", "node2", "node3");
+        List<String> remaining = Arrays.asList("node1", "node3");
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            String project = "project" + i;
+            String owner = ClusterSharding.getOwner(nodes, project);
+            assertNotNull(owner);
+            owned.merge(owner, 1, Integer::sum);
+            String newOwner = ClusterSharding.getOwner(remaining, project);
+            if (owner.equals("node2"))
+                assertTrue(remaining.contains(newOwner), newOwner);
+            else
+                assertEquals(newOwner, owner, project);
+            // the owner doesn't depend on the order of nodes
+            assertEquals(ClusterSharding.getOwner(Arrays.asList("node3", "node1", "node2"), project), owner);
+        }
+        assertEquals(owned.keySet(), new HashSet<>(nodes));
+        for (int count : owned.values()) {
+            assertTrue(count > 700, owned.toString());
+        }
+        assertNull(ClusterSharding.getOwner(Collections.emptyList(), "project"));
+    }
+
+    public void events_are_delivered_by_owners_of_their_projects() throws Exception {
+        System.setProperty(ClusterSharding.HEARTBEAT_INTERVAL_PROPERTY, "50");
+        System.setProperty(ClusterSharding.POLL_INTERVAL_PROPERTY, "20");
+        System.setProperty(ClusterSharding.HANDOVER_TIMEOUT_PROPERTY, "5000");
+        Map<String, List<AsyncEvent>> delivered = new ConcurrentHashMap<>();
+        ClusterSharding node1 = start("node1", delivered);
+        ClusterSharding node2 = start("node2", delivered);
+        ClusterNodes observer = new ClusterNodes(directory, "observer");
+        waitFor(() -> {
+            try {
+                Map<String, ClusterNodes.Heartbeat> heartbeats = observer.readHeartbeats();
+                return heartbeats.size() == 2 && heartbeats.values().stream().allMatch(heartbeat -> heartbeat.view.equals("node1,node2"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        List<AsyncEvent> events = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            events.add(new AsyncEvent(BUILD_STARTED, (long) i, "project" + i));
+        }
+        node1.route(events.subList(0, 10));
+        node2.route(events.subList(10, 20));
+
+        waitFor(() -> delivered.values().stream().mapToInt(List::size).sum() == events.size());
+        for (Map.Entry<String, List<AsyncEvent>> entry : delivered.entrySet()) {
+            for (AsyncEvent event : entry.getValue()) {
+                assertEquals(entry.getKey(), ClusterSharding.getOwner(Arrays.asList("node1", "node2"), event.getProjectId()), event.toString());
+            }
+        }
+        assertEquals(delivered.size(), 2);
+    }
+
+    @NotNull
+    private ClusterSharding start(@NotNull String nodeId, @NotNull Map<String, List<AsyncEvent>> delivered) {
+        ClusterSharding sharding = new ClusterSharding(new ClusterNodes(directory, nodeId));
+        sharding.start(new ClusterSharding.LocalNode() {
+            @Override
+            public void deliver(@NotNull List<AsyncEvent> events) {
+                delivered.computeIfAbsent(nodeId, node -> Collections.synchronizedList(new ArrayList<>())).addAll(events);
+            }
+
+            @Override
+            public void drain(@NotNull Runnable onDrained) {
+                onDrained.run();
+            }
+        });
+        started.add(sharding);
+        return sharding;
+    }
+
+    private static void waitFor(@NotNull BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package jetbrains.buildServer.webhook;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.*;
+import static org.testng.Assert.*;
+
+@Test
+public class DeliveryPriorityTest {
+
+    private static final String URGENT_LATENCY_TARGET_PROPERTY = "teamcity.webhooks.priority.urgent.latencyTargetMs";
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        System.clearProperty(DeliveryPriority.LANES_PROPERTY);
+        System.clearProperty(URGENT_LATENCY_TARGET_PROPERTY);
+    }
+
+    public void build_outcome_events_are_urgent() {
+        assertEquals(DeliveryPriority.of(BUILD_FINISHED), DeliveryPriority.URGENT);
+        assertEquals(DeliveryPriority.of(BUILD_INTERRUPTED), DeliveryPriority.URGENT);
+        assertEquals(DeliveryPriority.of(FAILURE_DETECTED), DeliveryPriority.URGENT);
+        assertEquals(DeliveryPriority.of(MARKED_AS_SUCCESSFUL), DeliveryPriority.URGENT);
+    }
+
+    public void queue_and_agent_events_are_bulk() {
+        assertEquals(DeliveryPriority.of(BUILD_TYPE_ADDED_TO_QUEUE), DeliveryPriority.BULK);
+        assertEquals(DeliveryPriority.of(BUILD_REMOVED_FROM_QUEUE), DeliveryPriority.BULK);
+        assertEquals(DeliveryPriority.of(AGENT_REGISTRED), DeliveryPriority.BULK);
+        assertEquals(DeliveryPriority.of(AGENT_UNREGISTERED), DeliveryPriority.BULK);
+        assertEquals(DeliveryPriority.of(AGENT_REMOVED), DeliveryPriority.BULK);
+    }
+
+    public void unlisted_events_are_normal() {
+        assertEquals(DeliveryPriority.of(BUILD_STARTED), DeliveryPriority.NORMAL);
+        assertEquals(DeliveryPriority.of("UNKNOWN_EVENT"), DeliveryPriority.NORMAL);
+    }
+
+    public void lanes_ignore_priority_unless_enabled() {
+        for (DeliveryPriority priority : DeliveryPriority.values()) {
+            assertEquals(priority.getLanePriority(), DeliveryPriority.NORMAL);
+        }
+
+        System.setProperty(DeliveryPriority.LANES_PROPERTY, "true");
+
+        for (DeliveryPriority priority : DeliveryPriority.values()) {
+            assertEquals(priority.getLanePriority(), priority);
+        }
+    }
+
+    public void max_is_the_higher_priority() {
+        assertEquals(DeliveryPriority.BULK.max(DeliveryPriority.URGENT), DeliveryPriority.URGENT);
+        assertEquals(DeliveryPriority.URGENT.max(DeliveryPriority.NORMAL), DeliveryPriority.URGENT);
+        assertEquals(DeliveryPriority.NORMAL.max(DeliveryPriority.BULK), DeliveryPriority.NORMAL);
+        assertEquals(DeliveryPriority.BULK.max(DeliveryPriority.BULK), DeliveryPriority.BULK);
+    }
+
+    public void latency_target_is_overridden_by_property() {
+        assertEquals(DeliveryPriority.URGENT.getLatencyTargetMillis(), 5000);
+
+        System.setProperty(URGENT_LATENCY_TARGET_PROPERTY, "1000");
+
+        assertEquals(DeliveryPriority.URGENT.getLatencyTargetMillis(), 1000);
+        assertEquals(DeliveryPriority.NORMAL.getLatencyTargetMillis(), 30000);
+    }
+}
@@ -0,0 +1,228 @@
+package jetbrains.buildServer.webhook;
+
+import com.sun.net.httpserver.HttpServer;
+import jetbrains.buildServer.serverSide.ParametersProvider;
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider;
+import jetbrains.buildServer.webhook.WebhooksEventListener.WebhookSendException;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.AGENT_REGISTRED;
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.BUILD_STARTED;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.*;
+
+@Test
+public class DeltaPayloadsTest {
+
+    private static final String URL = "http://localhost/hook";
+
+    private WebhookEndpoint endpoint;
+    private DeltaPayloads deltas;
+
+    @BeforeMethod
+    public void setUp() {
+        endpoint = endpoint(URL);
+        deltas = new DeltaPayloads(100);
+    }
+
+    public void first_webhook_of_object_is_snapshot() {
+        DeltaPayloads.Delta delta = deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"state\":\"running\"}");
+
+        assertJson(delta.getPayload(), "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":1,\"payload\":{\"id\":1,\"state\":\"running\"}}");
+        assertNull(delta.getResyncPayload());
+    }
+
+    public void snapshot_is_built_from_payload_member() {
+        DeltaPayloads.Delta delta = deltas.next(endpoint, URL, event(BUILD_STARTED, 1),
+                "{\"eventType\":\"BUILD_STARTED\",\"payload\":{\"id\":1,\"state\":\"running\"}}");
+
+        assertJson(delta.getPayload(), "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":1,\"payload\":{\"id\":1,\"state\":\"running\"}}");
+    }
+
+    public void webhook_after_delivered_one_is_patch_with_next_sequence() {
+        deltas.delivered(deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"state\":\"running\",\"percentageComplete\":10}"));
+
+        DeltaPayloads.Delta delta = deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"state\":\"running\",\"percentageComplete\":50}");
+
+        assertJson(delta.getPayload(), "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":2,\"patch\":{\"percentageComplete\":50}}");
+        assertJson(delta.getResyncPayload(), "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":2,\"payload\":{\"id\":1,\"state\":\"running\",\"percentageComplete\":50}}");
+
+        deltas.delivered(delta);
+        assertJson(deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"state\":\"finished\",\"percentageComplete\":50}").getPayload(),
+                "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":3,\"patch\":{\"state\":\"finished\"}}");
+    }
+
+    public void state_does_not_advance_without_delivery() {
+        deltas.delivered(deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":10}"));
+        deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":20}");
+
+        DeltaPayloads.Delta delta = deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":30}");
+
+        assertJson(delta.getPayload(), "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":2,\"patch\":{\"percentageComplete\":30}}");
+    }
+
+    public void older_delivery_does_not_replace_later_state() {
+        DeltaPayloads.Delta stale = deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":0}");
+        deltas.delivered(deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":10}"));
+        deltas.delivered(deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":20}"));
+        deltas.delivered(stale);
+
+        DeltaPayloads.Delta delta = deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":30}");
+
+        assertJson(delta.getPayload(), "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":3,\"patch\":{\"percentageComplete\":30}}");
+    }
+
+    public void stale_retry_with_the_same_sequence_does_not_replace_delivered_state() {
+        deltas.delivered(deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":0}"));
+        DeltaPayloads.Delta stale = deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":10}");
+        DeltaPayloads.Delta newer = deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":20}");
+        deltas.delivered(newer);
+        deltas.delivered(stale);
+
+        DeltaPayloads.Delta delta = deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1,\"percentageComplete\":20,\"state\":\"finished\"}");
+
+        assertJson(delta.getPayload(), "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":3,\"patch\":{\"state\":\"finished\"}}");
+    }
+
+    public void states_are_kept_per_object_and_receiver() {
+        deltas.delivered(deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1}"));
+
+        assertNull(deltas.next(endpoint, URL, event(BUILD_STARTED, 2), "{\"id\":2}").getResyncPayload());
+        assertNull(deltas.next(endpoint, URL, event(AGENT_REGISTRED, 1), "{\"id\":1}").getResyncPayload());
+        assertNull(deltas.next(endpoint, "http://localhost/other", event(BUILD_STARTED, 1), "{\"id\":1}").getResyncPayload());
+        assertNotNull(deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1}").getResyncPayload());
+    }
+
+    public void least_recently_delivered_state_is_evicted() {
+        deltas = new DeltaPayloads(1);
+        deltas.delivered(deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1}"));
+        deltas.delivered(deltas.next(endpoint, URL, event(BUILD_STARTED, 2), "{\"id\":2}"));
+
+        assertNull(deltas.next(endpoint, URL, event(BUILD_STARTED, 1), "{\"id\":1}").getResyncPayload());
+        assertNotNull(deltas.next(endpoint, URL, event(BUILD_STARTED, 2), "{\"id\":2}").getResyncPayload());
+    }
+
+    public void snapshot_is_resent_when_receiver_responds_with_conflict() throws IOException {
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        HttpServer receiver = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        receiver.createContext("/hook", exchange -> {
+            String body = read(exchange.getRequestBody());
+            received.add(body);
+            // the receiver has lost its state and accepts snapshots only
+            exchange.sendResponseHeaders(body.contains("\"patch\"") ? 409 : 200, -1);
+            exchange.close();
+        });
+        receiver.start();
+        String url = "http://localhost:" + receiver.getAddress().getPort() + "/hook";
+        WebhookEndpoint endpoint = endpoint(url);
+        WebhookMetrics metrics = new WebhookMetrics();
+        List<WebhookSendException> failures = Collections.synchronizedList(new ArrayList<>());
+        WebhookSender sender = new WebhookSender(mock(SSLTrustStoreProvider.class), metrics, new WebhookSender.DeliveryListener() {
+            @Override
+            public void delivered(@NotNull WebhookDelivery delivery) {
+                deltas.delivered(delivery.getDelta());
+            }
+
+            @Override
+            public void failed(@NotNull WebhookDelivery delivery, @NotNull WebhookSendException exception) {
+                failures.add(exception);
+            }
+        }, (delivery, attempt) -> attempt.run());
+        try {
+            sender.send(delivery(endpoint, url, "{\"id\":1,\"state\":\"queued\"}"));
+            sender.send(delivery(endpoint, url, "{\"id\":1,\"state\":\"running\"}"));
+
+            assertEquals(failures, Collections.emptyList());
+            assertEquals(metrics.getResyncCount(), 1);
+            assertEquals(received.size(), 3);
+            assertJson(received.get(0), "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":1,\"payload\":{\"id\":1,\"state\":\"queued\"}}");
+            assertJson(received.get(1), "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":2,\"patch\":{\"state\":\"running\"}}");
+            assertJson(received.get(2), "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":2,\"payload\":{\"id\":1,\"state\":\"running\"}}");
+
+            // the resent snapshot is the base of the following patches
+            assertJson(deltas.next(endpoint, url, event(BUILD_STARTED, 1), "{\"id\":1,\"state\":\"finished\"}").getPayload(),
+                    "{\"eventType\":\"BUILD_STARTED\",\"objectId\":1,\"sequence\":3,\"patch\":{\"state\":\"finished\"}}");
+        } finally {
+            sender.shutdown();
+            receiver.stop(0);
+        }
+    }
+
+    @NotNull
+    private WebhookDelivery delivery(@NotNull WebhookEndpoint endpoint, @NotNull String url, @NotNull String json) {
+        DeltaPayloads.Delta delta = deltas.next(endpoint, url, event(BUILD_STARTED, 1), json);
+        WebhookDelivery delivery = new WebhookDelivery(endpoint.getProjectKey(), url, endpoint.getCredentials(), delta.getPayload(), endpoint.isGzip(), endpoint.getRetryPolicy());
+        delivery.setDelta(delta);
+        return delivery;
+    }
+
+    @NotNull
+    private static AsyncEvent event(@NotNull String eventType, long objectId) {
+        return new AsyncEvent(eventType, objectId, "project");
+    }
+
+    private static void assertJson(WebhookPayload actual, @NotNull String expected) {
+        assertNotNull(actual);
+        assertJson(new String(WebhookPayload.toBytes(actual), StandardCharsets.UTF_8), expected);
+    }
+
+    private static void assertJson(@NotNull String actual, @NotNull String expected) {
+        assertEquals(JsonMergePatch.parse(actual), JsonMergePatch.parse(expected), actual);
+    }
+
+    @NotNull
+    private static String read(@NotNull InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return default endpoint of a project with delta webhooks sent to {@param url}
+     */
+    @NotNull
+    private static WebhookEndpoint endpoint(@NotNull String url) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(WebhookConfig.EVENTS_PARAMETER, String.join(";", Arrays.asList(BUILD_STARTED, AGENT_REGISTRED)));
+        parameters.put(WebhookConfig.URL_PARAMETER, url);
+        parameters.put(WebhookConfig.PARAMETER_PREFIX + WebhookEndpoint.DELTA, "true");
+        ParametersProvider parametersProvider = (ParametersProvider) Proxy.newProxyInstance(DeltaPayloadsTest.class.getClassLoader(), new Class[]{ParametersProvider.class},
+                (proxy, method, args) -> method.getName().equals("get") ? parameters.get((String) args[0]) : null);
+        ProjectEx project = (ProjectEx) Proxy.newProxyInstance(DeltaPayloadsTest.class.getClassLoader(), new Class[]{ProjectEx.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getInternalParameterValue":
+                    return parameters.getOrDefault((String) args[0], (String) args[1]);
+                case "getParametersProvider":
+                    return parametersProvider;
+                case "getName":
+                    return "project";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        WebhookEndpoint endpoint = WebhookEndpoint.compile(WebhookEndpoint.DEFAULT_NAME, WebhookConfig.PARAMETER_PREFIX, "project", project);
+        assertTrue(endpoint.isDelta());
+        return endpoint;
+    }
+}
@@ -0,0 +1,127 @@
+package jetbrains.buildServer.webhook;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class EndpointHealthTest {
+
+    private static final String[] PROPERTIES = {
+            EndpointHealth.FAILURE_THRESHOLD_PROPERTY,
+            EndpointHealth.OPEN_DURATION_PROPERTY,
+            EndpointHealth.MAX_CONCURRENCY_PROPERTY
+    };
+
+    @BeforeMethod
+    public void setUp() {
+        System.setProperty(EndpointHealth.FAILURE_THRESHOLD_PROPERTY, "3");
+        System.setProperty(EndpointHealth.OPEN_DURATION_PROPERTY, "100");
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+    }
+
+    public void circuit_is_opened_after_consecutive_failures() {
+        EndpointHealth health = new EndpointHealth();
+        failRequest(health);
+        failRequest(health);
+        succeedRequest(health);
+        failRequest(health);
+        failRequest(health);
+        assertEquals(health.getState(), EndpointHealth.State.CLOSED, "success resets the failure count");
+
+        failRequest(health);
+
+        assertEquals(health.getState(), EndpointHealth.State.OPEN);
+        long delay = health.tryAcquire();
+        assertTrue(delay > 0 && delay <= 100, String.valueOf(delay));
+    }
+
+    public void circuit_is_closed_after_successful_probe() throws InterruptedException {
+        EndpointHealth health = openCircuit();
+        Thread.sleep(150);
+
+        assertEquals(health.tryAcquire(), 0);
+        assertEquals(health.getState(), EndpointHealth.State.HALF_OPEN);
+        assertEquals(health.tryAcquire(), EndpointHealth.BULKHEAD_DELAY_MILLIS, "only one probe is allowed");
+        health.release(false);
+
+        assertEquals(health.getState(), EndpointHealth.State.CLOSED);
+        assertEquals(health.tryAcquire(), 0);
+        assertEquals(health.tryAcquire(), 0);
+    }
+
+    public void circuit_is_opened_again_after_failed_probe() throws InterruptedException {
+        EndpointHealth health = openCircuit();
+        Thread.sleep(150);
+
+        assertEquals(health.tryAcquire(), 0);
+        health.release(true);
+
+        assertEquals(health.getState(), EndpointHealth.State.OPEN);
+        assertTrue(health.tryAcquire() > 0);
+    }
+
+    public void unused_probe_allows_another_probe() throws InterruptedException {
+        EndpointHealth health = openCircuit();
+        Thread.sleep(150);
+
+        assertEquals(health.tryAcquire(), 0);
+        health.releaseUnused();
+
+        assertEquals(health.getState(), EndpointHealth.State.HALF_OPEN);
+        assertEquals(health.tryAcquire(), 0);
+    }
+
+    public void bulkhead_limits_concurrent_requests() {
+        System.setProperty(EndpointHealth.MAX_CONCURRENCY_PROPERTY, "2");
+        EndpointHealth health = new EndpointHealth();
+
+        assertEquals(health.tryAcquire(), 0);
+        assertEquals(health.tryAcquire(), 0);
+        assertEquals(health.tryAcquire(), EndpointHealth.BULKHEAD_DELAY_MILLIS);
+
+        health.release(false);
+        assertEquals(health.tryAcquire(), 0);
+        health.releaseUnused();
+        assertEquals(health.tryAcquire(), 0);
+        assertEquals(health.getState(), EndpointHealth.State.CLOSED);
+    }
+
+    public void failures_do_not_open_circuit_with_zero_threshold() {
+        System.setProperty(EndpointHealth.FAILURE_THRESHOLD_PROPERTY, "0");
+        EndpointHealth health = new EndpointHealth();
+        for (int i = 0; i < 10; i++) {
+            failRequest(health);
+        }
+
+        assertEquals(health.getState(), EndpointHealth.State.CLOSED);
+        assertEquals(health.tryAcquire(), 0);
+    }
+
+    private static EndpointHealth openCircuit() {
+        EndpointHealth health = new EndpointHealth();
+        for (int i = 0; i < 3; i++) {
+            failRequest(health);
+        }
+        assertEquals(health.getState(), EndpointHealth.State.OPEN);
+        return health;
+    }
+
+    private static void failRequest(EndpointHealth health) {
+        assertEquals(health.tryAcquire(), 0);
+        health.release(true);
+    }
+
+    private static void succeedRequest(EndpointHealth health) {
+        assertEquals(health.tryAcquire(), 0);
+        health.release(false);
+    }
+}
@@ -0,0 +1,114 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.ParametersProvider;
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.*;
+import static org.testng.Assert.*;
+
+@Test
+public class EventCoalescerTest {
+
+    private static final String URL = "http://localhost/hook";
+
+    private WebhookEndpoint endpoint;
+    private EventCoalescer coalescer;
+
+    @BeforeMethod
+    public void setUp() {
+        endpoint = endpoint();
+        coalescer = new EventCoalescer();
+    }
+
+    public void event_of_pending_webhook_is_coalesced() {
+        EventCoalescer.Ticket ticket = coalescer.offer(endpoint, URL, event(BUILD_STARTED, 1));
+
+        assertNotNull(ticket);
+        assertNull(coalescer.offer(endpoint, URL, event(BUILD_STARTED, 1)));
+        assertNotNull(coalescer.offer(endpoint, URL, event(BUILD_STARTED, 2)));
+        assertNotNull(coalescer.offer(endpoint, URL, event(CHANGES_LOADED, 1)));
+        assertNotNull(coalescer.offer(endpoint, "http://localhost/other", event(BUILD_STARTED, 1)));
+
+        assertTrue(coalescer.take(ticket));
+        assertNotNull(coalescer.offer(endpoint, URL, event(BUILD_STARTED, 1)), "taken webhook is not pending anymore");
+    }
+
+    public void events_of_objects_of_different_types_with_equal_ids_are_not_coalesced() {
+        assertNotNull(coalescer.offer(endpoint, URL, event(BUILD_FINISHED, 1)));
+        assertNotNull(coalescer.offer(endpoint, URL, event(AGENT_REGISTRED, 1)));
+
+        EventCoalescer.Ticket agentTicket = coalescer.offer(endpoint, URL, event(AGENT_UNREGISTERED, 1));
+        assertNotNull(agentTicket);
+        // build event doesn't supersede the agent event of the object with the same id
+        assertNotNull(coalescer.offer(endpoint, URL, event(BUILD_INTERRUPTED, 1)));
+        assertTrue(coalescer.take(agentTicket));
+    }
+
+    public void superseding_event_cancels_pending_webhooks_of_the_object() {
+        EventCoalescer.Ticket started = coalescer.offer(endpoint, URL, event(BUILD_STARTED, 1));
+        EventCoalescer.Ticket otherBuild = coalescer.offer(endpoint, URL, event(BUILD_STARTED, 2));
+        EventCoalescer.Ticket finished = coalescer.offer(endpoint, URL, event(BUILD_FINISHED, 1));
+
+        assertNotNull(finished);
+        assertFalse(coalescer.take(started));
+        assertTrue(coalescer.take(otherBuild));
+        assertTrue(coalescer.take(finished));
+        assertFalse(coalescer.take(finished));
+    }
+
+    public void released_webhook_is_not_pending() {
+        EventCoalescer.Ticket ticket = coalescer.offer(endpoint, URL, event(BUILD_STARTED, 1));
+
+        coalescer.release(ticket);
+
+        EventCoalescer.Ticket next = coalescer.offer(endpoint, URL, event(BUILD_STARTED, 1));
+        assertNotNull(next);
+        assertFalse(coalescer.take(ticket));
+        assertTrue(coalescer.take(next));
+    }
+
+    @NotNull
+    private static AsyncEvent event(@NotNull String eventType, long objectId) {
+        return new AsyncEvent(eventType, objectId, "project");
+    }
+
+    /**
+     * @return default endpoint of a project with coalescing enabled and finished builds superseding started ones
+     */
+    @NotNull
+    private static WebhookEndpoint endpoint() {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(WebhookConfig.EVENTS_PARAMETER, String.join(";",
+                Arrays.asList(BUILD_STARTED, BUILD_FINISHED, BUILD_INTERRUPTED, CHANGES_LOADED, AGENT_REGISTRED, AGENT_UNREGISTERED)));
+        parameters.put(WebhookConfig.URL_PARAMETER, URL);
+        parameters.put(WebhookConfig.PARAMETER_PREFIX + WebhookEndpoint.COALESCE, "true");
+        parameters.put(WebhookConfig.PARAMETER_PREFIX + BUILD_FINISHED + WebhookEndpoint.SUPERSEDES_SUFFIX, BUILD_STARTED);
+        parameters.put(WebhookConfig.PARAMETER_PREFIX + BUILD_INTERRUPTED + WebhookEndpoint.SUPERSEDES_SUFFIX, AGENT_UNREGISTERED);
+        ParametersProvider parametersProvider = (ParametersProvider) Proxy.newProxyInstance(EventCoalescerTest.class.getClassLoader(), new Class[]{ParametersProvider.class},
+                (proxy, method, args) -> method.getName().equals("get") ? parameters.get((String) args[0]) : null);
+        ProjectEx project = (ProjectEx) Proxy.newProxyInstance(EventCoalescerTest.class.getClassLoader(), new Class[]{ProjectEx.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getInternalParameterValue":
+                    return parameters.getOrDefault((String) args[0], (String) args[1]);
+                case "getParametersProvider":
+                    return parametersProvider;
+                case "getName":
+                    return "project";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        WebhookEndpoint endpoint = WebhookEndpoint.compile(WebhookEndpoint.DEFAULT_NAME, WebhookConfig.PARAMETER_PREFIX, "project", project);
+        assertTrue(endpoint.isCoalescing());
+        return endpoint;
+    }
+}
@@ -0,0 +1,200 @@
+package jetbrains.buildServer.webhook;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.testng.Assert.*;
+
+@Test
+public class EventFilterTest {
+
+    public void empty_expression_matches_all() {
+        assertSame(EventFilter.compile(""), EventFilter.ALL);
+        assertSame(EventFilter.compile(" ; ;"), EventFilter.ALL);
+        assertTrue(EventFilter.ALL.isAll());
+        assertTrue(EventFilter.ALL.matches(new TestSubject()));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void condition_without_colon_is_rejected() {
+        EventFilter.compile("buildType:Project_Build; Project_Deploy");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void unknown_attribute_is_rejected() {
+        EventFilter.compile("buildTypeId:Project_Build");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void condition_without_values_is_rejected() {
+        EventFilter.compile("branch: , ");
+    }
+
+    public void attribute_names_are_case_insensitive() {
+        EventFilter filter = EventFilter.compile(" BUILDTYPE : Project_Build ");
+
+        assertFalse(filter.isAll());
+        assertTrue(filter.matches(new TestSubject().buildType("Project_Build")));
+    }
+
+    public void any_value_of_condition_matches() {
+        EventFilter filter = EventFilter.compile("buildType:Project_Build,Project_Deploy");
+
+        assertTrue(filter.matches(new TestSubject().buildType("Project_Build")));
+        assertTrue(filter.matches(new TestSubject().buildType("Project_Deploy")));
+        assertFalse(filter.matches(new TestSubject().buildType("Project_Test")));
+    }
+
+    public void all_conditions_match() {
+        EventFilter filter = EventFilter.compile("buildType:Project_Build; status:FAILURE");
+
+        assertTrue(filter.matches(new TestSubject().buildType("Project_Build").status("FAILURE")));
+        assertFalse(filter.matches(new TestSubject().buildType("Project_Build").status("SUCCESS")));
+        assertFalse(filter.matches(new TestSubject().buildType("Project_Deploy").status("FAILURE")));
+    }
+
+    public void values_are_case_insensitive() {
+        EventFilter filter = EventFilter.compile("status:failure");
+
+        assertTrue(filter.matches(new TestSubject().status("FAILURE")));
+    }
+
+    public void wildcard_matches_any_characters() {
+        EventFilter filter = EventFilter.compile("branch:release/*,*-hotfix,feature/*/ui");
+
+        assertTrue(filter.matches(new TestSubject().branch("release/2019.1")));
+        assertTrue(filter.matches(new TestSubject().branch("release/")));
+        assertTrue(filter.matches(new TestSubject().branch("ISSUE-1-hotfix")));
+        assertTrue(filter.matches(new TestSubject().branch("feature/login/ui")));
+        assertFalse(filter.matches(new TestSubject().branch("feature/login/api")));
+        assertFalse(filter.matches(new TestSubject().branch("prerelease/2019.1")));
+    }
+
+    public void other_characters_are_matched_literally() {
+        EventFilter filter = EventFilter.compile("buildType:Project.Build(1)");
+
+        assertTrue(filter.matches(new TestSubject().buildType("Project.Build(1)")));
+        assertFalse(filter.matches(new TestSubject().buildType("ProjectXBuild(1)")));
+    }
+
+    public void default_branch_matches_by_placeholder_and_name() {
+        EventFilter placeholder = EventFilter.compile("branch:<default>");
+        EventFilter name = EventFilter.compile("branch:master");
+
+        assertTrue(placeholder.matches(new TestSubject().defaultBranch("master")));
+        assertTrue(name.matches(new TestSubject().defaultBranch("master")));
+        assertFalse(placeholder.matches(new TestSubject().branch("master")));
+        assertFalse(placeholder.matches(new TestSubject()));
+    }
+
+    public void agent_pool_matches_by_id_or_name() {
+        EventFilter filter = EventFilter.compile("agentPool:3,Linux*");
+
+        assertTrue(filter.matches(new TestSubject().agentPool(3, "Windows")));
+        assertTrue(filter.matches(new TestSubject().agentPool(4, "Linux Large")));
+        assertFalse(filter.matches(new TestSubject().agentPool(4, "Windows")));
+        assertFalse(filter.matches(new TestSubject().agentPool(33, "Windows")));
+    }
+
+    public void any_tag_matches() {
+        EventFilter filter = EventFilter.compile("tag:release");
+
+        assertTrue(filter.matches(new TestSubject().tags("nightly", "Release")));
+        assertFalse(filter.matches(new TestSubject().tags("nightly")));
+        assertFalse(filter.matches(new TestSubject()));
+    }
+
+    public void missing_attribute_does_not_match() {
+        assertFalse(EventFilter.compile("status:*").matches(new TestSubject().buildType("Project_Build")));
+        assertFalse(EventFilter.compile("buildType:*").matches(new TestSubject().agentPool(0, "Default")));
+        assertFalse(EventFilter.compile("agentPool:*").matches(new TestSubject().buildType("Project_Build")));
+    }
+
+    private static class TestSubject implements EventFilter.Subject {
+        private String buildTypeId;
+        private String branch;
+        private boolean defaultBranch;
+        private String status;
+        private Integer agentPoolId;
+        private String agentPoolName;
+        private Collection<String> tags = Collections.emptyList();
+
+        TestSubject buildType(String buildTypeId) {
+            this.buildTypeId = buildTypeId;
+            return this;
+        }
+
+        TestSubject branch(String branch) {
+            this.branch = branch;
+            return this;
+        }
+
+        TestSubject defaultBranch(String branch) {
+            this.branch = branch;
+            this.defaultBranch = true;
+            return this;
+        }
+
+        TestSubject status(String status) {
+            this.status = status;
+            return this;
+        }
+
+        TestSubject agentPool(int id, String name) {
+            this.agentPoolId = id;
+            this.agentPoolName = name;
+            return this;
+        }
+
+        TestSubject tags(String... tags) {
+            this.tags = Arrays.asList(tags);
+            return this;
+        }
+
+        @Nullable
+        @Override
+        public String getBuildTypeId() {
+            return buildTypeId;
+        }
+
+        @Nullable
+        @Override
+        public String getBranch() {
+            return branch;
+        }
+
+        @Override
+        public boolean isDefaultBranch() {
+            return defaultBranch;
+        }
+
+        @Nullable
+        @Override
+        public String getStatus() {
+            return status;
+        }
+
+        @Nullable
+        @Override
+        public Integer getAgentPoolId() {
+            return agentPoolId;
+        }
+
+        @Nullable
+        @Override
+        public String getAgentPoolName() {
+            return agentPoolName;
+        }
+
+        @NotNull
+        @Override
+        public Collection<String> getTags() {
+            return tags;
+        }
+    }
+}
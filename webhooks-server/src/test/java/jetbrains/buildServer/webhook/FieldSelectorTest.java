@@ -0,0 +1,45 @@
+package jetbrains.buildServer.webhook;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import static org.testng.Assert.*;
+
+@Test
+public class FieldSelectorTest {
+
+    public void nested_fields_are_parsed_in_order() {
+        FieldSelector selector = FieldSelector.parse("id, number,agent(id,name),buildType(project(id))");
+
+        assertEquals(new ArrayList<>(selector.getNames()), Arrays.asList("id", "number", "agent", "buildType"));
+        assertSame(selector.get("id"), FieldSelector.EMPTY);
+        assertEquals(new ArrayList<>(selector.get("agent").getNames()), Arrays.asList("id", "name"));
+        assertEquals(new ArrayList<>(selector.get("buildType").get("project").getNames()), Arrays.asList("id"));
+        assertNull(selector.get("status"));
+    }
+
+    public void fields_prefix_is_allowed() {
+        FieldSelector selector = FieldSelector.parse(" fields=id,state ");
+
+        assertEquals(new ArrayList<>(selector.getNames()), Arrays.asList("id", "state"));
+    }
+
+    public void empty_specification_selects_nothing() {
+        assertTrue(FieldSelector.parse("").isEmpty());
+        assertTrue(FieldSelector.parse("fields=").isEmpty());
+        assertSame(FieldSelector.parse("  "), FieldSelector.EMPTY);
+    }
+
+    public void malformed_specifications_are_rejected() {
+        for (String specification : Arrays.asList("id,", "id,,name", "agent(id", "agent()", "id)", "(id)")) {
+            try {
+                FieldSelector.parse(specification);
+                fail("should be rejected: " + specification);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(specification), e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package jetbrains.buildServer.webhook;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static jetbrains.buildServer.webhook.JsonMergePatch.*;
+import static org.testng.Assert.*;
+
+@Test
+public class JsonMergePatchTest {
+
+    /**
+     * Original document, patch and result from the examples of RFC 7386 appendix A
+     */
+    @DataProvider
+    public static Object[][] rfcExamples() {
+        return new Object[][]{
+                {"{\"a\":\"b\"}", "{\"a\":\"c\"}", "{\"a\":\"c\"}"},
+                {"{\"a\":\"b\"}", "{\"b\":\"c\"}", "{\"a\":\"b\",\"b\":\"c\"}"},
+                {"{\"a\":\"b\"}", "{\"a\":null}", "{}"},
+                {"{\"a\":\"b\",\"b\":\"c\"}", "{\"a\":null}", "{\"b\":\"c\"}"},
+                {"{\"a\":[\"b\"]}", "{\"a\":\"c\"}", "{\"a\":\"c\"}"},
+                {"{\"a\":\"c\"}", "{\"a\":[\"b\"]}", "{\"a\":[\"b\"]}"},
+                {"{\"a\":{\"b\":\"c\"}}", "{\"a\":{\"b\":\"d\",\"c\":null}}", "{\"a\":{\"b\":\"d\"}}"},
+                {"{\"a\":[{\"b\":\"c\"}]}", "{\"a\":[1]}", "{\"a\":[1]}"},
+                {"[\"a\",\"b\"]", "[\"c\",\"d\"]", "[\"c\",\"d\"]"},
+                {"{\"a\":\"b\"}", "[\"c\"]", "[\"c\"]"},
+                {"{\"a\":\"foo\"}", "null", "null"},
+                {"{\"a\":\"foo\"}", "\"bar\"", "\"bar\""},
+                {"{\"e\":null}", "{\"a\":1}", "{\"e\":null,\"a\":1}"},
+                {"[1,2]", "{\"a\":\"b\",\"c\":null}", "{\"a\":\"b\"}"},
+                {"{}", "{\"a\":{\"bb\":{\"ccc\":null}}}", "{\"a\":{\"bb\":{}}}"},
+        };
+    }
+
+    @Test(dataProvider = "rfcExamples")
+    public void patch_of_rfc_example_gives_its_result(String original, String patch, String result) {
+        assertEquals(apply(parse(original), parse(patch)), parse(result));
+    }
+
+    @Test(dataProvider = "rfcExamples")
+    public void diff_of_rfc_example_transforms_original_into_result(String original, String patch, String result) {
+        Object diff = diff(parse(original), parse(result));
+
+        assertEquals(apply(parse(original), diff), parse(result), "diff " + toJson(diff));
+    }
+
+    public void diff_contains_only_changed_members() {
+        String source = "{\"id\":1,\"state\":\"running\",\"agent\":{\"id\":2,\"name\":\"agent1\"},\"tags\":[\"a\"]}";
+
+        assertEquals(toJson(diff(parse(source), parse(source))), "{}");
+        assertEquals(diff(parse(source), parse("{\"id\":1,\"state\":\"finished\",\"agent\":{\"id\":2,\"name\":\"agent1\"},\"tags\":[\"a\"]}")),
+                parse("{\"state\":\"finished\"}"));
+        assertEquals(diff(parse(source), parse("{\"id\":1,\"agent\":{\"id\":2,\"name\":\"agent1\"},\"tags\":[\"a\"]}")),
+                parse("{\"state\":null}"));
+        assertEquals(diff(parse(source), parse("{\"id\":1,\"state\":\"running\",\"agent\":{\"id\":3,\"name\":\"agent1\"},\"tags\":[\"a\"],\"number\":\"10\"}")),
+                parse("{\"agent\":{\"id\":3},\"number\":\"10\"}"));
+    }
+
+    public void diff_replaces_arrays_as_a_whole() {
+        assertEquals(diff(parse("{\"tags\":[\"a\",\"b\"]}"), parse("{\"tags\":[\"a\",\"c\"]}")), parse("{\"tags\":[\"a\",\"c\"]}"));
+    }
+
+    public void values_are_kept_as_json_text() {
+        Object document = parse(" { \"name\" : \"a \\\"quoted\\\" \\u0041\" , \"count\" : 1.50e1 , \"items\" : [ true , null , { } ] } ");
+
+        assertEquals(toJson(document), "{\"name\":\"a \\\"quoted\\\" \\u0041\",\"count\":1.50e1,\"items\":[true,null,{}]}");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void unterminated_object_is_rejected() {
+        parse("{\"a\":1");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void trailing_text_is_rejected() {
+        parse("{\"a\":1} {}");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void member_without_name_is_rejected() {
+        parse("{a:1}");
+    }
+
+    /**
+     * Applies merge patch as defined by RFC 7386 section 2
+     */
+    private static Object apply(Object target, Object patch) {
+        if (!(patch instanceof Map))
+            return patch;
+        Map<Object, Object> result = target instanceof Map ? new LinkedHashMap<>((Map<?, ?>) target) : new LinkedHashMap<>();
+        for (Map.Entry<?, ?> member : ((Map<?, ?>) patch).entrySet()) {
+            if ("null".equals(member.getValue()))
+                result.remove(member.getKey());
+            else
+                result.put(member.getKey(), apply(result.get(member.getKey()), member.getValue()));
+        }
+        return result;
+    }
+}
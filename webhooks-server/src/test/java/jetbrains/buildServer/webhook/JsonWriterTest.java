@@ -0,0 +1,46 @@
+package jetbrains.buildServer.webhook;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.testng.Assert.*;
+
+@Test
+public class JsonWriterTest {
+
+    public void members_are_separated_in_nested_objects() throws IOException {
+        StringWriter out = new StringWriter();
+        new JsonWriter(out).beginObject()
+                .name("id").value(1)
+                .name("agent").beginObject()
+                .name("id").value(2L)
+                .name("connected").value(true)
+                .endObject()
+                .name("tags").rawValue("[\"a\",\"b\"]")
+                .name("comment").value(null)
+                .endObject()
+                .flush();
+
+        assertEquals(out.toString(), "{\"id\":1,\"agent\":{\"id\":2,\"connected\":true},\"tags\":[\"a\",\"b\"],\"comment\":null}");
+    }
+
+    public void strings_are_escaped() throws IOException {
+        StringWriter out = new StringWriter();
+        new JsonWriter(out).beginObject()
+                .name("na\"me").value("quote \" backslash \\ newline \n return \r tab \t control \u0001 unicode \u00e9")
+                .endObject();
+
+        assertEquals(out.toString(), "{\"na\\\"me\":\"quote \\\" backslash \\\\ newline \\n return \\r tab \\t control \\u0001 unicode \u00e9\"}");
+    }
+
+    public void non_numeric_values_are_written_as_strings() throws IOException {
+        StringWriter out = new StringWriter();
+        new JsonWriter(out).beginObject()
+                .name("state").value(DeliveryPriority.URGENT)
+                .endObject();
+
+        assertEquals(out.toString(), "{\"state\":\"URGENT\"}");
+    }
+}
@@ -0,0 +1,195 @@
+package jetbrains.buildServer.webhook;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PartitionedExecutorTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private PartitionedExecutor executor;
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        if (executor != null)
+            executor.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    public void executes_tasks_with_the_same_key_in_submission_order() throws Exception {
+        executor = new PartitionedExecutor("test", 4, 1000);
+        Map<Integer, List<Integer>> executed = new ConcurrentHashMap<>();
+        int keys = 10;
+        int tasks = 1000;
+        CountDownLatch done = new CountDownLatch(tasks);
+        for (int i = 0; i < tasks; i++) {
+            int key = i % keys;
+            int task = i;
+            executor.execute(key, () -> {
+                executed.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>())).add(task);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(executed.size(), keys);
+        for (Map.Entry<Integer, List<Integer>> entry : executed.entrySet()) {
+            List<Integer> sorted = new ArrayList<>(entry.getValue());
+            Collections.sort(sorted);
+            assertEquals(entry.getValue(), sorted, "tasks of key " + entry.getKey());
+            assertEquals(entry.getValue().size(), tasks / keys);
+        }
+    }
+
+    public void executes_backlog_of_higher_priority_first() throws Exception {
+        executor = new PartitionedExecutor("test", 1, 100);
+        CountDownLatch gate = block("key");
+        List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(5);
+        submit("key", DeliveryPriority.BULK, "bulk", executed, done);
+        submit("key", DeliveryPriority.NORMAL, "normal1", executed, done);
+        submit("key", DeliveryPriority.URGENT, "urgent1", executed, done);
+        submit("key", DeliveryPriority.NORMAL, "normal2", executed, done);
+        submit("key", DeliveryPriority.URGENT, "urgent2", executed, done);
+        gate.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(executed, Arrays.asList("urgent1", "urgent2", "normal1", "normal2", "bulk"));
+    }
+
+    public void runs_barrier_between_earlier_and_later_tasks_regardless_of_priority() throws Exception {
+        executor = new PartitionedExecutor("test", 1, 100);
+        CountDownLatch gate = block("key");
+        List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(4);
+        submit("key", DeliveryPriority.BULK, "before", executed, done);
+        executor.afterSubmitted(() -> {
+            executed.add("barrier");
+            done.countDown();
+        });
+        submit("key", DeliveryPriority.URGENT, "after1", executed, done);
+        submit("key", DeliveryPriority.BULK, "after2", executed, done);
+        gate.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(executed, Arrays.asList("before", "barrier", "after1", "after2"));
+    }
+
+    public void barrier_callback_waits_for_tasks_of_all_lanes() throws Exception {
+        executor = new PartitionedExecutor("test", 2, 100);
+        // integer keys 0 and 1 land on different lanes
+        CountDownLatch gate = block(0);
+        List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(4);
+        submit(0, DeliveryPriority.BULK, "lane0", executed, done);
+        submit(1, DeliveryPriority.BULK, "lane1", executed, done);
+        executor.afterSubmitted(() -> {
+            executed.add("barrier");
+            done.countDown();
+        });
+        submit(1, DeliveryPriority.URGENT, "lane1 after barrier", executed, done);
+
+        Thread.sleep(200);
+        assertEquals(executed, Arrays.asList("lane1", "lane1 after barrier"), "the other lane doesn't wait for the blocked one");
+
+        gate.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(executed, Arrays.asList("lane1", "lane1 after barrier", "lane0", "barrier"));
+    }
+
+    public void submitting_to_full_lane_waits_for_room() throws Exception {
+        executor = new PartitionedExecutor("test", 1, 2);
+        CountDownLatch gate = block("key");
+        List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(3);
+        submit("key", DeliveryPriority.NORMAL, "1", executed, done);
+        submit("key", DeliveryPriority.NORMAL, "2", executed, done);
+        Thread submitter = new Thread(() -> submit("key", DeliveryPriority.NORMAL, "3", executed, done));
+        submitter.start();
+
+        submitter.join(200);
+        assertTrue(submitter.isAlive(), "submitter should wait while the lane is full");
+
+        gate.countDown();
+        submitter.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertFalse(submitter.isAlive());
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(executed, Arrays.asList("1", "2", "3"));
+    }
+
+    public void resubmitting_to_full_lane_does_not_wait() throws Exception {
+        executor = new PartitionedExecutor("test", 1, 1);
+        CountDownLatch gate = block("key");
+        List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2);
+        submit("key", DeliveryPriority.NORMAL, "1", executed, done);
+
+        executor.resubmit("key", DeliveryPriority.NORMAL, () -> {
+            executed.add("retry");
+            done.countDown();
+        });
+
+        gate.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(executed, Arrays.asList("1", "retry"));
+    }
+
+    public void shutdown_returns_tasks_which_were_not_executed() throws Exception {
+        executor = new PartitionedExecutor("test", 1, 100);
+        block("key");
+        Runnable first = () -> fail("should not be executed");
+        Runnable second = () -> fail("should not be executed");
+        executor.execute("key", first);
+        executor.afterSubmitted(() -> fail("should not be executed"));
+        executor.execute("key", DeliveryPriority.URGENT, second);
+
+        List<Runnable> discarded = executor.shutdown(100, TimeUnit.MILLISECONDS);
+
+        assertEquals(discarded.size(), 2);
+        assertTrue(discarded.contains(first));
+        assertTrue(discarded.contains(second));
+        try {
+            executor.execute("key", () -> {});
+            fail("submission after shutdown should be rejected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Occupies the lane of the key until the returned latch is counted down or the lane is interrupted
+     */
+    private CountDownLatch block(Object key) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        executor.execute(key, () -> {
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    private void submit(Object key, DeliveryPriority priority, String name, List<String> executed, CountDownLatch done) {
+        executor.execute(key, priority, () -> {
+            executed.add(name);
+            done.countDown();
+        });
+    }
+}
@@ -0,0 +1,134 @@
+package jetbrains.buildServer.webhook;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+@Test
+public class PayloadCacheTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final String URL = "/app/rest/builds/promotionId:1";
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private PayloadCache cache;
+    private ExecutorService threads;
+
+    @BeforeMethod
+    public void setUp() {
+        loads.set(0);
+        cache = new PayloadCache(2);
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    public void concurrent_requests_of_missing_entry_share_single_rendering() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<>();
+        results.add(threads.submit(() -> cache.get(URL, "", 1, 60_000, () -> {
+            loading.countDown();
+            await(release);
+            return render();
+        })));
+        assertTrue(loading.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (int i = 0; i < 4; i++) {
+            results.add(threads.submit(() -> cache.get(URL, "", 1, 60_000, this::render)));
+        }
+        Thread.sleep(100);
+
+        release.countDown();
+
+        for (Future<String> result : results) {
+            assertEquals(result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "{\"load\":1}");
+        }
+        assertEquals(loads.get(), 1);
+    }
+
+    public void failed_rendering_is_reported_to_waiting_requests_and_not_cached() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = threads.submit(() -> cache.get(URL, "", 1, 60_000, () -> {
+            loading.countDown();
+            await(release);
+            throw new IllegalStateException("failed to render");
+        }));
+        assertTrue(loading.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Future<String> waiting = threads.submit(() -> cache.get(URL, "", 1, 60_000, this::render));
+        Thread.sleep(100);
+
+        release.countDown();
+
+        assertFailed(first);
+        assertFailed(waiting);
+        assertEquals(cache.get(URL, "", 1, 60_000, this::render), "{\"load\":1}");
+    }
+
+    public void entries_are_kept_per_url_fields_and_version() throws Exception {
+        String payload = cache.get(URL, "", 1, 60_000, this::render);
+
+        assertEquals(cache.get(URL, "", 1, 60_000, this::render), payload);
+        assertEquals(cache.get(URL, "build(id)", 1, 60_000, this::render), "{\"load\":2}");
+        assertEquals(cache.get(URL, "", 2, 60_000, this::render), "{\"load\":3}");
+        assertEquals(cache.get("/app/rest/agents/id:1", "", 1, 60_000, this::render), "{\"load\":4}");
+        assertEquals(loads.get(), 4);
+    }
+
+    public void entry_expires_after_ttl() throws Exception {
+        cache.get(URL, "", 1, 50, this::render);
+        assertEquals(cache.get(URL, "", 1, 50, this::render), "{\"load\":1}");
+
+        Thread.sleep(100);
+
+        assertEquals(cache.get(URL, "", 1, 50, this::render), "{\"load\":2}");
+    }
+
+    public void least_recently_used_entry_is_evicted() throws Exception {
+        cache.get(URL, "", 1, 60_000, this::render);
+        cache.get(URL, "", 2, 60_000, this::render);
+        cache.get(URL, "", 1, 60_000, this::render);
+        cache.get(URL, "", 3, 60_000, this::render);
+
+        assertEquals(cache.get(URL, "", 1, 60_000, this::render), "{\"load\":1}");
+        assertEquals(cache.get(URL, "", 2, 60_000, this::render), "{\"load\":4}");
+    }
+
+    @NotNull
+    private String render() {
+        return "{\"load\":" + loads.incrementAndGet() + "}";
+    }
+
+    private static void assertFailed(@NotNull Future<String> result) throws Exception {
+        try {
+            result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("rendering should fail");
+        } catch (ExecutionException e) {
+            assertEquals(e.getCause().getMessage(), "failed to render");
+        }
+    }
+
+    private static void await(@NotNull CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider;
+import jetbrains.buildServer.webhook.WebhooksEventListener.WebhookSendException;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.*;
+
+@Test
+public class PayloadEntityTest {
+
+    private static final String UNICODE_JSON = "{\"name\":\"caf\u00e9 \u20ac \ud83d\ude80 \ud83d\"}";
+
+    private WebhookMetrics metrics;
+    private WebhookSender sender;
+
+    @BeforeMethod
+    public void setUp() {
+        metrics = new WebhookMetrics();
+        sender = new WebhookSender(mock(SSLTrustStoreProvider.class), metrics, new WebhookSender.DeliveryListener() {
+            @Override
+            public void delivered(@NotNull WebhookDelivery delivery) {
+            }
+
+            @Override
+            public void failed(@NotNull WebhookDelivery delivery, @NotNull WebhookSendException exception) {
+            }
+        }, (delivery, attempt) -> attempt.run());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        sender.shutdown();
+        metrics.dispose();
+    }
+
+    public void length_of_payload_is_count_of_written_bytes() {
+        WebhookPayload json = WebhookPayload.of(UNICODE_JSON);
+        WebhookPayload envelope = RestApiProducer.envelope("{ \"payload\" : ".getBytes(StandardCharsets.UTF_8), UNICODE_JSON);
+
+        assertLengthIsWritten(json);
+        assertLengthIsWritten(envelope);
+        assertLengthIsWritten(WebhookPayload.array(Collections.emptyList()));
+        assertLengthIsWritten(WebhookPayload.array(Collections.singletonList(json)));
+        assertLengthIsWritten(WebhookPayload.array(Arrays.asList(json, envelope, WebhookPayload.of("{}"))));
+    }
+
+    public void length_of_array_is_unknown_if_length_of_any_element_is_unknown() {
+        WebhookPayload unknown = out -> out.write('1');
+
+        assertEquals(unknown.getLength(), -1);
+        assertEquals(WebhookPayload.array(Arrays.asList(WebhookPayload.of("{}"), unknown)).getLength(), -1);
+    }
+
+    public void payload_of_known_length_is_sent_with_content_length() throws IOException {
+        try (TestReceiver receiver = new TestReceiver(request -> 200)) {
+            sender.send(delivery(receiver, RestApiProducer.envelope("{ \"payload\" : ".getBytes(StandardCharsets.UTF_8), UNICODE_JSON), false));
+
+            TestReceiver.Request request = receiver.getRequests().get(0);
+            assertNull(request.headers.getFirst("Transfer-Encoding"));
+            assertEquals(request.headers.getFirst("Content-Length"), String.valueOf(request.body.length));
+            assertEquals(request.getBody(), "{ \"payload\" : {\"name\":\"caf\u00e9 \u20ac \ud83d\ude80 ?\"} }");
+        }
+    }
+
+    public void payload_of_unknown_length_is_sent_chunked() throws IOException {
+        try (TestReceiver receiver = new TestReceiver(request -> 200)) {
+            sender.send(delivery(receiver, this::writeUnicodeJson, false));
+
+            TestReceiver.Request request = receiver.getRequests().get(0);
+            assertEquals(request.headers.getFirst("Transfer-Encoding"), "chunked");
+            assertNull(request.headers.getFirst("Content-Length"));
+            assertEquals(request.getBody(), new String(UNICODE_JSON.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+        }
+    }
+
+    public void compressed_payload_is_sent_chunked() throws IOException {
+        try (TestReceiver receiver = new TestReceiver(request -> 200)) {
+            sender.send(delivery(receiver, WebhookPayload.of(UNICODE_JSON), true));
+
+            TestReceiver.Request request = receiver.getRequests().get(0);
+            assertTrue(request.isGzip());
+            assertEquals(request.headers.getFirst("Transfer-Encoding"), "chunked");
+            assertNull(request.headers.getFirst("Content-Length"));
+            assertEquals(request.getBody(), new String(UNICODE_JSON.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+        }
+    }
+
+    private void writeUnicodeJson(@NotNull OutputStream out) throws IOException {
+        out.write(UNICODE_JSON.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private WebhookDelivery delivery(@NotNull TestReceiver receiver, @NotNull WebhookPayload payload, boolean gzip) {
+        metrics.submitted("project");
+        return new WebhookDelivery("project", receiver.getUrl("/hook"), null, payload, gzip, RetryPolicy.NO_RETRY);
+    }
+
+    private static void assertLengthIsWritten(@NotNull WebhookPayload payload) {
+        assertEquals(payload.getLength(), WebhookPayload.toBytes(payload).length);
+    }
+}
@@ -0,0 +1,121 @@
+package jetbrains.buildServer.webhook;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process webhooks receiver recording requests and responding with the code chosen by the handler
+ */
+class TestReceiver implements AutoCloseable {
+
+    interface Handler {
+        /**
+         * @return response code
+         */
+        int respond(@NotNull Request request) throws Exception;
+    }
+
+    private final HttpServer server;
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<>());
+
+    TestReceiver(@NotNull Handler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            int code;
+            try {
+                Request request = new Request(exchange.getRequestURI().toString(), exchange.getRequestHeaders(), read(exchange.getRequestBody()));
+                requests.add(request);
+                code = handler.respond(request);
+            } catch (Exception e) {
+                code = 500;
+            }
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    /**
+     * @return url of {@param path} on the receiver, e.g. {@code /hook}
+     */
+    @NotNull
+    String getUrl(@NotNull String path) {
+        return "http://localhost:" + getPort() + path;
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @NotNull
+    List<Request> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    @NotNull
+    List<String> getBodies() {
+        List<String> bodies = new ArrayList<>();
+        for (Request request : getRequests()) {
+            bodies.add(request.getBody());
+        }
+        return bodies;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    @NotNull
+    private static byte[] read(@NotNull InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    static class Request {
+        final String uri;
+        final Headers headers;
+        final byte[] body;
+
+        private Request(@NotNull String uri, @NotNull Headers headers, @NotNull byte[] body) {
+            this.uri = uri;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        boolean isGzip() {
+            return "gzip".equalsIgnoreCase(headers.getFirst("Content-Encoding"));
+        }
+
+        /**
+         * @return request body, decompressed if the request is compressed
+         */
+        @NotNull
+        String getBody() {
+            try {
+                return new String(isGzip() ? read(new GZIPInputStream(new ByteArrayInputStream(body))) : body, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.ParametersProvider;
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.BUILD_STARTED;
+import static org.testng.Assert.*;
+
+@Test
+public class WebhookBatcherTest {
+
+    private static final String URL = "http://localhost/hook";
+
+    private final List<WebhookBatcher.Batch> batches = Collections.synchronizedList(new ArrayList<>());
+    private WebhookBatcher batcher;
+
+    @BeforeMethod
+    public void setUp() {
+        batches.clear();
+        batcher = new WebhookBatcher(batches::add);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        batcher.shutdown();
+    }
+
+    public void full_batch_is_passed_immediately() {
+        WebhookEndpoint endpoint = endpoint(3, 0);
+        AsyncEvent first = event(1);
+        AsyncEvent second = event(2);
+        AsyncEvent third = event(3);
+
+        batcher.add(endpoint, URL, first);
+        batcher.add(endpoint, URL, second);
+        assertTrue(batches.isEmpty());
+        batcher.add(endpoint, URL, third);
+        batcher.add(endpoint, URL, event(4));
+
+        assertEquals(batches.size(), 1);
+        assertEquals(batches.get(0).events, Arrays.asList(first, second, third));
+        assertSame(batches.get(0).endpoint, endpoint);
+        assertEquals(batches.get(0).webhooksUrl, URL);
+    }
+
+    public void batches_without_linger_time_are_passed_by_flush() {
+        WebhookEndpoint lingerless = endpoint(10, 0);
+        WebhookEndpoint lingering = endpoint(10, 60_000);
+        batcher.add(lingerless, URL, event(1));
+        batcher.add(lingerless, URL, event(2));
+        batcher.add(lingering, "http://localhost/other", event(3));
+
+        batcher.flushLingerless();
+
+        assertEquals(batches.size(), 1);
+        assertEquals(batches.get(0).events.size(), 2);
+        batcher.flushLingerless();
+        assertEquals(batches.size(), 1);
+    }
+
+    public void batch_is_passed_once_linger_time_is_over() throws InterruptedException {
+        WebhookEndpoint endpoint = endpoint(10, 100);
+        long start = System.currentTimeMillis();
+        batcher.add(endpoint, URL, event(1));
+        batcher.add(endpoint, URL, event(2));
+        batcher.flushLingerless();
+        assertTrue(batches.isEmpty());
+
+        waitFor(() -> batches.size() == 1);
+
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(batches.get(0).events.size(), 2);
+    }
+
+    public void full_batch_is_not_passed_again_by_linger_timer() throws InterruptedException {
+        WebhookEndpoint endpoint = endpoint(2, 50);
+        batcher.add(endpoint, URL, event(1));
+        batcher.add(endpoint, URL, event(2));
+        assertEquals(batches.size(), 1);
+
+        Thread.sleep(200);
+
+        assertEquals(batches.size(), 1);
+    }
+
+    public void events_of_different_receivers_are_batched_separately() {
+        WebhookEndpoint endpoint = endpoint(10, 0);
+        batcher.add(endpoint, URL, event(1));
+        batcher.add(endpoint, "http://localhost/other", event(2));
+        batcher.add(endpoint, URL, event(3));
+
+        batcher.flushLingerless();
+
+        assertEquals(batches.size(), 2);
+        Map<String, Integer> sizes = new HashMap<>();
+        for (WebhookBatcher.Batch batch : batches) {
+            sizes.put(batch.webhooksUrl, batch.events.size());
+        }
+        assertEquals(sizes.get(URL), Integer.valueOf(2));
+        assertEquals(sizes.get("http://localhost/other"), Integer.valueOf(1));
+    }
+
+    public void shutdown_passes_lingering_batches() {
+        batcher.add(endpoint(10, 60_000), URL, event(1));
+
+        batcher.shutdown();
+
+        assertEquals(batches.size(), 1);
+    }
+
+    @NotNull
+    private static AsyncEvent event(long objectId) {
+        return new AsyncEvent(BUILD_STARTED, objectId, "project");
+    }
+
+    private static void waitFor(@NotNull BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return default endpoint of a project sending batches of {@param batchSize} events lingering for {@param lingerMillis}
+     */
+    @NotNull
+    private static WebhookEndpoint endpoint(int batchSize, long lingerMillis) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(WebhookConfig.EVENTS_PARAMETER, BUILD_STARTED);
+        parameters.put(WebhookConfig.URL_PARAMETER, URL);
+        parameters.put(WebhookConfig.PARAMETER_PREFIX + WebhookEndpoint.BATCH_SIZE, String.valueOf(batchSize));
+        parameters.put(WebhookConfig.PARAMETER_PREFIX + WebhookEndpoint.BATCH_LINGER, String.valueOf(lingerMillis));
+        ParametersProvider parametersProvider = (ParametersProvider) Proxy.newProxyInstance(WebhookBatcherTest.class.getClassLoader(), new Class[]{ParametersProvider.class},
+                (proxy, method, args) -> method.getName().equals("get") ? parameters.get((String) args[0]) : null);
+        ProjectEx project = (ProjectEx) Proxy.newProxyInstance(WebhookBatcherTest.class.getClassLoader(), new Class[]{ProjectEx.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getInternalParameterValue":
+                    return parameters.getOrDefault((String) args[0], (String) args[1]);
+                case "getParametersProvider":
+                    return parametersProvider;
+                case "getName":
+                    return "project";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        WebhookEndpoint endpoint = WebhookEndpoint.compile(WebhookEndpoint.DEFAULT_NAME, WebhookConfig.PARAMETER_PREFIX, "project", project);
+        assertEquals(endpoint.getBatchSize(), batchSize);
+        return endpoint;
+    }
+}
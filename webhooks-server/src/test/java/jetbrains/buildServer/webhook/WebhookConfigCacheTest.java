@@ -0,0 +1,143 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ParametersProvider;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.ProjectNotFoundException;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.AGENT_REGISTRED;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.*;
+
+@Test
+public class WebhookConfigCacheTest {
+
+    private final Map<String, ProjectEx> projects = new HashMap<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private Runnable onLookup;
+    private WebhookConfigCache cache;
+    private BuildServerListener serverListener;
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        projects.clear();
+        lookups.set(0);
+        onLookup = () -> {};
+        projects.put(null, project("Root"));
+        projects.put("project1", project("Project 1"));
+        ProjectManager projectManager = (ProjectManager) Proxy.newProxyInstance(WebhookConfigCacheTest.class.getClassLoader(), new Class[]{ProjectManager.class},
+                (proxy, method, args) -> {
+                    lookups.incrementAndGet();
+                    onLookup.run();
+                    switch (method.getName()) {
+                        case "getRootProject":
+                            return projects.get(null);
+                        case "findProjectById":
+                            return projects.get((String) args[0]);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        SBuildServer buildServer = (SBuildServer) Proxy.newProxyInstance(WebhookConfigCacheTest.class.getClassLoader(), new Class[]{SBuildServer.class},
+                (proxy, method, args) -> projectManager);
+        EventDispatcher<BuildServerListener> serverEvents = mock(EventDispatcher.class);
+        cache = new WebhookConfigCache(buildServer, serverEvents);
+        ArgumentCaptor<BuildServerListener> listener = ArgumentCaptor.forClass(BuildServerListener.class);
+        verify(serverEvents).addListener(listener.capture());
+        serverListener = listener.getValue();
+    }
+
+    public void config_is_compiled_once_per_project() throws ProjectNotFoundException {
+        WebhookConfig config = cache.get("project1");
+
+        assertEquals(config.getProjectKey(), "project1");
+        assertEquals(config.getProjectName(), "Project 1");
+        assertSame(cache.get("project1"), config);
+        assertSame(cache.get(new AsyncEvent(AGENT_REGISTRED, 1L, "project1")), config);
+        assertEquals(lookups.get(), 1);
+    }
+
+    public void agent_events_use_config_of_root_project() throws ProjectNotFoundException {
+        WebhookConfig root = cache.get(new AsyncEvent(AGENT_REGISTRED, 1L));
+
+        assertEquals(root.getProjectKey(), WebhookConfigCache.ROOT_PROJECT_KEY);
+        assertSame(cache.get((String) null), root);
+        assertEquals(lookups.get(), 1);
+    }
+
+    public void project_settings_change_invalidates_configs_of_all_projects() throws ProjectNotFoundException {
+        WebhookConfig config = cache.get("project1");
+        WebhookConfig root = cache.get((String) null);
+
+        // webhooks parameters of a parent project are inherited by subprojects
+        serverListener.projectPersisted("parent");
+
+        assertNotSame(cache.get("project1"), config);
+        assertNotSame(cache.get((String) null), root);
+        assertEquals(lookups.get(), 4);
+    }
+
+    public void config_compiled_while_settings_change_is_not_cached() throws ProjectNotFoundException {
+        onLookup = () -> {
+            onLookup = () -> {};
+            serverListener.serverConfigurationReloaded();
+        };
+
+        WebhookConfig config = cache.get("project1");
+
+        assertNotSame(cache.get("project1"), config);
+        assertSame(cache.get("project1"), cache.get("project1"));
+        assertEquals(lookups.get(), 2);
+    }
+
+    public void missing_project_is_reported() {
+        try {
+            cache.get("removed");
+            fail("project shouldn't be found");
+        } catch (ProjectNotFoundException e) {
+            assertTrue(e.getMessage().contains("removed"), e.getMessage());
+        }
+    }
+
+    /**
+     * @return project with webhooks enabled
+     */
+    @NotNull
+    private static ProjectEx project(@NotNull String name) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(WebhookConfig.ENABLE_PARAMETER, "true");
+        parameters.put(WebhookConfig.EVENTS_PARAMETER, AGENT_REGISTRED);
+        parameters.put(WebhookConfig.URL_PARAMETER, "http://localhost/hook");
+        ParametersProvider parametersProvider = (ParametersProvider) Proxy.newProxyInstance(WebhookConfigCacheTest.class.getClassLoader(), new Class[]{ParametersProvider.class},
+                (proxy, method, args) -> method.getName().equals("get") ? parameters.get((String) args[0]) : null);
+        return (ProjectEx) Proxy.newProxyInstance(WebhookConfigCacheTest.class.getClassLoader(), new Class[]{ProjectEx.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getBooleanInternalParameter":
+                    return Boolean.parseBoolean(parameters.get((String) args[0]));
+                case "getInternalParameterValue":
+                    return parameters.getOrDefault((String) args[0], (String) args[1]);
+                case "getParametersProvider":
+                    return parametersProvider;
+                case "getName":
+                    return name;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,299 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.*;
+
+@Test
+public class WebhookOutboxTest {
+
+    private static final String[] PROPERTIES = {
+            WebhookOutbox.ENABLED_PROPERTY,
+            WebhookOutbox.SEGMENT_SIZE_PROPERTY,
+            WebhookOutbox.MAX_AGE_PROPERTY
+    };
+
+    private File pluginDataDirectory;
+    private ServerPaths serverPaths;
+    private WebhookOutbox outbox;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        pluginDataDirectory = Files.createTempDirectory("webhooks-outbox-test").toFile();
+        serverPaths = mock(ServerPaths.class);
+        when(serverPaths.getPluginDataDirectory()).thenReturn(pluginDataDirectory);
+        System.setProperty(WebhookOutbox.ENABLED_PROPERTY, "true");
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws IOException {
+        if (outbox != null)
+            outbox.close();
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+        try (Stream<Path> files = Files.walk(pluginDataDirectory.toPath())) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    public void disabled_by_default() {
+        System.clearProperty(WebhookOutbox.ENABLED_PROPERTY);
+        outbox = new WebhookOutbox(serverPaths);
+
+        assertFalse(outbox.isEnabled());
+        assertNull(append("project", "http://localhost/hook", WebhookPayload.of("{}"), System.currentTimeMillis()));
+    }
+
+    public void replays_not_acknowledged_records_after_reopen() {
+        outbox = new WebhookOutbox(serverPaths);
+        assertTrue(outbox.isEnabled());
+        long createdAt = System.currentTimeMillis();
+        long first = append("project1", "http://localhost/hook1", WebhookPayload.of("{\"id\":1}"), createdAt).id;
+        long second = append("project2", "http://localhost/hook2", WebhookPayload.of("{\"id\":2}"), createdAt + 1).id;
+        long third = append("project3", "http://localhost/hook3", WebhookPayload.of("{\"id\":3}"), createdAt + 2).id;
+        outbox.ack(second);
+
+        List<WebhookOutbox.Record> records = reopenAndReplay();
+
+        assertEquals(ids(records), Arrays.asList(first, third));
+        WebhookOutbox.Record record = records.get(0);
+        assertEquals(record.projectKey, "project1");
+        assertEquals(record.url, "http://localhost/hook1");
+        assertEquals(record.createdAt, createdAt);
+        assertEquals(body(record), "{\"id\":1}");
+        assertEquals(body(records.get(1)), "{\"id\":3}");
+
+        // replayed records stay pending until they are acknowledged
+        assertEquals(ids(reopenAndReplay()), Arrays.asList(first, third));
+
+        for (WebhookOutbox.Record replayed : reopenAndReplay()) {
+            outbox.ack(replayed.id);
+        }
+        assertTrue(reopenAndReplay().isEmpty());
+    }
+
+    public void replays_event_type_and_priority() {
+        outbox = new WebhookOutbox(serverPaths);
+        WebhookDelivery delivery = new WebhookDelivery("project", "http://localhost/hook", null, WebhookPayload.of("{\"id\":1}"), false, RetryPolicy.NO_RETRY);
+        delivery.setEventType("BUILD_FINISHED");
+        delivery.setPriority(DeliveryPriority.URGENT);
+        outbox.append(delivery, WebhookPayload.of("{\"id\":1,\"sequence\":1}"));
+        append("project", "http://localhost/hook", WebhookPayload.of("[]"), System.currentTimeMillis());
+
+        List<WebhookOutbox.Record> records = reopenAndReplay();
+
+        assertEquals(records.get(0).eventType, "BUILD_FINISHED");
+        assertEquals(records.get(0).priority, DeliveryPriority.URGENT);
+        // the persisted payload is sent on replay instead of the delivery one
+        assertEquals(body(records.get(0)), "{\"id\":1,\"sequence\":1}");
+        assertNull(records.get(1).eventType);
+        assertEquals(records.get(1).priority, DeliveryPriority.NORMAL);
+    }
+
+    public void continues_ids_after_reopen() {
+        outbox = new WebhookOutbox(serverPaths);
+        long first = append("project", "http://localhost/hook", WebhookPayload.of("{}"), System.currentTimeMillis()).id;
+        outbox.ack(first);
+
+        reopenAndReplay();
+        long second = append("project", "http://localhost/hook", WebhookPayload.of("{}"), System.currentTimeMillis()).id;
+
+        assertTrue(second > first);
+        assertEquals(ids(reopenAndReplay()), Arrays.asList(second));
+    }
+
+    public void compaction_moves_pending_records_and_deletes_sealed_segments() throws IOException {
+        // every record gets its own segment
+        System.setProperty(WebhookOutbox.SEGMENT_SIZE_PROPERTY, "64");
+        outbox = new WebhookOutbox(serverPaths);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(append("project", "http://localhost/hook", WebhookPayload.of("{\"id\":" + i + "}"), System.currentTimeMillis()).id);
+        }
+        outbox.ack(ids.get(0));
+        outbox.ack(ids.get(2));
+        List<Path> segments = listSegments();
+        assertTrue(segments.size() > 1);
+
+        outbox.compact();
+
+        for (Path sealed : segments.subList(0, segments.size() - 1)) {
+            assertFalse(Files.exists(sealed), sealed + " should be deleted");
+        }
+        List<WebhookOutbox.Record> records = reopenAndReplay();
+        assertEquals(ids(records), Arrays.asList(ids.get(1), ids.get(3), ids.get(4)));
+        assertEquals(body(records.get(0)), "{\"id\":1}");
+    }
+
+    public void compaction_keeps_segments_which_records_were_not_moved() throws IOException {
+        System.setProperty(WebhookOutbox.SEGMENT_SIZE_PROPERTY, "64");
+        outbox = new WebhookOutbox(serverPaths);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ids.add(append("project", "http://localhost/hook", WebhookPayload.of("{\"id\":" + i + "}"), System.currentTimeMillis()).id);
+        }
+        List<Path> segments = listSegments();
+
+        // moving records to the current segment fails once the outbox is closed,
+        // the next compaction should still find records which were not moved
+        outbox.close();
+        outbox.compact();
+        outbox.compact();
+
+        for (Path segment : segments) {
+            assertTrue(Files.exists(segment), segment + " should be kept");
+        }
+        List<WebhookOutbox.Record> records = reopenAndReplay();
+        assertEquals(ids(records), ids);
+        assertEquals(body(records.get(0)), "{\"id\":0}");
+
+        outbox.compact();
+        assertEquals(ids(reopenAndReplay()), ids);
+    }
+
+    public void appended_record_shares_payload_rendered_once() {
+        outbox = new WebhookOutbox(serverPaths);
+        AtomicInteger renders = new AtomicInteger();
+        WebhookPayload payload = out -> {
+            renders.incrementAndGet();
+            out.write("{\"id\":1}".getBytes(StandardCharsets.UTF_8));
+        };
+
+        WebhookOutbox.Record record = append("project", "http://localhost/hook", payload, System.currentTimeMillis());
+
+        assertEquals(renders.get(), 1);
+        assertEquals(record.getPayload().getLength(), 8);
+        assertEquals(body(record), "{\"id\":1}");
+        assertEquals(renders.get(), 1);
+        assertEquals(body(reopenAndReplay().get(0)), "{\"id\":1}");
+    }
+
+    public void compaction_drops_records_older_than_max_age() {
+        System.setProperty(WebhookOutbox.SEGMENT_SIZE_PROPERTY, "64");
+        outbox = new WebhookOutbox(serverPaths);
+        long now = System.currentTimeMillis();
+        long old = append("project", "http://localhost/hook", WebhookPayload.of("{}"), now - TimeUnit.DAYS.toMillis(2)).id;
+        long recent = append("project", "http://localhost/hook", WebhookPayload.of("{}"), now).id;
+        append("project", "http://localhost/hook", WebhookPayload.of("{}"), now);
+
+        System.setProperty(WebhookOutbox.MAX_AGE_PROPERTY, String.valueOf(TimeUnit.DAYS.toMillis(1)));
+        outbox.compact();
+
+        // replay doesn't filter by age, so only compaction could drop the record
+        System.setProperty(WebhookOutbox.MAX_AGE_PROPERTY, "0");
+        List<Long> replayed = ids(reopenAndReplay());
+        assertFalse(replayed.contains(old));
+        assertTrue(replayed.contains(recent));
+    }
+
+    public void replay_skips_records_older_than_max_age() {
+        outbox = new WebhookOutbox(serverPaths);
+        long now = System.currentTimeMillis();
+        append("project", "http://localhost/hook", WebhookPayload.of("{}"), now - TimeUnit.DAYS.toMillis(2));
+        long recent = append("project", "http://localhost/hook", WebhookPayload.of("{}"), now).id;
+
+        assertEquals(ids(reopenAndReplay()), Arrays.asList(recent));
+        // the old record is acknowledged by replay
+        System.setProperty(WebhookOutbox.MAX_AGE_PROPERTY, "0");
+        assertEquals(ids(reopenAndReplay()), Arrays.asList(recent));
+    }
+
+    public void ignores_torn_last_record() throws IOException {
+        outbox = new WebhookOutbox(serverPaths);
+        long first = append("project", "http://localhost/hook", WebhookPayload.of("{\"id\":1}"), System.currentTimeMillis()).id;
+        append("project", "http://localhost/hook", WebhookPayload.of("{\"id\":2}"), System.currentTimeMillis());
+        outbox.close();
+
+        Path segment = getSingleNonEmptySegment();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        List<WebhookOutbox.Record> records = reopenAndReplay();
+        assertEquals(ids(records), Arrays.asList(first));
+        assertEquals(body(records.get(0)), "{\"id\":1}");
+
+        long appended = append("project", "http://localhost/hook", WebhookPayload.of("{\"id\":3}"), System.currentTimeMillis()).id;
+        assertEquals(ids(reopenAndReplay()), Arrays.asList(first, appended));
+    }
+
+    public void stops_reading_segment_at_checksum_mismatch() throws IOException {
+        outbox = new WebhookOutbox(serverPaths);
+        long first = append("project", "http://localhost/hook", WebhookPayload.of("{\"id\":1}"), System.currentTimeMillis()).id;
+        long second = append("project", "http://localhost/hook", WebhookPayload.of("{\"id\":2}"), System.currentTimeMillis()).id;
+        append("project", "http://localhost/hook", WebhookPayload.of("{\"id\":3}"), System.currentTimeMillis());
+        outbox.close();
+
+        // the last byte belongs to the body of the last record
+        Path segment = getSingleNonEmptySegment();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            byte last = file.readByte();
+            file.seek(file.length() - 1);
+            file.writeByte(last ^ 0xFF);
+        }
+
+        assertEquals(ids(reopenAndReplay()), Arrays.asList(first, second));
+        long appended = append("project", "http://localhost/hook", WebhookPayload.of("{\"id\":4}"), System.currentTimeMillis()).id;
+        assertEquals(ids(reopenAndReplay()), Arrays.asList(first, second, appended));
+    }
+
+    private WebhookOutbox.Record append(String projectKey, String url, WebhookPayload payload, long createdAt) {
+        return outbox.append(new WebhookDelivery(projectKey, url, null, payload, false, RetryPolicy.NO_RETRY, createdAt), payload);
+    }
+
+    private List<WebhookOutbox.Record> reopenAndReplay() {
+        outbox.close();
+        outbox = new WebhookOutbox(serverPaths);
+        List<WebhookOutbox.Record> records = new ArrayList<>();
+        outbox.replay(records::add);
+        return records;
+    }
+
+    private Path getSingleNonEmptySegment() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        for (Path segment : listSegments()) {
+            if (Files.size(segment) > 0)
+                segments.add(segment);
+        }
+        assertEquals(segments.size(), 1);
+        return segments.get(0);
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(new File(pluginDataDirectory, "webhooks/outbox").toPath())) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static List<Long> ids(List<WebhookOutbox.Record> records) {
+        return records.stream().map(record -> record.id).collect(Collectors.toList());
+    }
+
+    private static String body(WebhookOutbox.Record record) {
+        return new String(WebhookPayload.toBytes(record.getPayload()), StandardCharsets.UTF_8);
+    }
+}
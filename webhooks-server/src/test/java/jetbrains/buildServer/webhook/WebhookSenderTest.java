@@ -0,0 +1,182 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider;
+import jetbrains.buildServer.webhook.WebhooksEventListener.WebhookSendException;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.*;
+
+@Test
+public class WebhookSenderTest {
+
+    private final List<WebhookDelivery> delivered = Collections.synchronizedList(new ArrayList<>());
+    private final List<WebhookSendException> failures = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> retryThreads = Collections.synchronizedList(new ArrayList<>());
+    private WebhookMetrics metrics;
+    private PartitionedExecutor lanes;
+    private WebhookSender.RetryExecutor retryExecutor;
+    private WebhookSender sender;
+
+    @BeforeMethod
+    public void setUp() {
+        delivered.clear();
+        failures.clear();
+        retryThreads.clear();
+        metrics = new WebhookMetrics();
+        lanes = new PartitionedExecutor("WebhookSenderTest", 1, 10);
+        retryExecutor = (delivery, attempt) -> lanes.resubmit(delivery.getUrl(), delivery.getPriority(), () -> {
+            retryThreads.add(Thread.currentThread().getName());
+            attempt.run();
+        });
+        sender = createSender();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        sender.shutdown();
+        lanes.shutdown(0, TimeUnit.SECONDS);
+        metrics.dispose();
+    }
+
+    public void failed_attempts_are_retried_with_growing_delays_in_retry_executor() throws Exception {
+        List<Long> attemptTimes = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger attempts = new AtomicInteger();
+        try (TestReceiver receiver = new TestReceiver(request -> {
+            attemptTimes.add(System.nanoTime());
+            return attempts.incrementAndGet() < 3 ? 500 : 200;
+        })) {
+            sender.send(delivery(receiver.getUrl("/hook"), new RetryPolicy(3, 100, 1000, 60_000, 0)));
+
+            waitFor(() -> delivered.size() == 1);
+            assertEquals(failures, Collections.emptyList());
+            assertEquals(attemptTimes.size(), 3);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(attemptTimes.get(1) - attemptTimes.get(0)) >= 100);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(attemptTimes.get(2) - attemptTimes.get(1)) >= 200);
+            assertEquals(delivered.get(0).getFailedAttempts(), 2);
+            assertEquals(metrics.getRetryCount(), 2);
+            // the first attempt is performed in the calling thread, retries by the retry executor
+            assertEquals(retryThreads.size(), 2);
+            for (String thread : retryThreads) {
+                assertTrue(thread.startsWith("WebhookSenderTest"), thread);
+            }
+        }
+    }
+
+    public void delivery_fails_once_retries_are_exhausted() throws Exception {
+        try (TestReceiver receiver = new TestReceiver(request -> 503)) {
+            sender.send(delivery(receiver.getUrl("/hook"), new RetryPolicy(2, 1, 1, 60_000, 0)));
+
+            waitFor(() -> failures.size() == 1);
+            assertEquals(receiver.getRequests().size(), 3);
+            assertEquals(failures.get(0).getReason(), "503");
+            assertTrue(delivered.isEmpty());
+        }
+    }
+
+    public void delivery_is_not_retried_after_max_age() throws Exception {
+        try (TestReceiver receiver = new TestReceiver(request -> 500)) {
+            sender.send(delivery(receiver.getUrl("/hook"), new RetryPolicy(5, 10_000, 10_000, 5_000, 0)));
+
+            waitFor(() -> failures.size() == 1);
+            assertEquals(receiver.getRequests().size(), 1);
+            assertTrue(retryThreads.isEmpty());
+        }
+    }
+
+    public void delivery_fails_if_retry_executor_rejects_the_attempt() throws Exception {
+        retryExecutor = (delivery, attempt) -> {
+            throw new RejectedExecutionException("shut down");
+        };
+        sender.shutdown();
+        sender = createSender();
+        try (TestReceiver receiver = new TestReceiver(request -> 500)) {
+            sender.send(delivery(receiver.getUrl("/hook"), new RetryPolicy(3, 1, 1, 60_000, 0)));
+
+            waitFor(() -> failures.size() == 1);
+            assertEquals(receiver.getRequests().size(), 1);
+            assertEquals(failures.get(0).getReason(), "500");
+        }
+    }
+
+    public void compressed_request_rejected_with_415_is_resent_uncompressed() throws IOException {
+        try (TestReceiver receiver = new TestReceiver(request -> request.isGzip() ? 415 : 200)) {
+            sender.send(delivery(receiver.getUrl("/hook"), RetryPolicy.NO_RETRY, true));
+            sender.send(delivery(receiver.getUrl("/hook"), RetryPolicy.NO_RETRY, true));
+
+            List<TestReceiver.Request> requests = receiver.getRequests();
+            assertEquals(requests.size(), 3);
+            assertTrue(requests.get(0).isGzip());
+            // the receiver is remembered not to accept compressed requests
+            assertFalse(requests.get(1).isGzip());
+            assertFalse(requests.get(2).isGzip());
+            assertEquals(receiver.getBodies(), Collections.nCopies(3, "{\"id\":1}"));
+            assertEquals(delivered.size(), 2);
+            assertTrue(failures.isEmpty());
+        }
+    }
+
+    public void conflict_without_resync_payload_fails_delivery() throws IOException {
+        try (TestReceiver receiver = new TestReceiver(request -> 409)) {
+            sender.send(delivery(receiver.getUrl("/hook"), RetryPolicy.NO_RETRY));
+
+            assertEquals(receiver.getRequests().size(), 1);
+            assertEquals(metrics.getResyncCount(), 0);
+            assertEquals(failures.get(0).getReason(), "409");
+        }
+    }
+
+    public void malformed_url_fails_without_retries() {
+        sender.send(delivery("http://local host/hook", new RetryPolicy(3, 1, 1, 60_000, 0)));
+
+        assertEquals(failures.size(), 1);
+        assertTrue(failures.get(0).getMessage().contains("wrong URL syntax"), failures.get(0).getMessage());
+        assertTrue(retryThreads.isEmpty());
+    }
+
+    @NotNull
+    private WebhookSender createSender() {
+        return new WebhookSender(mock(SSLTrustStoreProvider.class), metrics, new WebhookSender.DeliveryListener() {
+            @Override
+            public void delivered(@NotNull WebhookDelivery delivery) {
+                delivered.add(delivery);
+            }
+
+            @Override
+            public void failed(@NotNull WebhookDelivery delivery, @NotNull WebhookSendException exception) {
+                failures.add(exception);
+            }
+        }, (delivery, attempt) -> retryExecutor.execute(delivery, attempt));
+    }
+
+    @NotNull
+    private WebhookDelivery delivery(@NotNull String url, @NotNull RetryPolicy retryPolicy) {
+        return delivery(url, retryPolicy, false);
+    }
+
+    @NotNull
+    private WebhookDelivery delivery(@NotNull String url, @NotNull RetryPolicy retryPolicy, boolean gzip) {
+        metrics.submitted("project");
+        return new WebhookDelivery("project", url, null, WebhookPayload.of("{\"id\":1}"), gzip, retryPolicy);
+    }
+
+    private static void waitFor(@NotNull BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
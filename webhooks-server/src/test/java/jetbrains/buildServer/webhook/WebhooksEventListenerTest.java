@@ -0,0 +1,199 @@
+package jetbrains.buildServer.webhook;
+
+import jetbrains.buildServer.serverSide.BuildAgentManager;
+import jetbrains.buildServer.serverSide.BuildPromotionManager;
+import jetbrains.buildServer.serverSide.ParametersProvider;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.WebLinks;
+import jetbrains.buildServer.serverSide.agentPools.AgentPoolManager;
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.ssl.SSLTrustStoreProvider;
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.BUILD_STARTED;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.*;
+
+@Test
+public class WebhooksEventListenerTest {
+
+    private static final String PROJECT_ID = "project1";
+
+    private final Map<String, String> parameters = new HashMap<>();
+    private final List<String> renderedFields = Collections.synchronizedList(new ArrayList<>());
+    private final List<TestReceiver> receivers = new ArrayList<>();
+    private WebhookMetrics metrics;
+    private WebhooksEventListener listener;
+
+    @BeforeMethod
+    public void setUp() {
+        parameters.clear();
+        renderedFields.clear();
+        receivers.clear();
+        parameters.put(WebhookConfig.ENABLE_PARAMETER, "true");
+        metrics = new WebhookMetrics();
+        listener = createListener();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        listener.shutdown();
+        metrics.dispose();
+        for (TestReceiver receiver : receivers) {
+            receiver.close();
+        }
+    }
+
+    public void event_is_sent_to_all_endpoints_with_payload_rendered_once_per_fields() throws Exception {
+        TestReceiver receiver = receiver(request -> 200);
+        addEndpoint("first", receiver.getUrl("/first"), "id");
+        addEndpoint("second", receiver.getUrl("/second"), "id");
+        addEndpoint("third", receiver.getUrl("/third"), "id,number");
+
+        listener.handle(event(1));
+
+        List<String> uris = new ArrayList<>();
+        for (TestReceiver.Request request : receiver.getRequests()) {
+            uris.add(request.uri);
+        }
+        Collections.sort(uris);
+        assertEquals(uris, Arrays.asList("/first", "/second", "/third"));
+        assertEquals(receiver.getBodies().stream().filter("{\"fields\":\"id\"}"::equals).count(), 2);
+        assertTrue(receiver.getBodies().contains("{\"fields\":\"id,number\"}"));
+        Collections.sort(renderedFields);
+        assertEquals(renderedFields, Arrays.asList("id", "id,number"));
+    }
+
+    public void slow_receiver_does_not_delay_other_endpoints() throws Exception {
+        CountDownLatch fastReceived = new CountDownLatch(1);
+        AtomicBoolean slowReleased = new AtomicBoolean();
+        TestReceiver slow = receiver(request -> {
+            slowReleased.set(fastReceived.await(5, TimeUnit.SECONDS));
+            return 200;
+        });
+        TestReceiver fast = receiver(request -> {
+            fastReceived.countDown();
+            return 200;
+        });
+        // the first endpoint is sent by the calling thread, the others are forked
+        addEndpoint("slow", slow.getUrl("/hook"), "id");
+        addEndpoint("fast", fast.getUrl("/hook"), "id");
+
+        listener.handle(event(1));
+
+        assertEquals(slow.getRequests().size(), 1);
+        assertEquals(fast.getRequests().size(), 1);
+        assertTrue(slowReleased.get(), "fast receiver should get the webhook while the slow one is responding");
+        assertEquals(renderedFields, Collections.singletonList("id"));
+    }
+
+    public void failure_of_one_endpoint_does_not_prevent_sending_to_others() throws Exception {
+        TestReceiver failing = receiver(request -> 500);
+        TestReceiver receiver = receiver(request -> 200);
+        addEndpoint("failing", failing.getUrl("/hook"), "id");
+        addEndpoint("working", receiver.getUrl("/hook"), "id");
+
+        listener.handle(event(1));
+
+        assertEquals(failing.getRequests().size(), 1);
+        assertEquals(receiver.getBodies(), Collections.singletonList("{\"fields\":\"id\"}"));
+    }
+
+    @NotNull
+    private TestReceiver receiver(@NotNull TestReceiver.Handler handler) throws Exception {
+        TestReceiver receiver = new TestReceiver(handler);
+        receivers.add(receiver);
+        return receiver;
+    }
+
+    private void addEndpoint(@NotNull String name, @NotNull String url, @NotNull String fields) {
+        String endpoints = parameters.get(WebhookConfig.ENDPOINTS_PARAMETER);
+        parameters.put(WebhookConfig.ENDPOINTS_PARAMETER, endpoints == null ? name : endpoints + ";" + name);
+        String prefix = WebhookConfig.ENDPOINT_PARAMETER_PREFIX + name + ".";
+        parameters.put(prefix + WebhookEndpoint.URL, url);
+        parameters.put(prefix + WebhookEndpoint.EVENTS, BUILD_STARTED);
+        parameters.put(prefix + BUILD_STARTED + WebhookEndpoint.FIELDS_SUFFIX, fields);
+    }
+
+    @NotNull
+    private static AsyncEvent event(long buildId) {
+        return new AsyncEvent(BUILD_STARTED, buildId, PROJECT_ID);
+    }
+
+    /**
+     * @return listener sending webhooks in the calling thread with payloads made of the requested fields
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private WebhooksEventListener createListener() {
+        WebhookDataProducer producer = new WebhookDataProducer() {
+            @Override
+            public String getJson(AsyncEvent event, String fields) {
+                renderedFields.add(fields);
+                return "{\"fields\":\"" + fields + "\"}";
+            }
+
+            @Override
+            public boolean support(AsyncEvent event) {
+                return true;
+            }
+        };
+        ProjectEx project = project();
+        ProjectManager projectManager = (ProjectManager) Proxy.newProxyInstance(WebhooksEventListenerTest.class.getClassLoader(), new Class[]{ProjectManager.class},
+                (proxy, method, args) -> project);
+        SBuildServer buildServer = (SBuildServer) Proxy.newProxyInstance(WebhooksEventListenerTest.class.getClassLoader(), new Class[]{SBuildServer.class},
+                (proxy, method, args) -> projectManager);
+        WebhookConfigCache configCache = new WebhookConfigCache(buildServer, mock(EventDispatcher.class));
+        BuildPromotionManager buildPromotionManager = mock(BuildPromotionManager.class);
+        BuildAgentManager buildAgentManager = mock(BuildAgentManager.class);
+        return new WebhooksEventListener(producer,
+                new ModelDataProducer(buildPromotionManager, buildAgentManager, mock(WebLinks.class)),
+                configCache,
+                new WebhookOutbox(mock(ServerPaths.class)),
+                metrics,
+                new EventSubjects(buildPromotionManager, buildAgentManager, mock(AgentPoolManager.class)),
+                new ClusterSharding(mock(ServerPaths.class)),
+                mock(SSLTrustStoreProvider.class));
+    }
+
+    /**
+     * @return project reading webhooks parameters added by the test
+     */
+    @NotNull
+    private ProjectEx project() {
+        ParametersProvider parametersProvider = (ParametersProvider) Proxy.newProxyInstance(WebhooksEventListenerTest.class.getClassLoader(), new Class[]{ParametersProvider.class},
+                (proxy, method, args) -> method.getName().equals("get") ? parameters.get((String) args[0]) : null);
+        return (ProjectEx) Proxy.newProxyInstance(WebhooksEventListenerTest.class.getClassLoader(), new Class[]{ProjectEx.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getBooleanInternalParameter":
+                    return Boolean.parseBoolean(parameters.get((String) args[0]));
+                case "getInternalParameterValue":
+                    return parameters.getOrDefault((String) args[0], (String) args[1]);
+                case "getParametersProvider":
+                    return parametersProvider;
+                case "getName":
+                    return PROJECT_ID;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,109 @@
+package jetbrains.buildServer.webhook.async;
+
+import jetbrains.buildServer.webhook.async.events.AsyncEvent;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static jetbrains.buildServer.webhook.WebhooksManager.EventNames.*;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+@Test
+public class AsyncEventDispatcherTest {
+
+    private jetbrains.buildServer.serverSide.impl.events.async.AsyncEventDispatcher core;
+    private AsyncEventDispatcher dispatcher;
+    private List<List<AsyncEvent>> handled;
+    private AsyncEventListener listener;
+
+    @BeforeMethod
+    public void setUp() {
+        core = mock(jetbrains.buildServer.serverSide.impl.events.async.AsyncEventDispatcher.class);
+        dispatcher = new AsyncEventDispatcher(core);
+        handled = new ArrayList<>();
+        listener = new AsyncEventListener() {
+            @Override
+            public void handle(AsyncEvent event) {
+                handled.add(Collections.singletonList(event));
+            }
+
+            @Override
+            public void handle(List<AsyncEvent> events) {
+                handled.add(events);
+            }
+        };
+    }
+
+    public void batch_is_converted_when_passed_to_listener() {
+        dispatcher.subscribe(Arrays.asList(BUILD_STARTED, BUILD_FINISHED), listener);
+        jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener wrapper = getSubscribedWrapper();
+
+        // event types of the core events are equal to the constants but aren't the same strings
+        wrapper.handle(Arrays.asList(
+                new jetbrains.buildServer.serverSide.impl.events.async.AsyncEvent(new String(BUILD_STARTED), 1L, "project1"),
+                new jetbrains.buildServer.serverSide.impl.events.async.AsyncEvent(new String(BUILD_FINISHED), 2L, null),
+                new jetbrains.buildServer.serverSide.impl.events.async.AsyncEvent("CUSTOM_EVENT", 3L, "project2")));
+
+        assertEquals(handled.size(), 1);
+        List<AsyncEvent> events = handled.get(0);
+        assertEquals(events.size(), 3);
+        assertSame(events.get(0).getEventType(), BUILD_STARTED);
+        assertEquals(events.get(0).getObjectId(), Long.valueOf(1));
+        assertEquals(events.get(0).getProjectId(), "project1");
+        assertSame(events.get(1).getEventType(), BUILD_FINISHED);
+        assertNull(events.get(1).getProjectId());
+        assertEquals(events.get(2).getEventType(), "CUSTOM_EVENT");
+        assertEquals(events.get(2).getObjectId(), Long.valueOf(3));
+        // the list is converted once, so the listener may pass it to other threads
+        assertSame(events.get(0), events.get(0));
+        assertSame(events.get(2), events.get(2));
+        try {
+            events.set(0, events.get(1));
+            fail("converted events should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void single_event_batch_is_converted() {
+        dispatcher.subscribe(AGENT_REGISTRED, listener);
+        getSubscribedWrapper().handle(Collections.singletonList(
+                new jetbrains.buildServer.serverSide.impl.events.async.AsyncEvent(new String(AGENT_REGISTRED), 5L, null)));
+
+        assertEquals(handled.size(), 1);
+        assertEquals(handled.get(0).size(), 1);
+        assertSame(handled.get(0).get(0).getEventType(), AGENT_REGISTRED);
+        assertEquals(handled.get(0).get(0).getObjectId(), Long.valueOf(5));
+    }
+
+    public void listener_is_subscribed_once_per_event_and_unsubscribed_by_the_same_wrapper() {
+        dispatcher.subscribe(Arrays.asList(BUILD_STARTED, BUILD_FINISHED), listener);
+        dispatcher.subscribe(Arrays.asList(BUILD_FINISHED, BUILD_INTERRUPTED), listener);
+        dispatcher.subscribe(BUILD_STARTED, listener);
+
+        ArgumentCaptor<List> eventNames = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener> wrappers =
+                ArgumentCaptor.forClass(jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener.class);
+        verify(core, times(2)).subscribe(eventNames.capture(), wrappers.capture());
+        assertEquals(eventNames.getAllValues(), Arrays.asList(Arrays.asList(BUILD_STARTED, BUILD_FINISHED), Collections.singletonList(BUILD_INTERRUPTED)));
+        assertSame(wrappers.getAllValues().get(0), wrappers.getAllValues().get(1));
+
+        dispatcher.unsubscribe(listener);
+        dispatcher.unsubscribe(listener);
+
+        verify(core).unsubscribe(wrappers.getValue());
+    }
+
+    private jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener getSubscribedWrapper() {
+        ArgumentCaptor<jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener> wrapper =
+                ArgumentCaptor.forClass(jetbrains.buildServer.serverSide.impl.events.async.AsyncEventListener.class);
+        verify(core).subscribe(anyList(), wrapper.capture());
+        return wrapper.getValue();
+    }
+}